@@ -0,0 +1,237 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.json.simple.JSONArray;
+
+import com.googlecode.fascinator.common.JsonObject;
+import com.googlecode.fascinator.common.JsonSimple;
+
+/**
+ * Writes synthetic CSV data, and harvest configurations for it, to
+ * benchmark the harvester with.
+ * <p>
+ * The data has an "ID" column, a "Name" column, plain text columns and a
+ * number of multi-value columns ("Tags0", "Tags1", ...). Some text values
+ * contain the delimiter or quotes, so the quoting rules are exercised as well.
+ * The same arguments always give the same data.
+ */
+public class CsvGenerator {
+
+    /** Column delimiter */
+    public static final char DELIMITER = ',';
+
+    /** Delimiter of multi-value cells */
+    public static final char MULTI_VALUE_DELIMITER = ';';
+
+    /** Words values are made of */
+    private static final String[] WORDS = { "cat", "dog", "fish", "bird",
+            "mouse", "horse", "rabbit", "turtle", "hamster", "parrot",
+            "ferret", "goat", "snake", "lizard", "frog", "spider" };
+
+    /** Number of rows */
+    private final int rows;
+
+    /** Number of columns, including the ID and name */
+    private final int columns;
+
+    /** Number of multi-value columns */
+    private final int multiValueColumns;
+
+    /** Average number of values in a multi-value cell */
+    private final int valuesPerCell;
+
+    /**
+     * Creates a generator.
+     *
+     * @param rows number of rows
+     * @param columns number of columns, at least 2 plus the multi-value
+     *            columns
+     * @param multiValueColumns number of multi-value columns
+     * @param valuesPerCell average number of values in a multi-value cell
+     */
+    public CsvGenerator(int rows, int columns, int multiValueColumns,
+            int valuesPerCell) {
+        if (columns < 2 + multiValueColumns) {
+            throw new IllegalArgumentException("Need at least "
+                    + (2 + multiValueColumns) + " columns");
+        }
+        this.rows = rows;
+        this.columns = columns;
+        this.multiValueColumns = multiValueColumns;
+        this.valuesPerCell = valuesPerCell;
+    }
+
+    /**
+     * Writes the data.
+     *
+     * @param file the CSV file to write
+     * @throws IOException if the file could not be written
+     */
+    public void writeData(File file) throws IOException {
+        Random random = new Random(rows * 31L + columns);
+        Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), "UTF-8"), 1 << 16);
+        try {
+            StringBuilder line = new StringBuilder();
+            for (int c = 0; c < columns; c++) {
+                if (c > 0) {
+                    line.append(DELIMITER);
+                }
+                line.append(header(c));
+            }
+            out.write(line.append('\n').toString());
+            for (int r = 0; r < rows; r++) {
+                line.setLength(0);
+                line.append(r).append(DELIMITER).append(word(random))
+                        .append(' ').append(r);
+                for (int c = 2; c < columns; c++) {
+                    line.append(DELIMITER);
+                    if (c < 2 + multiValueColumns) {
+                        int values = 1 + random.nextInt(2 * valuesPerCell);
+                        for (int v = 0; v < values; v++) {
+                            if (v > 0) {
+                                line.append(MULTI_VALUE_DELIMITER);
+                            }
+                            line.append(word(random));
+                        }
+                    } else {
+                        text(random, line);
+                    }
+                }
+                out.write(line.append('\n').toString());
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes a harvest configuration for the data.
+     *
+     * @param file the configuration file to write
+     * @param data the CSV file
+     * @param options more harvester options, overriding the defaults
+     * @throws IOException if the file could not be written
+     */
+    @SuppressWarnings("unchecked")
+    public void writeConfig(File file, File data, Map<String, Object> options)
+            throws IOException {
+        JsonObject csv = new JsonObject();
+        csv.put("fileLocation", data.getAbsolutePath());
+        csv.put("idColumn", "ID");
+        csv.put("recordIDPrefix", "http://example.com/");
+        csv.put("delimiter", String.valueOf(DELIMITER));
+        csv.put("multiValueFieldDelimiter",
+                String.valueOf(MULTI_VALUE_DELIMITER));
+        csv.put("batchSize", 1000);
+        JSONArray multiValueFields = new JSONArray();
+        for (int c = 2; c < 2 + multiValueColumns; c++) {
+            multiValueFields.add(header(c));
+        }
+        csv.put("multiValueFields", multiValueFields);
+        if (options != null) {
+            csv.putAll(options);
+        }
+        JsonObject harvester = new JsonObject();
+        harvester.put("type", "csv");
+        harvester.put("csv", csv);
+        JsonObject config = new JsonObject();
+        config.put("harvester", harvester);
+        FileUtils.writeStringToFile(file, new JsonSimple(config).toString(true),
+                "UTF-8");
+    }
+
+    /**
+     * Gets the name of a column.
+     *
+     * @param column the index of the column
+     * @return the name
+     */
+    public String header(int column) {
+        if (column == 0) {
+            return "ID";
+        }
+        if (column == 1) {
+            return "Name";
+        }
+        if (column < 2 + multiValueColumns) {
+            return "Tags" + (column - 2);
+        }
+        return "Text" + (column - 2 - multiValueColumns);
+    }
+
+    private String word(Random random) {
+        return WORDS[random.nextInt(WORDS.length)];
+    }
+
+    private void text(Random random, StringBuilder line) {
+        int words = 1 + random.nextInt(6);
+        int kind = random.nextInt(10);
+        if (kind == 0) {
+            // a quoted value holding the delimiter
+            line.append('"');
+            for (int w = 0; w < words; w++) {
+                line.append(word(random)).append(DELIMITER).append(' ');
+            }
+            line.append('"');
+        } else if (kind == 1) {
+            // a quoted value holding quotes
+            line.append("\"the \"\"").append(word(random)).append("\"\"\"");
+        } else {
+            for (int w = 0; w < words; w++) {
+                if (w > 0) {
+                    line.append(' ');
+                }
+                line.append(word(random));
+            }
+        }
+    }
+
+    /**
+     * Writes data from the command line.
+     *
+     * @param args the CSV file, then optionally the number of rows, columns,
+     *            multi-value columns and values per multi-value cell
+     * @throws IOException if the file could not be written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: CsvGenerator <file> [rows] [columns]"
+                    + " [multiValueColumns] [valuesPerCell]");
+            System.exit(1);
+        }
+        int rows = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        int columns = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        int multi = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+        int values = args.length > 4 ? Integer.parseInt(args[4]) : 8;
+        new CsvGenerator(rows, columns, multi, values).writeData(new File(
+                args[0]));
+    }
+}
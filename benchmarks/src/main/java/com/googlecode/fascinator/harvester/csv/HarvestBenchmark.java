@@ -0,0 +1,105 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.googlecode.fascinator.api.storage.Storage;
+
+/**
+ * Harvests the whole synthetic file into the RAM storage plugin.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HarvestBenchmark {
+
+    /** The reader, as for the "reader" option */
+    @Param({ "opencsv", "mapped" })
+    public String reader;
+
+    /** Number of worker threads, as for the "threads" option */
+    @Param({ "1", "4" })
+    public int threads;
+
+    /** Whether writes are batched, as for the "batchWrites" option */
+    @Param({ "false", "true" })
+    public boolean batchWrites;
+
+    /** The storage */
+    private Storage storage;
+
+    /** The harvester */
+    private CSVHarvester harvester;
+
+    /**
+     * Creates an empty storage and a harvester for it.
+     *
+     * @param data the synthetic data
+     * @throws Exception if the harvester could not be created
+     */
+    @Setup(Level.Invocation)
+    public void setup(SyntheticData data) throws Exception {
+        Map<String, Object> options = new HashMap<String, Object>();
+        options.put("reader", reader);
+        options.put("threads", threads);
+        options.put("batchWrites", batchWrites);
+        storage = data.newStorage();
+        harvester = data.newHarvester("harvest", storage, options);
+    }
+
+    /**
+     * Shuts the harvester and storage down.
+     *
+     * @throws Exception if either could not be shut down
+     */
+    @TearDown(Level.Invocation)
+    public void shutdown() throws Exception {
+        harvester.shutdown();
+        storage.shutdown();
+    }
+
+    /**
+     * Harvests every row.
+     *
+     * @return the number of objects harvested
+     * @throws Exception if the harvest failed
+     */
+    @Benchmark
+    public int harvest() throws Exception {
+        int count = 0;
+        while (harvester.hasMoreObjects()) {
+            count += harvester.getObjectIdList().size();
+        }
+        return count;
+    }
+}
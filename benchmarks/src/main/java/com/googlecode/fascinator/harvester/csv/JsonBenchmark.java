@@ -0,0 +1,132 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.googlecode.fascinator.common.JsonSimple;
+
+/**
+ * Merges records into new payloads and serialises them, as
+ * <code>streamMergedJson</code> does for every merged row, or streams them
+ * as new payloads are written.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class JsonBenchmark {
+
+    /** Number of records serialised per operation */
+    private static final int RECORDS = 10000;
+
+    /** Whether payloads are pretty-printed */
+    @Param({ "true", "false" })
+    public boolean prettyPrint;
+
+    /** The harvester */
+    private CSVHarvester harvester;
+
+    /** The records */
+    private List<HarvestRecord> records;
+
+    /** The buffer payloads are written into */
+    private JsonBuffer buffer;
+
+    /**
+     * Builds the records and creates the harvester.
+     *
+     * @param data the synthetic data
+     * @throws Exception if the harvester could not be created
+     */
+    @Setup(Level.Trial)
+    public void setup(SyntheticData data) throws Exception {
+        Map<String, Object> options = new HashMap<String, Object>();
+        options.put("prettyPrint", prettyPrint);
+        harvester = data.newHarvester("json-" + prettyPrint,
+                data.newStorage(), options);
+        MultiValueSplitter splitter = new MultiValueSplitter(
+                CsvGenerator.MULTI_VALUE_DELIMITER);
+        records = new ArrayList<HarvestRecord>();
+        long rowNumber = 1;
+        for (String[] row : data.readRows()) {
+            if (records.size() == RECORDS) {
+                break;
+            }
+            records.add(harvester.createRecord(row, rowNumber++, splitter));
+        }
+        buffer = new JsonBuffer();
+    }
+
+    /**
+     * Shuts the harvester down.
+     *
+     * @throws Exception if the harvester could not be shut down
+     */
+    @TearDown(Level.Trial)
+    public void shutdown() throws Exception {
+        harvester.shutdown();
+    }
+
+    /**
+     * Merges every record into a new payload and serialises it.
+     *
+     * @param blackhole consumes the payloads
+     * @throws IOException if a payload could not be written
+     */
+    @Benchmark
+    public void serialise(Blackhole blackhole) throws IOException {
+        for (HarvestRecord record : records) {
+            blackhole.consume(harvester.streamMergedJson(record.getData(),
+                    record.getMetadata(), new JsonSimple(), buffer)
+                    .available());
+        }
+    }
+
+    /**
+     * Writes every record straight into a new payload, as new objects are
+     * stored when payloads are not pretty-printed.
+     *
+     * @param blackhole consumes the payloads
+     * @throws IOException if a payload could not be written
+     */
+    @Benchmark
+    public void stream(Blackhole blackhole) throws IOException {
+        for (HarvestRecord record : records) {
+            record.writeJson(buffer.writer());
+            blackhole.consume(buffer.toInputStream().available());
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reads the whole synthetic file with each row reader.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ParseBenchmark {
+
+    /** The reader, as for the "reader" option */
+    @Param({ "opencsv", "mapped" })
+    public String reader;
+
+    /**
+     * Reads every row.
+     *
+     * @param data the synthetic data
+     * @param blackhole consumes the rows
+     * @return the number of rows read
+     * @throws IOException if the data could not be read
+     */
+    @Benchmark
+    public int parse(SyntheticData data, Blackhole blackhole)
+            throws IOException {
+        RowReader rowReader = data.openReader(reader);
+        int count = 0;
+        try {
+            String[] row;
+            while ((row = rowReader.readNext()) != null) {
+                blackhole.consume(row);
+                count++;
+            }
+        } finally {
+            rowReader.close();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.googlecode.fascinator.common.JsonObject;
+
+/**
+ * Builds records from rows already in memory: column planning, multi-value
+ * splitting and filtering in <code>createRecord</code>, and OID hashing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RecordBenchmark {
+
+    /**
+     * The filters applied: "none", "exact" (an anchored literal on a
+     * multi-value field) or "pattern" (a regex on a single-value field)
+     */
+    @Param({ "none", "exact", "pattern" })
+    public String filter;
+
+    /** How OIDs are made: "md5" or "fast" */
+    @Param({ "md5", "fast" })
+    public String oidScheme;
+
+    /** The harvester */
+    private CSVHarvester harvester;
+
+    /** The rows */
+    private List<String[]> rows;
+
+    /** The record IDs */
+    private String[] ids;
+
+    /** The splitter for multi-value cells */
+    private MultiValueSplitter splitter;
+
+    /**
+     * Reads the rows and creates the harvester.
+     *
+     * @param data the synthetic data
+     * @throws Exception if the harvester could not be created
+     */
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setup(SyntheticData data) throws Exception {
+        Map<String, Object> options = new HashMap<String, Object>();
+        options.put("oidScheme", oidScheme);
+        if (!"none".equals(filter)) {
+            JsonObject json = new JsonObject();
+            if ("exact".equals(filter)) {
+                json.put("field", data.generator.header(2));
+                json.put("regex", "^cat$");
+            } else {
+                json.put("field", "Name");
+                json.put("regex", "o.*e");
+            }
+            JSONArray filters = new JSONArray();
+            filters.add(json);
+            options.put("filters", filters);
+        }
+        harvester = data.newHarvester("record-" + filter + "-" + oidScheme,
+                data.newStorage(), options);
+        rows = data.readRows();
+        ids = new String[rows.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = rows.get(i)[0];
+        }
+        splitter = new MultiValueSplitter(CsvGenerator.MULTI_VALUE_DELIMITER);
+    }
+
+    /**
+     * Shuts the harvester down.
+     *
+     * @throws Exception if the harvester could not be shut down
+     */
+    @TearDown(Level.Trial)
+    public void shutdown() throws Exception {
+        harvester.shutdown();
+    }
+
+    /**
+     * Builds a record from every row.
+     *
+     * @param blackhole consumes the records
+     */
+    @Benchmark
+    public void createRecords(Blackhole blackhole) {
+        long rowNumber = 1;
+        for (String[] row : rows) {
+            blackhole.consume(harvester.createRecord(row, rowNumber++,
+                    splitter));
+        }
+    }
+
+    /**
+     * Hashes the ID of every row into an OID.
+     *
+     * @param blackhole consumes the OIDs
+     */
+    @Benchmark
+    public void createOids(Blackhole blackhole) {
+        for (String id : ids) {
+            blackhole.consume(harvester.createOid(id));
+        }
+    }
+}
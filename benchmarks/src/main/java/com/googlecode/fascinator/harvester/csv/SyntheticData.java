@@ -0,0 +1,165 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.googlecode.fascinator.api.PluginManager;
+import com.googlecode.fascinator.api.harvester.Harvester;
+import com.googlecode.fascinator.api.storage.Storage;
+
+/**
+ * A synthetic CSV file shared by the benchmarks of a run. Its shape is set
+ * with JMH parameters, for example
+ * <code>-p rows=1000000 -p columns=40 -p valuesPerCell=30</code>.
+ */
+@State(Scope.Benchmark)
+public class SyntheticData {
+
+    /** Number of rows */
+    @Param("100000")
+    public int rows;
+
+    /** Number of columns */
+    @Param("20")
+    public int columns;
+
+    /** Number of multi-value columns */
+    @Param("2")
+    public int multiValueColumns;
+
+    /** Average number of values in a multi-value cell */
+    @Param("8")
+    public int valuesPerCell;
+
+    /** The generator of the data */
+    CsvGenerator generator;
+
+    /** Directory holding the data and configurations */
+    File dir;
+
+    /** The CSV file */
+    File data;
+
+    /**
+     * Writes the data.
+     *
+     * @throws IOException if the data could not be written
+     */
+    @Setup(Level.Trial)
+    public void writeData() throws IOException {
+        dir = File.createTempFile("csv-benchmark", "");
+        dir.delete();
+        dir.mkdirs();
+        data = new File(dir, "data.csv");
+        generator = new CsvGenerator(rows, columns, multiValueColumns,
+                valuesPerCell);
+        generator.writeData(data);
+    }
+
+    /**
+     * Deletes the data.
+     *
+     * @throws IOException if the data could not be deleted
+     */
+    @TearDown(Level.Trial)
+    public void deleteData() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    /**
+     * Reads every row of the data, without the header row.
+     *
+     * @return the rows
+     * @throws IOException if the data could not be read
+     */
+    List<String[]> readRows() throws IOException {
+        List<String[]> list = new ArrayList<String[]>(rows);
+        RowReader reader = openReader("opencsv");
+        try {
+            reader.readNext();
+            String[] row;
+            while ((row = reader.readNext()) != null) {
+                list.add(row);
+            }
+        } finally {
+            reader.close();
+        }
+        return list;
+    }
+
+    /**
+     * Opens the data.
+     *
+     * @param type the reader, "opencsv" or "mapped"
+     * @return the reader
+     * @throws IOException if the data could not be opened
+     */
+    RowReader openReader(String type) throws IOException {
+        if ("mapped".equals(type)) {
+            return new MappedCSVReader(data, CsvGenerator.DELIMITER);
+        }
+        return new OpenCSVRowReader(new InputStreamReader(new FileInputStream(
+                data), "UTF-8"), CsvGenerator.DELIMITER);
+    }
+
+    /**
+     * Creates an in-memory storage.
+     *
+     * @return the storage
+     * @throws Exception if the storage could not be created
+     */
+    Storage newStorage() throws Exception {
+        Storage storage = PluginManager.getStorage("ram");
+        storage.init("{}");
+        return storage;
+    }
+
+    /**
+     * Creates a harvester for the data.
+     *
+     * @param name a name for the configuration file
+     * @param storage the storage to harvest into
+     * @param options more harvester options
+     * @return the harvester
+     * @throws Exception if the harvester could not be created
+     */
+    CSVHarvester newHarvester(String name, Storage storage,
+            Map<String, Object> options) throws Exception {
+        File config = new File(dir, name + ".json");
+        generator.writeConfig(config, data, options);
+        Harvester harvester = PluginManager.getHarvester("csv", storage);
+        harvester.init(config);
+        return (CSVHarvester) harvester;
+    }
+}
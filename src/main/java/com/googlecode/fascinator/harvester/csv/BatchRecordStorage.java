@@ -0,0 +1,58 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.util.List;
+
+import com.googlecode.fascinator.api.storage.StorageException;
+
+/**
+ * May be implemented by a storage plugin that can write many records more
+ * efficiently than one object at a time.
+ * <p>
+ * When the harvester is configured with "batchWrites" and its storage
+ * implements this interface, each batch of records is handed to
+ * {@link #storeRecords(String, List, boolean, boolean)} instead of being
+ * written object by object. Implementations must leave storage in the same
+ * state as the harvester would: for each record, its "data" and "metadata"
+ * nodes are merged into those of the object's existing JSON payload (if any)
+ * when existing payloads are to be merged, and otherwise replace the payload
+ * as written by {@link HarvestRecord#writeJson(java.io.Writer)}. The
+ * "recordIDPrefix" node is set, the payload is pretty-printed if asked to be,
+ * its content type is "application/json" and the object's "render-pending"
+ * property is "true".
+ */
+public interface BatchRecordStorage {
+
+    /**
+     * Store a batch of records. Records are given in file order and each
+     * object appears at most once in a batch.
+     *
+     * @param payloadId the ID of the JSON payload to store records in
+     * @param records the records to store
+     * @param mergeExisting whether to merge each record into the existing
+     *            payload, rather than replace it
+     * @param prettyPrint whether to store the payload pretty-printed, rather
+     *            than compact
+     * @throws StorageException if an error occurs
+     */
+    void storeRecords(String payloadId, List<HarvestRecord> records,
+            boolean mergeExisting, boolean prettyPrint)
+            throws StorageException;
+}
@@ -0,0 +1,136 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+/**
+ * Chooses the number of rows in each batch of a harvest.
+ * <p>
+ * Without a target time or memory budget the size never changes. With a
+ * target time, the rate of each batch gives the size that would have taken
+ * the target time, and the next batch moves towards it, by at most a factor
+ * of two so that one slow batch does not swing the size. With a memory
+ * budget, a batch also ends once its rows are estimated to take the budget,
+ * and the size is kept to the rows that fit in it.
+ */
+class BatchSizer {
+
+    /** Estimated bytes held by a row, besides its cells */
+    private static final int ROW_OVERHEAD = 48;
+
+    /** Estimated bytes held by a cell, besides its characters */
+    private static final int CELL_OVERHEAD = 48;
+
+    /** Smallest size */
+    private final int min;
+
+    /** Largest size */
+    private final int max;
+
+    /** Target time of a batch in nanoseconds, or 0 */
+    private final long targetNanos;
+
+    /** Memory budget of a batch in bytes, or 0 */
+    private final long memoryBytes;
+
+    /** Rows in the next batch */
+    private int size;
+
+    /**
+     * Creates a sizer.
+     *
+     * @param initial the size of the first batch
+     * @param min the smallest size
+     * @param max the largest size
+     * @param targetNanos the target time of a batch in nanoseconds, or 0 to
+     *            keep the size
+     * @param memoryBytes the memory budget of a batch in bytes, or 0 for no
+     *            budget
+     */
+    BatchSizer(int initial, int min, int max, long targetNanos,
+            long memoryBytes) {
+        this.min = Math.max(1, min);
+        this.max = Math.max(this.min, max);
+        this.targetNanos = targetNanos;
+        this.memoryBytes = memoryBytes;
+        size = targetNanos > 0 || memoryBytes > 0 ? clamp(initial) : initial;
+    }
+
+    /**
+     * @return the number of rows in the next batch
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Estimates the memory held by a row, if there is a memory budget.
+     *
+     * @param columns the cells of the row
+     * @return the estimated bytes, or 0 without a budget
+     */
+    long weigh(String[] columns) {
+        if (memoryBytes <= 0) {
+            return 0;
+        }
+        long bytes = ROW_OVERHEAD;
+        for (String cell : columns) {
+            if (cell != null) {
+                bytes += CELL_OVERHEAD + 2L * cell.length();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Checks whether a batch is complete.
+     *
+     * @param rows the rows read in the batch
+     * @param bytes their estimated memory
+     * @return <code>true</code> if the batch should end
+     */
+    boolean full(int rows, long bytes) {
+        return rows >= size || (memoryBytes > 0 && bytes >= memoryBytes);
+    }
+
+    /**
+     * Chooses the size of the next batch from how the last one went.
+     *
+     * @param rows the rows read in the batch
+     * @param bytes their estimated memory
+     * @param nanos the time the batch took
+     */
+    void batchDone(int rows, long bytes, long nanos) {
+        if (rows == 0 || (targetNanos <= 0 && memoryBytes <= 0)) {
+            return;
+        }
+        long ideal = size;
+        if (targetNanos > 0) {
+            ideal = rows * targetNanos / Math.max(1, nanos);
+            ideal = Math.max(size / 2, Math.min(2L * size, ideal));
+        }
+        if (memoryBytes > 0 && bytes > 0) {
+            ideal = Math.min(ideal, rows * memoryBytes / bytes);
+        }
+        size = clamp(ideal);
+    }
+
+    private int clamp(long value) {
+        return (int) Math.max(min, Math.min(max, value));
+    }
+}
@@ -24,30 +24,37 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
 import java.io.Reader;
-import java.io.StringReader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.PatternSyntaxException;
+import java.util.zip.GZIPInputStream;
 
-import org.apache.commons.codec.digest.DigestUtils;
-import org.apache.commons.io.IOUtils;
-import org.json.simple.JSONArray;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.json.simple.JSONValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import au.com.bytecode.opencsv.CSVReader;
-
+import com.googlecode.fascinator.api.PluginException;
 import com.googlecode.fascinator.api.harvester.HarvesterException;
 import com.googlecode.fascinator.api.storage.DigitalObject;
 import com.googlecode.fascinator.api.storage.Payload;
+import com.googlecode.fascinator.api.storage.Storage;
 import com.googlecode.fascinator.api.storage.StorageException;
 import com.googlecode.fascinator.common.JsonObject;
 import com.googlecode.fascinator.common.JsonSimple;
@@ -59,20 +66,60 @@ import com.googlecode.fascinator.common.storage.StorageUtils;
  * <p>
  * Configuration options:
  * <ul>
- * <li>fileLocation: The location of the csv file (required)</li>
+ * <li>fileLocation: The location of the csv file, or of a directory or glob (such as "/data/daily/*.csv", with wildcards in the file name only) whose files are all harvested. Each file is harvested as if it were configured on its own, with its own header and OIDs, and its state files are named after the harvest configuration and the file. "-" harvests standard input, and a named pipe is read once as it is written. Not needed when the data is given with {@link #setSource(Reader)} (required otherwise)</li>
+ * <li>oidNamespace: Used in place of the file name when making OIDs, so that the OIDs do not depend on where the data comes from. Files of a directory or glob with the same namespace share their OIDs. Required when harvesting standard input or a source given with {@link #setSource(Reader)}, which have no file name (optional otherwise)</li>
+ * <li>fileThreads: With a directory or glob, the number of files harvested at once (defaults to 1)</li>
  * <li>idColumn: the column holding the primary key. 
  * 	If not provided, the row number will be used.</li>
  * <li>recordIDPrefix: Adds a prefix to the value found in the ID column.
  *	For example, setting this as "http://id.example.com/" with an ID value of "453"
  *	will result in http://id.example.com/453 as the ID. 
+ * <li>oidScheme: How the OID of a record is made from the file name, prefix and ID: "md5" (the default) hashes them with MD5, "fast" with a quicker non-cryptographic hash. The two give different OIDs, so changing the scheme re-creates every object (optional)</li>
  * <li>delimiter: The csv delimiter. Comma (,) is the default (optional)</li>
+ * <li>reader: How the file is read: "opencsv" (the default) or "mapped", which memory-maps the file and parses it as UTF-8 bytes, giving the same rows faster and only decoding the columns that are included, filtered on or hold the ID. "opencsv" parses every column, and only drops the other ones afterwards. "mapped" needs a single-byte delimiter and an uncompressed file (optional)</li>
+ * <li>decompressThreads: gzip files are recognised by their first bytes and decompressed while they are read, on background threads. The number of gzip members decompressed at once, for files of several members (defaults to 1). A ".gz" ending is left out of the file name the OIDs are made from, so a compressed file gives the same OIDs as the file uncompressed</li>
  * <li>ignoredFields: An array of fields (columns) ignored by the harvest.</li>
  * <li>includedFields: An array of fields (columns) included by the harvest.</li>
  * <li>multiValueFields: An array of fields (columns) that contain several values (optional)</li>
  * <li>multiValueFieldDelimiter: The delimiter for multi-value fields. Semi-colon (;) is the default (optional)</li>
  * <li>payloadId: The payload identifier used to store the JSON data (defaults to "metadata.json")</li>
- * <li>batchSize: The number of rows in the CSV file to process, before being harvested (defaults to 50)</li>
+ * <li>mergeExisting: Merge the data into the payload of an object that already exists, rather than overwriting it (defaults to true)</li>
+ * <li>prettyPrint: Store the JSON payload pretty-printed rather than compact (defaults to true). Compact payloads that are new, or not merged, are written straight from the cells of the row without building the data of the record first, so setting this to false is much cheaper for large harvests</li>
+ * <li>batchSize: The number of rows in the CSV file to process, before being harvested (defaults to 50). With batchTargetMillis or batchMemoryMB it is only the size of the first batch</li>
+ * <li>batchTargetMillis: Adapt the number of rows in each batch so that a batch takes about this long. Each batch is sized from the rate of the last, growing or shrinking by at most a factor of two. The sizes chosen are in the metrics (optional)</li>
+ * <li>batchMemoryMB: End a batch once its rows are estimated to take this much memory, and keep later batches to the rows that fit (optional)</li>
+ * <li>minBatchSize: The smallest batch when the size adapts (defaults to 10)</li>
+ * <li>maxBatchSize: The largest batch when the size adapts (defaults to 100000)</li>
+ * <li>threads: The number of worker threads that build and store records. 1 (the default) processes rows on the calling thread (optional)</li>
+ * <li>chunkSize: With more than 1 thread, the number of rows handed to a worker at a time (defaults to 100)</li>
+ * <li>queueSize: With more than 1 thread, the number of chunks that may wait for each worker before reading blocks (defaults to 4)</li>
+ * <li>batchWrites: Hold the records of each batch back and write them together at the end of the batch, once per object. If the storage implements {@link BatchRecordStorage} the whole batch is handed to it (defaults to false)</li>
+ * <li>aggregate: Fold the rows that share an ID into one object, written once. Where the rows hold different values for a field, the field holds all of them as an array, in file order. How far apart the rows of an object may be: "adjacent" when they follow each other, as in a file sorted by ID; "window" when they are within aggregateSize objects of each other, rows further apart being written separately; "sort" when they may be anywhere, the rows being sorted on disk, next to the state files, and the objects written batchSize at a time once the whole file has been read. Needs an idColumn, and checkpoints are ignored (optional)</li>
+ * <li>aggregateSize: The number of objects held with the "window" aggregation (defaults to 1000), or the number of rows held in memory while sorting with "sort" (defaults to 100000)</li>
+ * <li>changeDetection: Remember a fingerprint of the included fields of every row, and on the next harvest skip the rows that have not changed. Unchanged rows are not stored again and their OIDs are not returned (defaults to false)</li>
+ * <li>fingerprintFile: Where the fingerprints are kept between harvests (defaults to a ".fingerprints" file next to the harvest configuration)</li>
+ * <li>deletionDetection: Remember the OIDs produced by each harvest. Once the file has been harvested, the objects produced by the previous harvest but not by this one are returned by getDeletedObjectIdList, batchSize at a time. With a directory or glob, the OIDs are kept per file, so the objects of a file that is no longer there are not reported. Ignored when maxRows is set (defaults to false)</li>
+ * <li>oidIndexFile: Where the OIDs are kept between harvests (defaults to an ".oids" file next to the harvest configuration)</li>
+ * <li>oidSortRunSize: The number of OIDs held in memory while sorting them (defaults to 500000)</li>
+ * <li>checkpoint: Save how far the harvest has got at the end of every batch, and carry on from there if the harvest is started again before it finished. The file is read with the "mapped" reader whatever the reader option, so that a harvest that carries on goes straight to the byte offset of the next row. Ignored for compressed files, delimiters that are not a single byte and data that is not in a file, which cannot be read from an offset. Deletion detection is ignored when a harvest carries on (defaults to false)</li>
+ * <li>checkpointFile: Where the checkpoint is kept until the harvest finishes (defaults to a ".checkpoint" file next to the harvest configuration)</li>
+ * <li>knownObjects: Where to find out which objects already exist, once at the start of the harvest, so that new objects are created without first looking them up: "storage" lists the objects in storage, "oidIndex" reads the OIDs kept by the last harvest with deletionDetection (optional)</li>
+ * <li>trace: Log what happens to a sample of the rows, at INFO level. A map of the following (optional)
+ * <ul>
+ * 	<li>every: Trace every nth row in full: a failed filter or the data built for it (defaults to 0, none)</li>
+ * 	<li>rejected: Trace every row rejected by a filter (defaults to false)</li>
+ * </ul></li>
+ * <li>dryRun: Read, filter and build every record as a harvest would, but store nothing and keep no state: checkpoints, change and deletion detection and knownObjects are ignored. No object IDs are returned, as no objects are made. Once the file has been read, the number of rows each filter passed and rejected, how often each column holds a value, how many rows share the ID of an earlier row and a sample of the records are logged, and can be read with {@link #getDryRunProfile()} (defaults to false)</li>
+ * <li>dryRunSamples: The number of records logged as samples by a dry run (defaults to 5)</li>
+ * <li>jmx: Register the metrics of the harvest (see {@link #getMetrics()}) as an MBean named "com.googlecode.fascinator.harvester.csv:type=CSVHarvester,name=&lt;file name&gt;,id=&lt;n&gt;" until shutdown (defaults to false)</li>
+ * <li>timing: Time every stage of every row into the latency histograms of the metrics, at the cost of a few clock reads per row. The counters and batch times are kept either way (defaults to the value of jmx)</li>
+ * <li>shardCount: Split the harvest between this many harvesters, such as one on each of several nodes writing to the same storage, each harvesting its own share of the rows. The OIDs are the same as those of a single harvest, and the state files of each shard are kept apart (defaults to 1)</li>
+ * <li>shardIndex: The share harvested by this harvester, from 0 to shardCount - 1 (defaults to 0)</li>
+ * <li>shardBy: How rows are shared out: "range" (the default) gives each shard a range of the bytes of the file, starting at a row, and only that range is read, with the "mapped" reader. Quoted values may hold line breaks, as each shard finds the ranges by scanning the rows of the file before reading its own. It needs an idColumn that is included or filtered, so that it is read, and an uncompressed file, and deletion detection is ignored. "id" gives each shard the rows whose ID hashes to it, so all the rows of an object are harvested by the same shard, but every shard reads the whole file (optional)</li>
  * <li>maxRows: The number of rows to process where -1 means harvest all (defaults to -1), note that if filters are in place the maxRows applies to all rows not just the ones that pass the filter</li>
+ * <li>filter: A filter expression that must pass for a row to be imported, as well as any filters below. Expressions combine tests of fields with "and", "or" and "not", for example
+ * <code>{"or": [{"field": "population", "gte": 1000, "lt": 50000}, {"not": {"field": "country code", "in": ["AU", "NZ"]}}]}</code>.
+ * A field is tested with one of "regex", "equals", "in" (an array of values), "inFile" (a file of values, one per line) or the numeric bounds "gt", "gte", "lt" and "lte". An object holding more than one operator or test, or an unknown key, is an error (optional)</li>
  * <li>filters: If a filter is provided it must match for a row to be imported. The filters are defined as an array of a map of the following
  * <ul>
  * 	<li>field: Name of the field (column), note that this field can be one that's being ignored</li>
@@ -126,7 +173,9 @@ public class CSVHarvester extends GenericHarvester {
 		
 		private String field;
 		private MultiMatchType type;
-		private Pattern regex;
+		private ValueMatcher regex;
+		private AtomicLong rejections;
+		private AtomicLong passes;
 	
 		/**
 		 * Creates a filter from a JSON object
@@ -153,11 +202,14 @@ public class CSVHarvester extends GenericHarvester {
 				throw new HarvesterException("In a filter definition, missing the mandatory attribute 'regex'");
 			}
 			try {
-				regex = Pattern.compile(regexStr);
-//				regex = Pattern.compile(regexStr,Pattern.MULTILINE);
+				regex = ValueMatcher.compile(regexStr);
 			} catch (PatternSyntaxException e) {
 				throw new HarvesterException("In a filter definition, provided regex was invalid " + e.getMessage(),e);
 			}
+			rejections = metrics.addFilter(field + " " + this);
+			if (profile != null) {
+				passes = profile.addFilter(field + " " + this);
+			}
 		}
 		
 		public String getField() {
@@ -170,7 +222,7 @@ public class CSVHarvester extends GenericHarvester {
 		 * @return If the parameter matches our filter
 		 */
 		public boolean matches(String str) {
-			return regex.matcher(str).find();
+			return regex.matches(str);
 		}
 		
 		/**
@@ -179,11 +231,22 @@ public class CSVHarvester extends GenericHarvester {
 		 * @return if the array of values passes the filter
 		 */
 		public boolean matches(String[] strs) {
-			if (strs == null || strs.length == 0) {
+			return matches(strs, strs == null ? 0 : strs.length);
+		}
+
+		/**
+		 * Returns if the first values of an array pass the filter, as for
+		 * {@link #matches(String[])}.
+		 * @param strs An array of values
+		 * @param count The number of values to test
+		 * @return if the values pass the filter
+		 */
+		public boolean matches(String[] strs, int count) {
+			if (count <= 0) {
 				return false;
 			}
-			for(String str : strs) {
-				if (matches(str)) {
+			for (int i = 0; i < count; i++) {
+				if (matches(strs[i])) {
 					if (type == MultiMatchType.ANY) {
 						return true;
 					}
@@ -196,9 +259,234 @@ public class CSVHarvester extends GenericHarvester {
 		
 		@Override
 		public String toString() {
-			return "Filter (" + type + "," + regex.pattern() + ")"; 
+			return "Filter (" + type + "," + regex + ")"; 
+		}
+	}
+
+	/**
+	 * Builds and stores the rows of one thread. When writes are batched the
+	 * records are held back until the end of the batch, and when rows are
+	 * aggregated until all the rows of their object have been seen.
+	 */
+	private class RowProcessor implements RowPipeline.RowHandler, RowAggregator.Output {
+
+		/** Records waiting to be written, or null if writes are not batched */
+		private List<HarvestRecord> pending;
+
+		/** Fingerprints of the pending records, in the same order */
+		private List<Long> pendingFingerprints;
+
+		/** Folds the rows of each object together, or null */
+		private RowAggregator aggregator;
+
+		/** OIDs of the aggregated objects stored since the end of the last batch */
+		private List<String> aggregated = new ArrayList<String>();
+
+		/** Payloads are written into this buffer */
+		private JsonBuffer buffer = new JsonBuffer();
+
+		/** Multi-value cells are split with this splitter */
+		private MultiValueSplitter splitter = new MultiValueSplitter(multiValueFieldDelimiter);
+
+		private RowProcessor() throws HarvesterException {
+			if (batchWrites) {
+				pending = new ArrayList<HarvestRecord>();
+				pendingFingerprints = new ArrayList<Long>();
+			}
+			if (aggregateMode != null) {
+				try {
+					aggregator = new RowAggregator(aggregateMode, aggregateSize,
+							aggregateDir, idPrefix, idIndex, recordWriter, this);
+				} catch (IOException ioe) {
+					throw new HarvesterException(ioe);
+				}
+				aggregators.add(aggregator);
+			}
+		}
+
+		@Override
+		public String processRow(String[] columns, long rowNumber) throws HarvesterException {
+			HarvestRecord record = createRecord(columns, rowNumber, splitter);
+			if (record == null) {
+				return null;
+			}
+			if (profile != null) {
+				profile.rowPassed(record, columns);
+			}
+			long fingerprint = fingerprints != null ? fingerprint(columns) : 0;
+			if (aggregator != null) {
+				try {
+					aggregator.add(record, columns, rowNumber, fingerprint);
+				} catch (IOException ioe) {
+					throw new HarvesterException(ioe);
+				}
+				return null;
+			}
+			return store(record, fingerprint);
+		}
+
+		@Override
+		public void write(HarvestRecord record, long fingerprint) throws HarvesterException {
+			String oid = store(record, fingerprint);
+			if (oid != null) {
+				aggregated.add(oid);
+			}
+		}
+
+		/**
+		 * Stores the record of an object, unless it is unchanged. Its
+		 * fingerprint and OID are only recorded once it has been written, so
+		 * that a failed write is tried again by the next harvest.
+		 *
+		 * @param record the record
+		 * @param fingerprint a fingerprint of its rows
+		 * @return the OID of the object, or null if it is unchanged or this is
+		 *         a dry run
+		 * @throws HarvesterException if an error occurs
+		 */
+		private String store(HarvestRecord record, long fingerprint) throws HarvesterException {
+			if (dryRun) {
+				// write the payload as it would be stored, and no further
+				long start = now();
+				try {
+					record.writeJson(buffer.writer());
+				} catch (IOException ioe) {
+					throw new HarvesterException(ioe);
+				}
+				metrics.record(HarvestMetrics.Stage.BUILD, now() - start);
+				// nothing was stored, so there is no object to report
+				return null;
+			}
+			if (fingerprints != null
+					&& fingerprints.unchanged(record.getOid(), fingerprint)) {
+				// unchanged since the last harvest, but still produced
+				metrics.rowUnchanged();
+				stored(record, fingerprint);
+				return null;
+			}
+			if (pending != null) {
+				pending.add(record);
+				pendingFingerprints.add(fingerprint);
+				if (pending.size() >= batchSize) {
+					// aggregated objects are not bounded by the rows of a batch
+					storePending();
+				}
+			} else {
+				storeRecord(record, buffer);
+				stored(record, fingerprint);
+			}
+			return record.getOid();
+		}
+
+		/**
+		 * Records that an object is in storage, for change and deletion
+		 * detection.
+		 *
+		 * @param record the record
+		 * @param fingerprint a fingerprint of its rows
+		 * @throws HarvesterException if an error occurs
+		 */
+		private void stored(HarvestRecord record, long fingerprint) throws HarvesterException {
+			if (fingerprints != null) {
+				fingerprints.update(record.getOid(), fingerprint);
+			}
+			if (producedOids != null) {
+				try {
+					producedOids.add(record.getOid());
+				} catch (IOException ioe) {
+					throw new HarvesterException(ioe);
+				}
+			}
+		}
+
+		/**
+		 * Writes the records held back, if writes are batched.
+		 *
+		 * @throws HarvesterException if an error occurs
+		 */
+		private void storePending() throws HarvesterException {
+			if (pending != null && !pending.isEmpty()) {
+				try {
+					storeRecords(pending);
+					for (int i = 0; i < pending.size(); i++) {
+						stored(pending.get(i), pendingFingerprints.get(i));
+					}
+				} finally {
+					pending.clear();
+					pendingFingerprints.clear();
+				}
+			}
+		}
+
+		@Override
+		public Collection<String> finishBatch(boolean last) throws HarvesterException {
+			try {
+				if (aggregator != null && last) {
+					try {
+						// sorted objects are written a batch at a time
+						aggregator.finish(batchSize);
+					} catch (IOException ioe) {
+						throw new HarvesterException(ioe);
+					}
+				}
+			} finally {
+				storePending();
+			}
+			List<String> stored = new ArrayList<String>(aggregated);
+			aggregated.clear();
+			return stored;
 		}
 	}
+
+	/**
+	 * A single column of the data, compiled from the configuration in
+	 * <code>init()</code> so that rows can be processed by index alone.
+	 */
+	private static class Column {
+
+		/** Position of the column in each row */
+		private int index;
+
+		/** Field name (column) */
+		private String field;
+
+		/** Whether the value is stored in the record */
+		private boolean include;
+
+		/** Whether the value contains more than 1 value */
+		private boolean multiValue;
+
+		/** Whether the value is the record ID */
+		private boolean id;
+	}
+
+	/**
+	 * A filter on one column. Rows are filtered before any of their data is
+	 * built, running the filters in order of their cost per rejection.
+	 */
+	private static class FilterStep {
+
+		/** Position of the column in each row */
+		private int index;
+
+		/** Field name (column) */
+		private String field;
+
+		/** Whether the value contains more than 1 value */
+		private boolean multiValue;
+
+		/** The filter */
+		private Filter filter;
+
+		/** Estimated cost of running the filter */
+		private int cost;
+
+		/** Expected cost per rejected row, lowest first */
+		private double score;
+
+		/** Rejections of the filter when the order was last chosen */
+		private long rejectionsBefore;
+	}
 	
     /** Default column delimiter */
     private static final char DEFAULT_DELIMITER = ',';
@@ -208,9 +496,44 @@ public class CSVHarvester extends GenericHarvester {
 
     /** Default batch size */
     private static final int DEFAULT_BATCH_SIZE = 50;
+
+    /** Default smallest batch size, when it adapts */
+    private static final int DEFAULT_MIN_BATCH_SIZE = 10;
+
+    /** Default largest batch size, when it adapts */
+    private static final int DEFAULT_MAX_BATCH_SIZE = 100000;
     
 	private static final char DEFAULT_MULTI_VALUE_FIELD_DELIMITER = ';';
 
+    /** Default rows per chunk handed to a worker thread */
+    private static final int DEFAULT_CHUNK_SIZE = 100;
+
+    /** Default chunks queued per worker thread */
+    private static final int DEFAULT_QUEUE_SIZE = 4;
+
+    /** Extra cost of splitting a multi-value cell to filter it */
+    private static final int MULTI_VALUE_FILTER_COST = 8;
+
+    /** Orders filter steps by their score */
+    private static final Comparator<FilterStep> FILTER_ORDER = new Comparator<FilterStep>() {
+        @Override
+        public int compare(FilterStep a, FilterStep b) {
+            return Double.compare(a.score, b.score);
+        }
+    };
+
+    /** Default number of OIDs sorted in memory */
+    private static final int DEFAULT_OID_SORT_RUN_SIZE = 500000;
+
+    /** Default number of records kept as samples in a dry run */
+    private static final int DEFAULT_DRY_RUN_SAMPLES = 5;
+
+    /** Default number of objects held when aggregating within a window */
+    private static final int DEFAULT_AGGREGATE_WINDOW = 1000;
+
+    /** Default number of rows held in memory when aggregating by sorting */
+    private static final int DEFAULT_AGGREGATE_RUN_SIZE = 100000;
+
     /** Logging */
     private Logger log = LoggerFactory.getLogger(CSVHarvester.class);
 
@@ -244,29 +567,228 @@ public class CSVHarvester extends GenericHarvester {
     /** Payload ID */
     private String payloadId;
 
+    /** Whether existing payloads are merged rather than overwritten */
+    private boolean mergeExisting;
+
+    /** Whether payloads are pretty-printed */
+    private boolean prettyPrint;
+
     /** Batch size */
     private int batchSize;
 
+    /** Chooses the number of rows in each batch */
+    private BatchSizer batchSizer;
+
     /** Current row */
     private long currentRow;
 
     /** Whether or not there are more files to harvest */
     private boolean hasMore;
 
+    /** Whether the harvest state has been saved */
+    private boolean harvestFinished;
+
+    /** Whether the whole file has been read, but aggregated objects are left */
+    private boolean draining;
+
     /** CSV Reader */
-    private CSVReader csvReader;
+    private RowReader csvReader;
 
     /** File name */
     private String filename;
 
+    /** Whether the file is gzip compressed */
+    private boolean gzipped;
+
+    /** Number of gzip members decompressed at once */
+    private int decompressThreads;
+
+    /** Turns record IDs into OIDs */
+    private OidGenerator oidGenerator;
+
     /** A list of filters by field name */
     private Map<String,List<Filter>> filters;
+
+    /** Columns that are included or filtered, in row order */
+    private Column[] columnPlan;
+
+    /** Turns the included columns of a row into data */
+    private RecordWriter recordWriter;
+
+    /**
+     * Whether new payloads are written straight from the row, which is only
+     * done when they are not pretty-printed
+     */
+    private boolean streamJson;
+
+    /** Filters in the order they are run */
+    private volatile FilterStep[] filterPlan;
+
+    /** The filter expression, or null */
+    private RowFilter rowFilter;
+
+    /** Rows rejected by the filter expression */
+    private AtomicLong rowFilterRejections;
+
+    /** Rows passed by the filter expression, counted in a dry run */
+    private AtomicLong rowFilterPasses;
+
+    /** Whether rows are processed without storing anything */
+    private boolean dryRun;
+
+    /** What a dry run found out, or null */
+    private DryRunProfile profile;
+
+    /** Index of the ID column, or -1 to use the row number */
+    private int idIndex;
+
+    /** Whether records are written at the end of each batch */
+    private boolean batchWrites;
+
+    /** Traces a sample of the rows */
+    private RowTracer tracer;
+
+    /** Worker threads, or null to process rows on the calling thread */
+    private RowPipeline pipeline;
+
+    /** Processes rows on the calling thread when there are no workers */
+    private RowProcessor serialProcessor;
+
+    /** The harvest configuration file, if there is one */
+    private File configFile;
+
+    /** Fingerprints of the harvested rows, or null without change detection */
+    private FingerprintIndex fingerprints;
+
+    /** Where the fingerprints are kept between harvests */
+    private File fingerprintFile;
+
+    /** OIDs produced by this harvest, or null without deletion detection */
+    private OidIndex producedOids;
+
+    /** Objects known to exist, or null to look each object up */
+    private KnownObjects knownObjects;
+
+    /** Where the checkpoint is kept, or null without checkpoints */
+    private File checkpointFile;
+
+    /** Hash of the header, kept in checkpoints */
+    private long headerHash;
+
+    /** Counters and latencies of the harvest */
+    private HarvestMetrics metrics;
+
+    /** The name the metrics are registered under in JMX, or null */
+    private ObjectName metricsName;
+
+    /** The harvest of several files this file belongs to, or null */
+    private final CSVHarvester parent;
+
+    /** Added to the names of state files, to keep those of each file and shard apart */
+    private String stateQualifier;
+
+    /** The files of a directory or glob being harvested, or null */
+    private MultiFileHarvest fileHarvest;
+
+    /** Data given by the embedding application instead of a file, or null */
+    private Reader source;
+
+    /** How far apart the rows of an object may be, or null not to aggregate */
+    private RowAggregator.Mode aggregateMode;
+
+    /** Objects held in window mode, or rows held while sorting */
+    private int aggregateSize;
+
+    /** Where rows are sorted when aggregating by sorting */
+    private File aggregateDir;
+
+    /** The number of shards the harvest is split into */
+    private int shardCount;
+
+    /** The shard harvested by this harvester */
+    private int shardIndex;
+
+    /** Whether rows are shared between shards by the hash of their ID */
+    private boolean shardById;
+
+    /** The end of the byte range of this shard */
+    private long shardEnd = Long.MAX_VALUE;
+
+    /** The aggregators of all threads, discarded at shutdown */
+    private final List<RowAggregator> aggregators = Collections
+            .synchronizedList(new ArrayList<RowAggregator>());
     
     /**
      * Constructs the CSV harvester plugin.
      */
     public CSVHarvester() {
+        this(null, null);
+    }
+
+    /**
+     * Constructs the harvester of one file of a directory or glob. It shares
+     * the metrics and known objects of the parent, and keeps its state files
+     * next to those of the parent, named after the file.
+     *
+     * @param parent the harvester of the directory or glob, or null
+     * @param dataFile the file, or null
+     */
+    private CSVHarvester(CSVHarvester parent, File dataFile) {
         super("csv", "CSV Harvester");
+        this.parent = parent;
+        if (parent != null) {
+            configFile = parent.configFile;
+            stateQualifier = "-" + dataFile.getName();
+        } else {
+            stateQualifier = "";
+        }
+    }
+
+    /**
+     * Initialise the CSV harvester plugin from a configuration file. The
+     * location of the file is kept so that harvest state can be stored next
+     * to it.
+     *
+     * @param jsonFile the harvest configuration
+     * @throws HarvesterException if an error occurred
+     */
+    @Override
+    public void init(File jsonFile) throws HarvesterException {
+        configFile = jsonFile;
+        try {
+            super.init(jsonFile);
+        } catch (HarvesterException ex) {
+            throw ex;
+        } catch (PluginException ex) {
+            throw new HarvesterException(ex);
+        }
+    }
+
+    /**
+     * Sets the data to harvest, instead of the file named by the fileLocation
+     * option. The data is read once, as it arrives, and is closed when the
+     * harvest is shut down. The oidNamespace option is required. Must be
+     * called before <code>init()</code>.
+     *
+     * @param source the CSV data
+     */
+    public void setSource(Reader source) {
+        this.source = source;
+    }
+
+    /**
+     * Sets the data to harvest as UTF-8 bytes, which may be gzip compressed,
+     * as for {@link #setSource(Reader)}.
+     *
+     * @param source the CSV data
+     * @throws HarvesterException if the data could not be read
+     */
+    public void setSource(InputStream source) throws HarvesterException {
+        try {
+            this.source = openStream(source, "source");
+        } catch (IOException ioe) {
+            throw new HarvesterException(ioe);
+        }
     }
 
     /**
@@ -279,14 +801,47 @@ public class CSVHarvester extends GenericHarvester {
         JsonSimple options = new JsonSimple(getJsonConfig().getObject("harvester", "csv"));
 
         String filePath = options.getString(null, "fileLocation");
-        if (filePath == null) {
-            throw new HarvesterException("No data file provided!");
+        String oidNamespace = options.getString(null, "oidNamespace");
+        File csvDataFile = null;
+        try {
+            if (source == null && "-".equals(filePath)) {
+                source = openStream(System.in, "stdin");
+            }
+            if (source == null) {
+                if (filePath == null) {
+                    throw new HarvesterException("No data file provided!");
+                }
+                csvDataFile = new File(filePath);
+                List<File> files = parent == null ? MultiFileHarvest.findFiles(csvDataFile) : null;
+                if (files != null) {
+                    initFiles(options, csvDataFile, files);
+                    return;
+                }
+                if (!csvDataFile.exists()) {
+                    throw new HarvesterException("Could not find CSV file '" + filePath + "'");
+                }
+                filename = csvDataFile.getName();
+                if (!csvDataFile.isFile()) {
+                    // a named pipe can only be read once
+                    source = openStream(new FileInputStream(csvDataFile), filename);
+                } else {
+                    gzipped = isCompressed(csvDataFile);
+                }
+                if (gzipped && filename.endsWith(".gz")) {
+                    filename = filename.substring(0, filename.length() - 3);
+                }
+            }
+        } catch (IOException ioe) {
+            throw new HarvesterException(ioe);
         }
-        File csvDataFile = new File(filePath);
-        if (csvDataFile == null || !csvDataFile.exists()) {
-            throw new HarvesterException("Could not find CSV file '" + filePath + "'");
+        if (oidNamespace != null) {
+            filename = oidNamespace;
+        } else if (csvDataFile == null) {
+            throw new HarvesterException("An oidNamespace is needed to harvest data that is not in a file");
         }
-        filename = csvDataFile.getName();
+        decompressThreads = options.getInteger(1, "decompressThreads");
+        metrics = parent != null ? parent.metrics : new HarvestMetrics(
+                options.getBoolean(options.getBoolean(false, "jmx"), "timing"));
 
         idPrefix = options.getString("", "recordIDPrefix");
         maxRows = options.getInteger(-1, "maxRows");
@@ -296,17 +851,68 @@ public class CSVHarvester extends GenericHarvester {
         multiValueFields = getStringList(options, "multiValueFields");
         multiValueFieldDelimiter = options.getString(String.valueOf(DEFAULT_MULTI_VALUE_FIELD_DELIMITER), "multiValueFieldDelimiter").charAt(0);
         payloadId = options.getString(DEFAULT_PAYLOAD_ID, "payloadId");
+        mergeExisting = options.getBoolean(true, "mergeExisting");
+        prettyPrint = options.getBoolean(true, "prettyPrint");
         batchSize = options.getInteger(DEFAULT_BATCH_SIZE, "batchSize");
+        batchSizer = new BatchSizer(batchSize,
+                options.getInteger(DEFAULT_MIN_BATCH_SIZE, "minBatchSize"),
+                options.getInteger(DEFAULT_MAX_BATCH_SIZE, "maxBatchSize"),
+                options.getInteger(0, "batchTargetMillis") * 1000000L,
+                options.getInteger(0, "batchMemoryMB") * 1024L * 1024L);
+        batchSize = batchSizer.size();
+        metrics.setBatchSize(batchSize);
+        oidGenerator = createOidGenerator(options.getString("md5", "oidScheme"));
         hasMore = true;
+        dryRun = options.getBoolean(false, "dryRun");
+        if (dryRun) {
+            log.info("Dry run of '{}', nothing will be stored", filename);
+        }
+
+        shardCount = options.getInteger(1, "shardCount");
+        shardIndex = options.getInteger(0, "shardIndex");
+        if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount) {
+            throw new HarvesterException("Invalid shardIndex " + shardIndex
+                    + " of shardCount " + shardCount);
+        }
+        boolean rangeShard = false;
+        if (shardCount > 1) {
+            String shardBy = options.getString("range", "shardBy");
+            if ("id".equals(shardBy)) {
+                shardById = true;
+            } else if ("range".equals(shardBy)) {
+                if (csvDataFile == null || source != null || gzipped) {
+                    throw new HarvesterException("Range shards need an uncompressed file, use shardBy id for '" + filename + "'");
+                }
+                if (delimiter >= 0x80) {
+                    throw new HarvesterException("Range shards need a single-byte delimiter, use shardBy id");
+                }
+                if (options.getString(null, "idColumn") == null) {
+                    throw new HarvesterException("Range shards need an idColumn, as row numbers are not known");
+                }
+                rangeShard = true;
+            } else {
+                throw new HarvesterException("Invalid shardBy '" + shardBy
+                        + "', valid values are range and id");
+            }
+            stateQualifier += "-shard" + shardIndex;
+        }
                 
         if (delimiter == multiValueFieldDelimiter) {
             throw new HarvesterException("Cannot parse CSV: The requested delimiters for the CSV and multivalue fields are the same: " + delimiter);
         }
+
+        boolean checkpoint = !dryRun && options.getBoolean(false, "checkpoint");
+        if (checkpoint && (csvDataFile == null || source != null || gzipped
+                || delimiter >= 0x80)) {
+            log.warn("Checkpoints ignored, '{}' cannot be read from a byte offset", filename);
+            checkpoint = false;
+        }
         
         try {
-            // open the CSV file for reading
-            Reader fileReader = new InputStreamReader(new FileInputStream(csvDataFile), "UTF-8");
-            csvReader = new CSVReader(fileReader, delimiter);
+            // open the CSV file for reading, checkpoints need byte offsets
+            csvReader = source != null
+                    ? openReader(options.getString("opencsv", "reader"), source)
+                    : openReader(rangeShard || checkpoint ? "mapped" : options.getString("opencsv", "reader"), csvDataFile);
 
             // configure the data fields
             if (options.getBoolean(true, "headerRow")) {
@@ -314,6 +920,13 @@ public class CSVHarvester extends GenericHarvester {
             } else {
                 dataFields = getStringList(options, "headerList");
             }
+            if (rangeShard) {
+                openShard(csvDataFile);
+            }
+            if (dryRun) {
+                profile = new DryRunProfile(dataFields,
+                        options.getInteger(DEFAULT_DRY_RUN_SAMPLES, "dryRunSamples"));
+            }
 
             // check that the specified id column is valid
             idColumn = options.getString(null, "idColumn");
@@ -339,48 +952,739 @@ public class CSVHarvester extends GenericHarvester {
             		existingFilters.add(filter);
             	}
             }
-            
-            
+
+            JsonObject expression = options.getObject("filter");
+            if (expression != null) {
+                rowFilter = RowFilter.compile(new JsonSimple(expression), dataFields, multiValueFields);
+                rowFilterRejections = metrics.addFilter("filter " + rowFilter);
+                if (profile != null) {
+                    rowFilterPasses = profile.addFilter("filter " + rowFilter);
+                }
+            }
+
+            columnPlan = compileColumnPlan();
+            filterPlan = compileFilterPlan();
+            recordWriter = compileRecordWriter();
+            streamJson = !prettyPrint && recordWriter.canStream();
+            headerHash = Checkpoint.hash(dataFields);
         } catch (IOException ioe) {
             throw new HarvesterException(ioe);
         }
-    }
+        if (rangeShard && idIndex < 0) {
+            // a column that is neither included nor filtered is not read
+            throw new HarvesterException("Range shards need the idColumn '"
+                    + idColumn + "' to be included or filtered, as row numbers are not known");
+        }
 
-    /**
-     * Gets a string list from a JsonSimple object. Convenience method to return
-     * an empty list instead of null if the node was not found.
-     *
-     * @param json a JsonSimple object
-     * @param path path to the node
-     * @return string list found at node, or empty if not found
-     */
-    private List<String> getStringList(JsonSimple json, Object... path) {
-        List<String> list = json.getStringList(path);
-        if (list == null) {
-            list = Collections.emptyList();
+        String aggregate = options.getString(null, "aggregate");
+        if (aggregate != null) {
+            aggregateMode = parseAggregateMode(aggregate);
+            if (idIndex < 0) {
+                throw new HarvesterException("Cannot aggregate rows without an idColumn");
+            }
+            aggregateSize = options.getInteger(aggregateMode == RowAggregator.Mode.SORT
+                    ? DEFAULT_AGGREGATE_RUN_SIZE : DEFAULT_AGGREGATE_WINDOW, "aggregateSize");
+            aggregateDir = getStateBase(csvDataFile).getAbsoluteFile().getParentFile();
         }
-        return list;
-    }
 
-    /**
-     * Shutdown the plugin.
-     * 
-     * @throws HarvesterException if an error occurred
-     */
-    @Override
-    public void shutdown() throws HarvesterException {
-        if (csvReader != null) {
+        boolean resumed = false;
+        if (aggregateMode != null && checkpoint) {
+            log.warn("Checkpoints ignored, aggregated rows are held back between batches");
+        } else if (checkpoint) {
+            checkpointFile = getStateFile(options, "checkpointFile",
+                    ".checkpoint", csvDataFile);
             try {
-                csvReader.close();
+                resumed = resume(Checkpoint.load(checkpointFile), csvDataFile);
             } catch (IOException ioe) {
-                log.warn("Failed to close CSVReader!", ioe);
+                throw new HarvesterException(ioe);
             }
-            csvReader = null;
+        }
+
+        if (!dryRun) {
+            // a dry run profiles every column
+            csvReader.setProjection(compileProjection());
+        }
+
+        if (!dryRun && options.getBoolean(false, "changeDetection")) {
+            fingerprintFile = getStateFile(options, "fingerprintFile",
+                    ".fingerprints", csvDataFile);
+            try {
+                fingerprints = FingerprintIndex.load(fingerprintFile);
+            } catch (IOException ioe) {
+                throw new HarvesterException(ioe);
+            }
+            if (resumed) {
+                // the rows before the checkpoint are not seen again
+                fingerprints.markAllSeen();
+            }
+        }
+
+        File oidIndexFile = getStateFile(options, "oidIndexFile", ".oids",
+                csvDataFile);
+        if (!dryRun && options.getBoolean(false, "deletionDetection")) {
+            if (maxRows > 0) {
+                log.warn("Deletion detection ignored, only {} rows will be harvested", maxRows);
+            } else if (resumed) {
+                log.warn("Deletion detection ignored, the harvest carries on from row {}", currentRow);
+            } else if (rangeShard) {
+                log.warn("Deletion detection ignored, rows move between range shards as the file changes");
+            } else {
+                producedOids = new OidIndex(oidIndexFile, options.getInteger(
+                        DEFAULT_OID_SORT_RUN_SIZE, "oidSortRunSize"));
+            }
+        }
+
+        String knownObjectsSource = dryRun ? null : options.getString(null, "knownObjects");
+        if ("storage".equals(knownObjectsSource)) {
+            knownObjects = parent != null ? parent.knownObjects
+                    : KnownObjects.fromStorage(getStorage().getObjectIdList());
+        } else if ("oidIndex".equals(knownObjectsSource)) {
+            try {
+                knownObjects = KnownObjects.fromIndex(oidIndexFile);
+            } catch (IOException ioe) {
+                throw new HarvesterException(ioe);
+            }
+        } else if (knownObjectsSource != null) {
+            throw new HarvesterException("Invalid knownObjects '" + knownObjectsSource
+                    + "', valid values are storage and oidIndex");
+        }
+        if (knownObjects != null) {
+            log.info("{} objects known to exist", knownObjects.size());
+        }
+
+        tracer = new RowTracer(options.getInteger(0, "trace", "every"),
+                options.getBoolean(false, "trace", "rejected"));
+
+        if (parent == null && options.getBoolean(false, "jmx")) {
+            registerMetrics();
+        }
+
+        batchWrites = options.getBoolean(false, "batchWrites");
+        int threads = options.getInteger(1, "threads");
+        if (threads > 1) {
+            int chunkSize = options.getInteger(DEFAULT_CHUNK_SIZE, "chunkSize");
+            int queueSize = options.getInteger(DEFAULT_QUEUE_SIZE, "queueSize");
+            RowProcessor[] processors = new RowProcessor[threads];
+            for (int i = 0; i < threads; i++) {
+                processors[i] = new RowProcessor();
+            }
+            pipeline = new RowPipeline("CSVHarvester-" + filename, processors,
+                    chunkSize, queueSize);
+            log.info("Processing rows with {} worker threads", threads);
+        } else {
+            serialProcessor = new RowProcessor();
         }
     }
 
     /**
-     * Check if there are more objects to harvest.
+     * Gets a file used to keep harvest state between runs. Unless configured,
+     * it is placed next to the harvest configuration file, or next to the
+     * data file if the configuration was not read from a file. Without either
+     * it is named after the OID namespace, in the working directory.
+     *
+     * @param options the harvester configuration
+     * @param option name of the option giving the file location
+     * @param suffix added to the configuration (or data) file name
+     * @param dataFile the CSV data file, or null
+     * @return the state file
+     */
+    private File getStateFile(JsonSimple options, String option,
+            String suffix, File dataFile) {
+        String path = options.getString(null, option);
+        if (path != null) {
+            return new File(path + stateQualifier);
+        }
+        File base = getStateBase(dataFile);
+        String name = base.getName();
+        if (name.endsWith(".json")) {
+            name = name.substring(0, name.length() - 5);
+        }
+        return new File(base.getAbsoluteFile().getParentFile(),
+                name + stateQualifier + suffix);
+    }
+
+    /**
+     * Gets the file that state files are named after and kept next to,
+     * unless configured.
+     *
+     * @param dataFile the CSV data file, or null
+     * @return the harvest configuration file, or else the data file
+     */
+    private File getStateBase(File dataFile) {
+        return configFile != null ? configFile
+                : dataFile != null ? dataFile : new File(filename);
+    }
+
+    /**
+     * Starts harvesting the files of a directory or glob, each with its own
+     * harvester. Without a configuration file their state files are kept
+     * next to the directory.
+     *
+     * @param options the harvester configuration
+     * @param location the directory or glob
+     * @param files the files
+     * @throws HarvesterException if an error occurred
+     */
+    private void initFiles(JsonSimple options, File location, List<File> files)
+            throws HarvesterException {
+        filename = location.getName();
+        metrics = new HarvestMetrics(options.getBoolean(
+                options.getBoolean(false, "jmx"), "timing"));
+        if (configFile == null) {
+            configFile = location.isDirectory() ? location
+                    : location.getAbsoluteFile().getParentFile();
+        }
+        if (!options.getBoolean(false, "dryRun")
+                && "storage".equals(options.getString(null, "knownObjects"))) {
+            knownObjects = KnownObjects.fromStorage(getStorage().getObjectIdList());
+            log.info("{} objects known to exist", knownObjects.size());
+        }
+        if (options.getBoolean(false, "jmx")) {
+            registerMetrics();
+        }
+        if (options.getBoolean(false, "dryRun")) {
+            profile = new DryRunProfile(Collections.<String> emptyList(),
+                    options.getInteger(DEFAULT_DRY_RUN_SAMPLES, "dryRunSamples"));
+        }
+        if (files.isEmpty()) {
+            log.warn("No files found at '{}'", location);
+        }
+        int threads = options.getInteger(1, "fileThreads");
+        fileHarvest = new MultiFileHarvest("CSVHarvester-" + filename, files,
+                threads, new MultiFileHarvest.FileHarvesterFactory() {
+                    @Override
+                    public CSVHarvester open(File file) throws HarvesterException {
+                        return openFile(file);
+                    }
+                });
+        hasMore = !files.isEmpty();
+        log.info("Harvesting {} files from '{}' with {} threads",
+                new Object[] { files.size(), location, threads });
+    }
+
+    /**
+     * Creates the harvester of one file of a directory or glob, with the
+     * configuration of this harvester.
+     *
+     * @param file the file
+     * @return the harvester, initialised
+     * @throws HarvesterException if the harvester could not be initialised
+     */
+    private CSVHarvester openFile(File file) throws HarvesterException {
+        CSVHarvester harvester = new CSVHarvester(this, file);
+        harvester.setStorage(getStorage());
+        try {
+            JsonSimple config = new JsonSimple(getJsonConfig().toString());
+            config.writeObject("harvester", "csv").put("fileLocation",
+                    file.getPath());
+            harvester.init(config.toString());
+        } catch (HarvesterException ex) {
+            throw ex;
+        } catch (PluginException ex) {
+            throw new HarvesterException(ex);
+        } catch (IOException ioe) {
+            throw new HarvesterException(ioe);
+        }
+        return harvester;
+    }
+
+    /**
+     * Carries on from the checkpoint of a harvest that did not finish. The
+     * file is mapped again from the offset of the row after the checkpoint,
+     * so the rows before it are not read.
+     *
+     * @param checkpoint the checkpoint, or null if there is none
+     * @param csvDataFile the CSV file
+     * @return <code>true</code> if the harvest carries on from the
+     *         checkpoint, <code>false</code> if it starts from the top
+     * @throws IOException if the file could not be read
+     */
+    private boolean resume(Checkpoint checkpoint, File csvDataFile)
+            throws IOException {
+        if (checkpoint == null) {
+            return false;
+        }
+        long offset = checkpoint.getOffset();
+        if (checkpoint.getHeaderHash() != headerHash || offset < 0
+                || offset > csvDataFile.length()) {
+            log.warn("Checkpoint '{}' does not match '{}', harvesting from the top",
+                    checkpointFile, filename);
+            return false;
+        }
+        csvReader.close();
+        csvReader = new MappedCSVReader(csvDataFile, delimiter, offset,
+                shardEnd, MappedCSVReader.DEFAULT_WINDOW);
+        currentRow = checkpoint.getRow();
+        log.info("Carrying on from row {} of '{}'", currentRow, filename);
+        return true;
+    }
+
+    /**
+     * Moves the reader to the byte range of this shard. The rows after the
+     * header are split into shardCount ranges of about the same number of
+     * bytes, each starting at the first row after its share of the bytes,
+     * and only the rows starting in the range of this shard are read. The
+     * rows are scanned from the header, honouring quoted values that hold
+     * line breaks, so no range starts inside a row.
+     *
+     * @param csvDataFile the CSV file
+     * @throws IOException if the file could not be read
+     */
+    private void openShard(File csvDataFile) throws IOException {
+        long[] bounds = MappedCSVReader.split(csvDataFile, delimiter,
+                csvReader.position(), shardCount);
+        long start = bounds[shardIndex];
+        shardEnd = shardIndex + 1 < shardCount ? bounds[shardIndex + 1]
+                : Long.MAX_VALUE;
+        csvReader.close();
+        csvReader = new MappedCSVReader(csvDataFile, delimiter, start,
+                shardEnd, MappedCSVReader.DEFAULT_WINDOW);
+        log.info("Harvesting shard {} of {}, from byte {} of '{}'", new Object[] {
+                shardIndex, shardCount, start, csvDataFile });
+    }
+
+    /**
+     * Checks whether a row belongs to this shard, when rows are shared out by
+     * the hash of their ID.
+     *
+     * @param columns an Array of Strings containing column data
+     * @return <code>true</code> if this shard harvests the row
+     */
+    private boolean inShard(String[] columns) {
+        String recordId = idIndex >= 0 && idIndex < columns.length
+                ? columns[idIndex] : Long.toString(currentRow);
+        long hash = FingerprintIndex.hash(FingerprintIndex.SEED, recordId);
+        return (hash & Long.MAX_VALUE) % shardCount == shardIndex;
+    }
+
+    /**
+     * Saves how far the harvest has got.
+     *
+     * @throws HarvesterException if the checkpoint could not be saved
+     */
+    private void saveCheckpoint() throws HarvesterException {
+        try {
+            new Checkpoint(csvReader.position(), currentRow, headerHash)
+                    .save(checkpointFile);
+        } catch (IOException ioe) {
+            throw new HarvesterException(ioe);
+        }
+    }
+
+    /**
+     * Opens the CSV file for reading.
+     *
+     * @param type the type of reader
+     * @param csvDataFile the CSV file
+     * @return the reader
+     * @throws IOException if the file could not be opened
+     * @throws HarvesterException if the type is not valid
+     */
+    private RowReader openReader(String type, File csvDataFile)
+            throws IOException, HarvesterException {
+        if ("mapped".equals(type)) {
+            if (gzipped) {
+                log.warn("'{}' is compressed, using opencsv", csvDataFile);
+            } else if (delimiter < 0x80) {
+                return new MappedCSVReader(csvDataFile, delimiter);
+            } else {
+                log.warn("Delimiter '{}' is not a single byte, using opencsv", delimiter);
+            }
+        } else if (!"opencsv".equals(type)) {
+            throw new HarvesterException("Invalid reader '" + type
+                    + "', valid values are opencsv and mapped");
+        }
+        InputStream in = gzipped
+                ? new ParallelGzipInputStream(csvDataFile, decompressThreads)
+                : new FileInputStream(csvDataFile);
+        Reader fileReader = new InputStreamReader(in, "UTF-8");
+        return new OpenCSVRowReader(fileReader, delimiter);
+    }
+
+    /**
+     * Opens data that is not in a file for reading. It can only be read
+     * once, a row at a time, so opencsv is always used.
+     *
+     * @param type the type of reader
+     * @param source the CSV data
+     * @return the reader
+     * @throws HarvesterException if the type is not valid
+     */
+    private RowReader openReader(String type, Reader source)
+            throws HarvesterException {
+        if ("mapped".equals(type)) {
+            log.warn("'{}' is not a file, using opencsv", filename);
+        } else if (!"opencsv".equals(type)) {
+            throw new HarvesterException("Invalid reader '" + type
+                    + "', valid values are opencsv and mapped");
+        }
+        return new OpenCSVRowReader(source, delimiter);
+    }
+
+    /**
+     * Opens a stream of UTF-8 CSV data, decompressing it if it starts as
+     * gzip data does. Only the first bytes are held back to check.
+     *
+     * @param in the stream
+     * @param name what the stream is, for messages
+     * @return a reader of the data
+     * @throws IOException if the stream could not be read
+     * @throws HarvesterException if the data is compressed in a format that
+     *             cannot be read
+     */
+    private Reader openStream(InputStream in, String name)
+            throws IOException, HarvesterException {
+        PushbackInputStream pushback = new PushbackInputStream(in, 4);
+        byte[] magic = new byte[4];
+        int count = 0;
+        while (count < magic.length) {
+            int read = pushback.read(magic, count, magic.length - count);
+            if (read < 0) {
+                break;
+            }
+            count += read;
+        }
+        pushback.unread(magic, 0, count);
+        InputStream data = isCompressed(magic, count, name)
+                ? new GZIPInputStream(pushback) : pushback;
+        return new InputStreamReader(data, "UTF-8");
+    }
+
+    /**
+     * Checks whether a file is compressed, from its first bytes.
+     *
+     * @param csvDataFile the CSV file
+     * @return <code>true</code> if the file is gzip compressed
+     * @throws IOException if the file could not be read
+     * @throws HarvesterException if the file is compressed in a format that
+     *             cannot be read
+     */
+    private boolean isCompressed(File csvDataFile)
+            throws IOException, HarvesterException {
+        byte[] magic = new byte[4];
+        int count;
+        InputStream in = new FileInputStream(csvDataFile);
+        try {
+            count = in.read(magic);
+        } finally {
+            in.close();
+        }
+        return isCompressed(magic, count, csvDataFile.toString());
+    }
+
+    /**
+     * Checks whether data is compressed, from its first bytes.
+     *
+     * @param magic the first bytes
+     * @param count the number of bytes read
+     * @param name what the data is, for messages
+     * @return <code>true</code> if the data is gzip compressed
+     * @throws HarvesterException if the data is compressed in a format that
+     *             cannot be read
+     */
+    private boolean isCompressed(byte[] magic, int count, String name)
+            throws HarvesterException {
+        if (count >= 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b) {
+            return true;
+        }
+        if (count == 4 && (magic[0] & 0xff) == 0x28 && (magic[1] & 0xff) == 0xb5
+                && (magic[2] & 0xff) == 0x2f && (magic[3] & 0xff) == 0xfd) {
+            throw new HarvesterException("'" + name
+                    + "' is zstd compressed, which cannot be read; decompress it or use gzip");
+        }
+        return false;
+    }
+
+    /**
+     * Parses how far apart the rows of an object may be when they are
+     * aggregated.
+     *
+     * @param aggregate the aggregate option
+     * @return the mode
+     * @throws HarvesterException if the option is not valid
+     */
+    private RowAggregator.Mode parseAggregateMode(String aggregate)
+            throws HarvesterException {
+        if ("adjacent".equals(aggregate)) {
+            return RowAggregator.Mode.ADJACENT;
+        }
+        if ("window".equals(aggregate)) {
+            return RowAggregator.Mode.WINDOW;
+        }
+        if ("sort".equals(aggregate)) {
+            return RowAggregator.Mode.SORT;
+        }
+        throw new HarvesterException("Invalid aggregate '" + aggregate
+                + "', valid values are adjacent, window and sort");
+    }
+
+    /**
+     * Creates the generator of OIDs.
+     *
+     * @param scheme the OID scheme
+     * @return the generator
+     * @throws HarvesterException if the scheme is not valid
+     */
+    private OidGenerator createOidGenerator(String scheme)
+            throws HarvesterException {
+        if ("md5".equals(scheme)) {
+            return new Md5OidGenerator(filename, idPrefix);
+        }
+        if ("fast".equals(scheme)) {
+            return new FastOidGenerator(filename, idPrefix);
+        }
+        throw new HarvesterException("Invalid oidScheme '" + scheme
+                + "', valid values are md5 and fast");
+    }
+
+    /**
+     * Compiles the data fields and configuration into a per-column plan.
+     * Columns that are neither included nor filtered are left out entirely,
+     * so the row loop never has to look at them.
+     *
+     * @return the columns to process for each row, in row order
+     */
+    private Column[] compileColumnPlan() {
+        List<Column> plan = new ArrayList<Column>();
+        idIndex = -1;
+        for (int index = 0; index < dataFields.size(); index++) {
+            String field = dataFields.get(index);
+            // respect fields to be included and ignored
+            boolean include = includedFields.contains(field) && !ignoredFields.contains(field);
+            List<Filter> fieldFilters = filters.get(field);
+            if (!include && fieldFilters == null) {
+                continue;
+            }
+            Column column = new Column();
+            column.index = index;
+            column.field = field;
+            column.include = include;
+            column.multiValue = multiValueFields.contains(field);
+            column.id = field.equals(idColumn);
+            if (column.id) {
+                idIndex = index;
+            }
+            plan.add(column);
+        }
+        return plan.toArray(new Column[plan.size()]);
+    }
+
+    /**
+     * Compile the included columns into a record writer.
+     *
+     * @return the record writer
+     */
+    private RecordWriter compileRecordWriter() {
+        List<Column> included = new ArrayList<Column>();
+        for (Column column : columnPlan) {
+            if (column.include) {
+                included.add(column);
+            }
+        }
+        int[] indexes = new int[included.size()];
+        String[] fields = new String[included.size()];
+        boolean[] multiValue = new boolean[included.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            Column column = included.get(i);
+            indexes[i] = column.index;
+            fields[i] = column.field;
+            multiValue[i] = column.multiValue;
+        }
+        return new RecordWriter(indexes, fields, multiValue, multiValueFieldDelimiter);
+    }
+
+    /**
+     * Compile the filters into steps, cheapest first.
+     *
+     * @return the filter steps
+     */
+    private FilterStep[] compileFilterPlan() {
+        List<FilterStep> plan = new ArrayList<FilterStep>();
+        for (int index = 0; index < dataFields.size(); index++) {
+            String field = dataFields.get(index);
+            List<Filter> fieldFilters = filters.get(field);
+            if (fieldFilters == null) {
+                continue;
+            }
+            for (Filter filter : fieldFilters) {
+                FilterStep step = new FilterStep();
+                step.index = index;
+                step.field = field;
+                step.multiValue = multiValueFields.contains(field);
+                step.filter = filter;
+                step.cost = filter.regex.cost() + (step.multiValue ? MULTI_VALUE_FILTER_COST : 0);
+                step.score = step.cost;
+                plan.add(step);
+            }
+        }
+        FilterStep[] steps = plan.toArray(new FilterStep[plan.size()]);
+        Arrays.sort(steps, FILTER_ORDER);
+        return steps;
+    }
+
+    /**
+     * Works out which columns a row is read for: the columns in the plan,
+     * the ID column and the columns of the filter expression. The cells of
+     * other columns are never looked at, so a reader need not decode them.
+     *
+     * @return flags by column index
+     */
+    private boolean[] compileProjection() {
+        boolean[] used = new boolean[dataFields.size()];
+        for (Column column : columnPlan) {
+            used[column.index] = true;
+        }
+        if (idIndex >= 0) {
+            used[idIndex] = true;
+        }
+        if (rowFilter != null) {
+            rowFilter.columns(used);
+        }
+        return used;
+    }
+
+    /**
+     * Reorder the filters by their expected cost per rejected row in the
+     * last batch, so that cheap filters that reject many rows run first. Only
+     * called between batches, while no rows are being processed.
+     *
+     * @param rows the number of rows in the last batch
+     */
+    private void reorderFilters(long rows) {
+        FilterStep[] steps = filterPlan;
+        if (steps.length < 2 || rows == 0) {
+            return;
+        }
+        // rows reaching each filter, as the earlier ones short-circuit
+        long reached = rows;
+        for (FilterStep step : steps) {
+            long rejections = step.filter.rejections.get();
+            long rejected = Math.min(rejections - step.rejectionsBefore, reached);
+            step.rejectionsBefore = rejections;
+            step.score = step.cost * (reached + 2.0) / (rejected + 1.0);
+            reached -= rejected;
+        }
+        steps = steps.clone();
+        Arrays.sort(steps, FILTER_ORDER);
+        filterPlan = steps;
+    }
+
+    /**
+     * Gets a string list from a JsonSimple object. Convenience method to return
+     * an empty list instead of null if the node was not found.
+     *
+     * @param json a JsonSimple object
+     * @param path path to the node
+     * @return string list found at node, or empty if not found
+     */
+    private List<String> getStringList(JsonSimple json, Object... path) {
+        List<String> list = json.getStringList(path);
+        if (list == null) {
+            list = Collections.emptyList();
+        }
+        return list;
+    }
+
+    /**
+     * Shutdown the plugin.
+     * 
+     * @throws HarvesterException if an error occurred
+     */
+    @Override
+    public void shutdown() throws HarvesterException {
+        if (fileHarvest != null) {
+            fileHarvest.shutdown();
+            fileHarvest = null;
+        }
+        if (metrics != null && parent == null) {
+            log.info("Harvest of '{}' finished: {}", filename, metrics.summary());
+        }
+        unregisterMetrics();
+        if (pipeline != null) {
+            pipeline.shutdown();
+            pipeline = null;
+        }
+        closeReader();
+        if (producedOids != null) {
+            producedOids.close();
+            producedOids = null;
+        }
+        synchronized (aggregators) {
+            for (RowAggregator aggregator : aggregators) {
+                aggregator.discard();
+            }
+            aggregators.clear();
+        }
+    }
+
+    /**
+     * Closes the CSV file, if it is open.
+     */
+    private void closeReader() {
+        if (csvReader != null) {
+            try {
+                csvReader.close();
+            } catch (IOException ioe) {
+                log.warn("Failed to close CSVReader!", ioe);
+            }
+            csvReader = null;
+        }
+    }
+
+    /**
+     * Gets the live counters and latencies of the harvest. A summary is
+     * logged at shutdown.
+     *
+     * @return the metrics, or null before <code>init()</code>
+     */
+    public HarvestMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Gets what a dry run has found out about the file so far. A summary is
+     * logged once the whole file has been read. With a directory or glob, the
+     * profiles of the files are added up as each file is finished.
+     *
+     * @return the profile, or null if this is not a dry run
+     */
+    public DryRunProfile getDryRunProfile() {
+        return profile;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server.
+     */
+    private void registerMetrics() {
+        unregisterMetrics();
+        try {
+            ObjectName name = new ObjectName(
+                    "com.googlecode.fascinator.harvester.csv:type=CSVHarvester,name="
+                    + ObjectName.quote(filename) + ",id="
+                    + Integer.toHexString(System.identityHashCode(this)));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            metricsName = name;
+        } catch (JMException ex) {
+            log.warn("Failed to register the harvest metrics in JMX: ", ex);
+        }
+    }
+
+    /**
+     * Removes the metrics from the platform MBean server, if registered.
+     */
+    private void unregisterMetrics() {
+        if (metricsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (JMException ex) {
+                log.warn("Failed to unregister the harvest metrics from JMX: ", ex);
+            }
+            metricsName = null;
+        }
+    }
+
+    /**
+     * Check if there are more objects to harvest.
      *
      * @return <code>true</code> if there are more, <code>false</code> otherwise
      */
@@ -397,28 +1701,78 @@ public class CSVHarvester extends GenericHarvester {
      */
     @Override
     public Set<String> getObjectIdList() throws HarvesterException {
+        if (fileHarvest != null) {
+            Set<String> batch = fileHarvest.nextBatch();
+            hasMore = fileHarvest.hasMore();
+            if (!hasMore && profile != null && !harvestFinished) {
+                harvestFinished = true;
+                log.info("Dry run of '{}' finished: {}", filename, profile.summary(metrics));
+            }
+            return batch;
+        }
         Set<String> objectIdList = new HashSet<String>();
+        if (csvReader == null) {
+            // the whole file has been harvested
+            return objectIdList;
+        }
+        long batchStart = System.nanoTime();
+        int rowCount = 0;
+        long batchBytes = 0;
+        boolean last = false;
         try {
             String[] row = null;
-            int rowCount = 0;
-            boolean done = false;
+            // once the file has been read, only aggregated objects are left
+            boolean done = draining;
+            long readStart = now();
             while (!done && (row = csvReader.readNext()) != null) {
+                metrics.rowRead(now() - readStart);
                 rowCount++;
                 currentRow++;
-                
-                String recordId = createRecord(row);
-                if (recordId != null) {
-	                objectIdList.add(recordId);
+                batchBytes += batchSizer.weigh(row);
+
+                if (shardById && !inShard(row)) {
+                    // another shard harvests this row
+                } else if (pipeline != null) {
+                    pipeline.submit(row, currentRow, affinity(row));
+                } else {
+                    String recordId = serialProcessor.processRow(row, currentRow);
+                    if (recordId != null) {
+                        objectIdList.add(recordId);
+                    }
                 }
-                if (rowCount % batchSize == 0) {
+                if (batchSizer.full(rowCount, batchBytes)) {
                     log.debug("Batch size reached at row {}", currentRow);
                     break;
                 }
                 done = (maxRows > 0) && (currentRow < maxRows);
+                readStart = now();
             }
-            hasMore = (row != null);
+            last = (row == null);
+            hasMore = !last;
         } catch (IOException ioe) {
             throw new HarvesterException(ioe);
+        } finally {
+            try {
+                if (pipeline != null) {
+                    objectIdList.addAll(pipeline.finishBatch(last));
+                } else {
+                    objectIdList.addAll(serialProcessor.finishBatch(last));
+                }
+            } finally {
+                if (last && aggregatesLeft()) {
+                    draining = true;
+                    hasMore = true;
+                }
+            }
+        }
+        reorderFilters(rowCount);
+        batchSizer.batchDone(rowCount, batchBytes, System.nanoTime() - batchStart);
+        batchSize = batchSizer.size();
+        metrics.batchDone(System.nanoTime() - batchStart, batchSize);
+        if (!hasMore) {
+            finishHarvest();
+        } else if (checkpointFile != null) {
+            saveCheckpoint();
         }
         if (objectIdList.size() > 0) {
             log.debug("Created {} objects", objectIdList.size());
@@ -427,113 +1781,351 @@ public class CSVHarvester extends GenericHarvester {
     }
 
     /**
-     * Create an Object in storage from this record.
+     * Checks whether any thread has sorted objects left to write.
+     *
+     * @return <code>true</code> if there are more
+     */
+    private boolean aggregatesLeft() {
+        synchronized (aggregators) {
+            for (RowAggregator aggregator : aggregators) {
+                if (aggregator.hasMore()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check if there are more deleted objects to report.
+     *
+     * @return <code>true</code> if there are more, <code>false</code> otherwise
+     */
+    @Override
+    public boolean hasMoreDeletedObjects() {
+        if (fileHarvest != null) {
+            return fileHarvest.hasMoreDeleted();
+        }
+        return producedOids != null && producedOids.hasMoreDeleted();
+    }
+
+    /**
+     * Gets the next batch of objects produced by the previous harvest that
+     * were not produced by this one. These are only known once the whole file
+     * has been harvested.
+     *
+     * @return the set of object IDs no longer in the file
+     * @throws HarvesterException if an error occurred
+     */
+    @Override
+    public Set<String> getDeletedObjectIdList() throws HarvesterException {
+        if (fileHarvest != null) {
+            return fileHarvest.nextDeleted();
+        }
+        if (producedOids == null) {
+            return new HashSet<String>();
+        }
+        try {
+            Set<String> deleted = producedOids.nextDeleted(batchSize);
+            if (!deleted.isEmpty()) {
+                log.debug("Found {} deleted objects", deleted.size());
+            }
+            return deleted;
+        } catch (IOException ioe) {
+            throw new HarvesterException(ioe);
+        }
+    }
+
+    /**
+     * Save the harvest state once the whole file has been harvested.
+     *
+     * @throws HarvesterException if an error occurred
+     */
+    private void finishHarvest() throws HarvesterException {
+        if (harvestFinished) {
+            return;
+        }
+        harvestFinished = true;
+        if (profile != null) {
+            log.info("Dry run of '{}' finished: {}", filename, profile.summary(metrics));
+            if (parent != null && parent.profile != null) {
+                parent.profile.add(profile);
+            }
+        }
+        // the file is no longer needed while deleted objects are read
+        closeReader();
+        if (pipeline != null) {
+            pipeline.shutdown();
+            pipeline = null;
+        }
+        if (producedOids != null) {
+            try {
+                producedOids.finish();
+            } catch (IOException ioe) {
+                throw new HarvesterException(ioe);
+            }
+        }
+        if (fingerprints != null) {
+            try {
+                fingerprints.save(fingerprintFile);
+            } catch (IOException ioe) {
+                throw new HarvesterException(ioe);
+            }
+            log.info("Saved fingerprints of {} objects to '{}'",
+                    fingerprints.seenCount(), fingerprintFile);
+            fingerprints = null;
+        }
+        // the harvest is complete, the next one starts from the top
+        if (checkpointFile != null && checkpointFile.exists()
+                && !checkpointFile.delete()) {
+            log.warn("Failed to delete checkpoint '{}'", checkpointFile);
+        }
+    }
+
+    /**
+     * Computes a fingerprint of the included fields of a row, used to find
+     * out whether it has changed since the last harvest.
      *
      * @param columns an Array of Strings containing column data
-     * @return String the OID of the stored Object or null if the record was filtered out
-     * @throws HarvesterException if an error occurs
+     * @return a 64-bit hash of the record ID prefix and included fields
      */
-	private String createRecord(String[] columns) throws HarvesterException {
+    private long fingerprint(String[] columns) {
+        long hash = FingerprintIndex.hash(FingerprintIndex.SEED, idPrefix);
+        for (Column column : columnPlan) {
+            if (column.index >= columns.length) {
+                break;
+            }
+            if (column.include) {
+                hash = FingerprintIndex.hash(hash, column.field);
+                hash = FingerprintIndex.hash(hash, columns[column.index]);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Gets the worker affinity of a row, so that rows sharing an ID are
+     * always processed by the same worker thread.
+     *
+     * @param columns an Array of Strings containing column data
+     * @return a hash of the row's ID value
+     */
+    private int affinity(String[] columns) {
+        if (idIndex >= 0 && idIndex < columns.length && columns[idIndex] != null) {
+            return columns[idIndex].hashCode();
+        }
+        // row numbers are unique, any worker will do
+        return (int) currentRow;
+    }
+
+    /**
+     * Create a record from a row.
+     *
+     * @param columns an Array of Strings containing column data
+     * @param rowNumber the number of the row in the file
+     * @param splitter the splitter for multi-value cells
+     * @return the record to store, or null if the record was filtered out
+     */
+	HarvestRecord createRecord(String[] columns, long rowNumber, MultiValueSplitter splitter) {
         // by default use the row number as the ID
-        String recordId = Long.toString(currentRow);
+        String recordId = Long.toString(rowNumber);
+        boolean traced = tracer.traces(rowNumber);
 
-        // create data
-        JsonObject data = new JsonObject();
-        for (int index = 0; index < columns.length; index++) {
-            String field = dataFields.get(index);
-            String value = columns[index];
-            // respect fields to be included and ignored
-            boolean include = includedFields.contains(field) && !ignoredFields.contains(field);
-            boolean hasFilters = filters.containsKey(field);
-            List<Filter> fieldFilters = filters.get(field);
-            
-            // we don't want to include or filter based on this column
-            if (!include && !hasFilters) {
-            	continue;
-            } else {
-            	if (multiValueFields.contains(field)){
-                	log.debug("Processing a multi-value field: " + field + " with value: " + value);
-            		try {
-            			CSVReader multi = new CSVReader(new StringReader(value), multiValueFieldDelimiter);
-            			String[] values = multi.readNext();
-            			multi.close();
-            			
-            			if (hasFilters) {
-            				for(Filter f : fieldFilters) {
-            					if (!f.matches(values)) {
-            						log.debug("multi-value field '" + field + "' with value '" + value + "' failed filter " + f);
-            						return null;
-            					}
-            				}
-            			}
-            			if (include) {
-	            			JSONArray list = new JSONArray();
-	            			if (values != null) {
-		            			for (String item : values) {
-		            				log.debug(" Individual value:" + item);
-		            				list.add(item);
-		            			}
-	            			}
-	            			
-	            			data.put(field, list);
-            			}
-            		} catch (IOException ioe) {
-                        throw new HarvesterException(ioe);
+        // run the filters first, so that rejected rows cost no JSON
+        FilterStep[] steps = filterPlan;
+        if (steps.length > 0 || rowFilter != null) {
+            long filterStart = now();
+            int split = -1;
+            int count = 0;
+            for (FilterStep step : steps) {
+                if (step.index >= columns.length) {
+                    continue;
+                }
+                String value = columns[step.index];
+                boolean passed;
+                if (step.multiValue) {
+                    if (split != step.index) {
+                        count = splitter.split(value);
+                        split = step.index;
                     }
+                    passed = step.filter.matches(splitter.values(), count);
                 } else {
-                	if (hasFilters) {
-                		for(Filter f : fieldFilters) {
-        					if (!f.matches(value)) {
-        						log.debug("field '" + field + "' with value '" + value + "' failed filter " + f);
-        						return null;
-        					}
-        				}
-                	}
-                	if (include) {
-                		data.put(field, value);
-                	}
+                    passed = step.filter.matches(value);
+                }
+                if (!passed) {
+                    rejected(step.filter, now() - filterStart);
+                    tracer.rejected(rowNumber, traced, step.field, value, step.filter);
+                    return null;
+                }
+                if (step.filter.passes != null) {
+                    step.filter.passes.incrementAndGet();
                 }
             }
-            if (field.equals(idColumn)) {
-                recordId = value;
+            if (rowFilter != null && !rowFilter.accept(columns, splitter)) {
+                metrics.rowRejected(rowFilterRejections);
+                metrics.record(HarvestMetrics.Stage.FILTER, now() - filterStart);
+                tracer.rejected(rowNumber, traced, rowFilter);
+                return null;
             }
+            if (rowFilterPasses != null) {
+                rowFilterPasses.incrementAndGet();
+            }
+            metrics.record(HarvestMetrics.Stage.FILTER, now() - filterStart);
+        }
+        long buildStart = now();
+        if (idIndex >= 0 && idIndex < columns.length) {
+            recordId = columns[idIndex];
+        }
+
+        long hashStart = now();
+        String oid = createOid(recordId);
+        long hashEnd = now();
+        HarvestRecord record = new HarvestRecord(oid, idPrefix,
+                idPrefix + recordId, columns, recordWriter);
+        if (!streamJson) {
+            // the data is needed to store the record
+            record.getData();
+        }
+        metrics.record(HarvestMetrics.Stage.BUILD, hashStart - buildStart + now() - hashEnd);
+        metrics.record(HarvestMetrics.Stage.HASH, hashEnd - hashStart);
+        if (traced) {
+            tracer.record(rowNumber, oid, record.getData());
         }
-        log.debug(data.toJSONString());
-        // create metadata
-        JsonObject meta = new JsonObject();
-        meta.put("dc.identifier", idPrefix + recordId);
+        return record;
+    }
+
+    /**
+     * Reads the clock for the stages of a row, if they are timed.
+     *
+     * @return the current time in nanoseconds, or 0 if the stages are not
+     *         timed
+     */
+    private long now() {
+        return metrics.isTimed() ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Counts a row rejected by a filter.
+     *
+     * @param filter the filter that failed
+     * @param filterNanos the time spent on the filters of the row
+     */
+    private void rejected(Filter filter, long filterNanos) {
+        metrics.rowRejected(filter.rejections);
+        metrics.record(HarvestMetrics.Stage.FILTER, filterNanos);
+    }
+
+    /**
+     * Gets the OID of a record.
+     *
+     * @param recordId the record ID, without the prefix
+     * @return the OID
+     */
+    String createOid(String recordId) {
+        return oidGenerator.createOid(recordId);
+    }
 
-        // What should the OID be?
-        String oid = DigestUtils.md5Hex(filename + idPrefix + recordId);
+    /**
+     * Store a single record in its object.
+     *
+     * @param record the record to store
+     * @param buffer the buffer to write the payload into
+     * @throws HarvesterException if an error occurs
+     */
+    private void storeRecord(HarvestRecord record, JsonBuffer buffer)
+            throws HarvesterException {
+        long start = now();
         // This will throw any exceptions if errors occur
-        storeJsonInObject(data, meta, oid);
-        return oid;
+        storeJsonInObject(record, buffer);
+        metrics.recordsStored(1, now() - start);
+    }
+
+    /**
+     * Store the records of a batch. Records for the same object are merged
+     * first, or only the last is kept if existing payloads are not merged,
+     * so each object is written once per batch. If the storage
+     * implements {@link BatchRecordStorage} the batch is handed to it in one
+     * call, otherwise the objects are written one at a time. Subclasses can
+     * override this to provide their own bulk path.
+     *
+     * @param records the records of the batch, in file order
+     * @throws HarvesterException if an error occurs
+     */
+    protected void storeRecords(List<HarvestRecord> records)
+            throws HarvesterException {
+        Map<String, HarvestRecord> merged = new LinkedHashMap<String, HarvestRecord>();
+        for (HarvestRecord record : records) {
+            HarvestRecord earlier = merged.get(record.getOid());
+            if (earlier == null || !mergeExisting) {
+                merged.put(record.getOid(), record);
+            } else {
+                earlier.merge(record);
+            }
+        }
+        List<HarvestRecord> batch = new ArrayList<HarvestRecord>(merged.values());
+
+        Storage storage = getStorage();
+        if (storage instanceof BatchRecordStorage) {
+            try {
+                long start = now();
+                ((BatchRecordStorage) storage).storeRecords(payloadId, batch,
+                        mergeExisting, prettyPrint);
+                metrics.recordsStored(batch.size(), now() - start);
+            } catch (StorageException ex) {
+                throw new HarvesterException("Error storing batch: ", ex);
+            }
+            return;
+        }
+        JsonBuffer buffer = new JsonBuffer();
+        for (HarvestRecord record : batch) {
+            storeRecord(record, buffer);
+        }
     }
 
     /**
      * Store the processed data and metadata in the system
      *
-     * @param dataJson an instantiated JSON object containing data to store
-     * @param metaJson an instantiated JSON object containing metadata to store
+     * @param record the record to store
+     * @param buffer the buffer to write the payload into
      * @throws HarvesterException if an error occurs
      */
-    private void storeJsonInObject(JsonObject dataJson, JsonObject metaJson,
-            String oid) throws HarvesterException {
+    private void storeJsonInObject(HarvestRecord record, JsonBuffer buffer)
+            throws HarvesterException {
+        String oid = record.getOid();
         // Does the object already exist?
         DigitalObject object = null;
-        try {
-            object = getStorage().getObject(oid);
-            storeJsonInPayload(dataJson, metaJson, object);
-
-        } catch (StorageException ex) {
+        if (knownObjects != null && !knownObjects.contains(oid)) {
             // This is going to be brand new
+            boolean created = false;
             try {
-                object = StorageUtils.getDigitalObject(getStorage(), oid);
-                storeJsonInPayload(dataJson, metaJson, object);
+                try {
+                    object = getStorage().createObject(oid);
+                    created = true;
+                } catch (StorageException ex) {
+                    // created since the known objects were loaded
+                    object = StorageUtils.getDigitalObject(getStorage(), oid);
+                }
             } catch (StorageException ex2) {
                 throw new HarvesterException(
                         "Error creating new digital object: ", ex2);
             }
+            knownObjects.add(oid);
+            storeJsonInPayload(record, object, buffer, created);
+        } else {
+            try {
+                object = getStorage().getObject(oid);
+                storeJsonInPayload(record, object, buffer, false);
+
+            } catch (StorageException ex) {
+                // This is going to be brand new
+                try {
+                    object = StorageUtils.getDigitalObject(getStorage(), oid);
+                    storeJsonInPayload(record, object, buffer, false);
+                } catch (StorageException ex2) {
+                    throw new HarvesterException(
+                            "Error creating new digital object: ", ex2);
+                }
+            }
         }
 
         // Set the pending flag
@@ -548,64 +2140,65 @@ public class CSVHarvester extends GenericHarvester {
     }
 
     /**
-     * Store the processed data and metadata in a payload
+     * Store the processed data and metadata in a payload. The existing
+     * payload is only read when there is one and it is to be merged.
      *
-     * @param dataJson an instantiated JSON object containing data to store
-     * @param metaJson an instantiated JSON object containing metadata to store
+     * @param record the record to store
      * @param object the object to put our payload in
+     * @param buffer the buffer to write the payload into
+     * @param created whether the object was just created, and so has no
+     *            payloads yet
      * @throws HarvesterException if an error occurs
      */
-    private void storeJsonInPayload(JsonObject dataJson, JsonObject metaJson,
-            DigitalObject object) throws HarvesterException {
+    private void storeJsonInPayload(HarvestRecord record,
+            DigitalObject object, JsonBuffer buffer, boolean created)
+            throws HarvesterException {
 
         Payload payload = null;
-        JsonSimple json = new JsonSimple();
-        try {
-            // New payloads
-            payload = object.getPayload(payloadId);
-            //log.debug("Updating existing payload: '{}' => '{}'",
-            //        object.getId(), payloadId);
-
+        JsonSimple json = null;
+        boolean exists = !created && object.getPayloadIdList().contains(payloadId);
+        if (exists && mergeExisting) {
             // Get the old JSON to merge
             try {
-                json = new JsonSimple(payload.open());
+                payload = object.getPayload(payloadId);
+                try {
+                    json = new JsonSimple(payload.open());
+                } finally {
+                    payload.close();
+                }
             } catch (IOException ex) {
                 log.error("Error parsing existing JSON: '{}' => '{}'",
                     object.getId(), payloadId);
                 throw new HarvesterException(
                         "Error parsing existing JSON: ", ex);
-            } finally {
-                payload.close();
-            }
-
-            // Update storage
-            try {
-                InputStream in = streamMergedJson(dataJson, metaJson, json);
-                object.updatePayload(payloadId, in);
-
-            } catch (IOException ex2) {
+            } catch (StorageException ex) {
                 throw new HarvesterException(
-                        "Error processing JSON data: ", ex2);
-            } catch (StorageException ex2) {
-                throw new HarvesterException(
-                        "Error updating payload: ", ex2);
+                        "Error reading existing payload: ", ex);
             }
+        }
 
-        } catch (StorageException ex) {
-            // Create a new Payload
-            try {
-                //log.debug("Creating new payload: '{}' => '{}'",
-                //        object.getId(), payloadId);
-                InputStream in = streamMergedJson(dataJson, metaJson, json);
+        // Update storage
+        try {
+            InputStream in;
+            if (json == null && !prettyPrint) {
+                // nothing to merge, write the record straight out
+                record.writeJson(buffer.writer());
+                in = buffer.toInputStream();
+            } else {
+                in = streamMergedJson(record.getData(), record.getMetadata(),
+                        json == null ? new JsonSimple() : json, buffer);
+            }
+            if (exists) {
+                payload = object.updatePayload(payloadId, in);
+            } else {
                 payload = object.createStoredPayload(payloadId, in);
-
-            } catch (IOException ex2) {
-                throw new HarvesterException(
-                        "Error parsing JSON encoding: ", ex2);
-            } catch (StorageException ex2) {
-                throw new HarvesterException(
-                        "Error creating new payload: ", ex2);
             }
+        } catch (IOException ex) {
+            throw new HarvesterException(
+                    "Error processing JSON data: ", ex);
+        } catch (StorageException ex) {
+            throw new HarvesterException(
+                    "Error storing payload: ", ex);
         }
 
         // Tidy up before we finish
@@ -626,10 +2219,13 @@ public class CSVHarvester extends GenericHarvester {
      * @param dataJson an instantiated JSON object containing data to store
      * @param metaJson an instantiated JSON object containing metadata to store
      * @param existing an instantiated JsonSimple object with any existing data
+     * @param buffer the buffer to write the JSON into
+     * @return a stream over the buffer
      * @throws IOException if any character encoding issues effect the Stream
      */
-    private InputStream streamMergedJson(JsonObject dataJson,
-            JsonObject metaJson, JsonSimple existing) throws IOException {
+    InputStream streamMergedJson(JsonObject dataJson,
+            JsonObject metaJson, JsonSimple existing, JsonBuffer buffer)
+            throws IOException {
         // Overwrite and/or create only nodes we consider new data
         existing.getJsonObject().put("recordIDPrefix", idPrefix);
         JsonObject existingData = existing.writeObject("data");
@@ -638,7 +2234,12 @@ public class CSVHarvester extends GenericHarvester {
         existingMeta.putAll(metaJson);
 
         // Turn into a stream to return
-        String jsonString = existing.toString(true);
-        return IOUtils.toInputStream(jsonString, "UTF-8");
+        Writer writer = buffer.writer();
+        if (prettyPrint) {
+            writer.write(existing.toString(true));
+        } else {
+            JSONValue.writeJSONString(existing.getJsonObject(), writer);
+        }
+        return buffer.toInputStream();
     }
 }
@@ -0,0 +1,158 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * How far a harvest has got, saved at the end of each batch so that a
+ * harvest that dies can carry on from there rather than from the top of the
+ * file.
+ * <p>
+ * A checkpoint holds the number of rows harvested, the byte offset of the
+ * next row if the reader knows it, and a hash of the header, so that it is
+ * not used for a file whose columns have changed.
+ */
+class Checkpoint {
+
+    /** File header ("CSVC") */
+    private static final int MAGIC = 0x43535643;
+
+    /** File format version */
+    private static final int VERSION = 1;
+
+    /** Byte offset of the next row, or -1 if it is not known */
+    private final long offset;
+
+    /** Number of rows harvested */
+    private final long row;
+
+    /** Hash of the header */
+    private final long headerHash;
+
+    /**
+     * Creates a checkpoint.
+     *
+     * @param offset byte offset of the next row, or -1 if it is not known
+     * @param row number of rows harvested
+     * @param headerHash hash of the header, from {@link #hash(List)}
+     */
+    Checkpoint(long offset, long row, long headerHash) {
+        this.offset = offset;
+        this.row = row;
+        this.headerHash = headerHash;
+    }
+
+    /**
+     * Loads a checkpoint saved by an earlier harvest.
+     *
+     * @param file the checkpoint file
+     * @return the checkpoint, or null if the file does not exist
+     * @throws IOException if the file could not be read or is not a
+     *             checkpoint
+     */
+    static Checkpoint load(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a checkpoint: " + file);
+            }
+            return new Checkpoint(in.readLong(), in.readLong(), in.readLong());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the checkpoint. The file is replaced only once it has been
+     * written completely.
+     *
+     * @param file the checkpoint file
+     * @throws IOException if the file could not be written
+     */
+    void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temp);
+        DataOutputStream out = new DataOutputStream(stream);
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(offset);
+            out.writeLong(row);
+            out.writeLong(headerHash);
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    /**
+     * Hashes the fields of a header.
+     *
+     * @param fields the field names
+     * @return a 64-bit hash of the fields, in order
+     */
+    static long hash(List<String> fields) {
+        long hash = FingerprintIndex.SEED;
+        for (String field : fields) {
+            hash = FingerprintIndex.hash(hash, field);
+        }
+        return hash;
+    }
+
+    /**
+     * Gets the byte offset of the next row.
+     *
+     * @return a file offset, or -1 if it is not known
+     */
+    long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Gets the number of rows harvested.
+     *
+     * @return the number of rows
+     */
+    long getRow() {
+        return row;
+    }
+
+    /**
+     * Gets the hash of the header.
+     *
+     * @return the hash
+     */
+    long getHeaderHash() {
+        return headerHash;
+    }
+}
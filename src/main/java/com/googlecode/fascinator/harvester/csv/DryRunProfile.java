@@ -0,0 +1,260 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * What a dry run found out about a file: how many rows pass each filter,
+ * how often each column holds a value, how many rows share an ID with an
+ * earlier row and a sample of the records built. Together with the
+ * {@link HarvestMetrics} of the run it shows how a harvest would go, without
+ * anything being stored.
+ * <p>
+ * Counters are lock-free, so worker threads update them without contention.
+ * The profile of a harvest of several files adds up the profiles of the
+ * files as each is finished.
+ */
+public class DryRunProfile {
+
+    /**
+     * Field names (columns). Only replaced by {@link #add(DryRunProfile)},
+     * which is not used on the profile of a file being read
+     */
+    private List<String> fields;
+
+    /** Rows with a value, by column, replaced along with the fields */
+    private AtomicLongArray filled;
+
+    /** Rows that passed the filters */
+    private final AtomicLong rows = new AtomicLong();
+
+    /** Rows whose OID was seen before */
+    private final AtomicLong duplicates = new AtomicLong();
+
+    /** OIDs seen so far */
+    private final KnownObjects seen = new KnownObjects();
+
+    /** Passes by filter */
+    private final Map<String, AtomicLong> passes = new LinkedHashMap<String, AtomicLong>();
+
+    /** Number of records kept as samples */
+    private final int sampleSize;
+
+    /** Sample records, as JSON */
+    private final List<String> samples = new ArrayList<String>();
+
+    /**
+     * Creates an empty profile.
+     *
+     * @param fields the field names (columns) of the file
+     * @param sampleSize the number of records to keep as samples
+     */
+    DryRunProfile(List<String> fields, int sampleSize) {
+        this.fields = fields;
+        this.sampleSize = sampleSize;
+        filled = new AtomicLongArray(fields.size());
+    }
+
+    /**
+     * Adds a filter, whose passes are counted with the returned counter.
+     *
+     * @param filter a description of the filter, as given to
+     *            {@link HarvestMetrics#addFilter(String)}
+     * @return the pass counter of the filter
+     */
+    synchronized AtomicLong addFilter(String filter) {
+        AtomicLong counter = passes.get(filter);
+        if (counter == null) {
+            counter = new AtomicLong();
+            passes.put(filter, counter);
+        }
+        return counter;
+    }
+
+    /**
+     * Profiles a row that passed the filters.
+     *
+     * @param record the record built from the row
+     * @param columns the cells of the row
+     */
+    void rowPassed(HarvestRecord record, String[] columns) {
+        rows.incrementAndGet();
+        int count = Math.min(columns.length, filled.length());
+        for (int i = 0; i < count; i++) {
+            String value = columns[i];
+            if (value != null && value.length() > 0) {
+                filled.incrementAndGet(i);
+            }
+        }
+        String oid = record.getOid();
+        if (seen.contains(oid)) {
+            duplicates.incrementAndGet();
+        } else {
+            seen.add(oid);
+        }
+        addSample(record);
+    }
+
+    /**
+     * Adds the counts and samples of the profile of one file to this profile
+     * of a harvest of several files. Columns and filters are matched by name,
+     * and a column missing from some files counts as empty in their rows.
+     * IDs are only compared within each file, so an ID shared by two files
+     * is not counted as a duplicate.
+     *
+     * @param file the profile of a file that has been read
+     */
+    synchronized void add(DryRunProfile file) {
+        List<String> merged = new ArrayList<String>(fields);
+        for (String field : file.fields) {
+            if (!merged.contains(field)) {
+                merged.add(field);
+            }
+        }
+        if (merged.size() > fields.size()) {
+            AtomicLongArray grown = new AtomicLongArray(merged.size());
+            for (int i = 0; i < filled.length(); i++) {
+                grown.set(i, filled.get(i));
+            }
+            fields = merged;
+            filled = grown;
+        }
+        for (int i = 0; i < file.filled.length(); i++) {
+            filled.addAndGet(fields.indexOf(file.fields.get(i)), file.filled.get(i));
+        }
+        rows.addAndGet(file.getRowsPassed());
+        duplicates.addAndGet(file.getDuplicateIds());
+        for (Map.Entry<String, Long> entry : file.getPassesByFilter().entrySet()) {
+            addFilter(entry.getKey()).addAndGet(entry.getValue());
+        }
+        for (String sample : file.getSamples()) {
+            synchronized (samples) {
+                if (samples.size() < sampleSize) {
+                    samples.add(sample);
+                }
+            }
+        }
+    }
+
+    private void addSample(HarvestRecord record) {
+        synchronized (samples) {
+            if (samples.size() >= sampleSize) {
+                return;
+            }
+            StringWriter json = new StringWriter();
+            try {
+                record.writeJson(json);
+            } catch (IOException ioe) {
+                // a StringWriter does not fail
+                throw new IllegalStateException(ioe);
+            }
+            samples.add(json.toString());
+        }
+    }
+
+    /**
+     * @return the number of rows that passed the filters
+     */
+    public long getRowsPassed() {
+        return rows.get();
+    }
+
+    /**
+     * @return the number of rows whose ID was already seen in an earlier row
+     */
+    public long getDuplicateIds() {
+        return duplicates.get();
+    }
+
+    /**
+     * Gets the share of the rows that passed the filters with a value in
+     * each column.
+     *
+     * @return the fill rates between 0 and 1, by field, in file order
+     */
+    public synchronized Map<String, Double> getFillRates() {
+        Map<String, Double> rates = new LinkedHashMap<String, Double>();
+        long total = rows.get();
+        for (int i = 0; i < filled.length(); i++) {
+            rates.put(fields.get(i), total == 0 ? 0 : (double) filled.get(i) / total);
+        }
+        return rates;
+    }
+
+    /**
+     * Gets the number of rows each filter passed. A filter only sees the
+     * rows that passed the filters run before it.
+     *
+     * @return the counts, by filter description, in configuration order
+     */
+    public synchronized Map<String, Long> getPassesByFilter() {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : passes.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    /**
+     * @return the sample records, as their payloads would be written
+     */
+    public List<String> getSamples() {
+        synchronized (samples) {
+            return Collections.unmodifiableList(new ArrayList<String>(samples));
+        }
+    }
+
+    /**
+     * Describes the profile in a few lines, for the log.
+     *
+     * @param metrics the metrics of the run
+     * @return the summary
+     */
+    public String summary(HarvestMetrics metrics) {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("%d rows read (%.0f rows/s), %d passed the"
+                + " filters, %d with the ID of an earlier row",
+                metrics.getRowsRead(), metrics.getRowsPerSecond(),
+                getRowsPassed(), getDuplicateIds()));
+        Map<String, Long> rejections = metrics.getRejectionsByFilter();
+        for (Map.Entry<String, Long> entry : getPassesByFilter().entrySet()) {
+            Long rejected = rejections.get(entry.getKey());
+            out.append(String.format("%n  %s: %d passed, %d rejected",
+                    entry.getKey(), entry.getValue(),
+                    rejected == null ? 0 : rejected));
+        }
+        for (Map.Entry<String, Double> entry : getFillRates().entrySet()) {
+            out.append(String.format("%n  %-20s %5.1f%% filled",
+                    entry.getKey(), entry.getValue() * 100));
+        }
+        for (String sample : getSamples()) {
+            out.append(String.format("%n  sample %s", sample));
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sorts more lines of text than fit in memory.
+ * <p>
+ * Lines are collected in memory until a run is full, then the run is sorted
+ * and written to a temporary file. {@link #sort(File)} merges the runs into a
+ * single sorted file, at most {@link #MAX_FAN_IN} runs at a time so that the
+ * number of open files stays bounded: when there are more runs, they are
+ * first merged group by group into longer runs, as many times as needed. All
+ * files are gzip compressed, one line per entry, so lines must not contain
+ * line breaks.
+ */
+class ExternalSorter {
+
+    /** The most runs merged at once */
+    static final int MAX_FAN_IN = 64;
+
+    /** Temporary directory */
+    private final File dir;
+
+    /** Prefix of temporary file names */
+    private final String prefix;
+
+    /** Lines per run */
+    private final int runSize;
+
+    /** Whether duplicate lines are dropped */
+    private final boolean distinct;
+
+    /** Runs merged at once */
+    private final int fanIn;
+
+    /** The run being filled */
+    private List<String> run;
+
+    /** Runs written so far */
+    private List<File> runs = new ArrayList<File>();
+
+    /**
+     * Creates a sorter.
+     *
+     * @param dir where to keep temporary files
+     * @param prefix prefix of temporary file names
+     * @param runSize number of lines held in memory
+     * @param distinct whether to drop duplicate lines
+     */
+    ExternalSorter(File dir, String prefix, int runSize, boolean distinct) {
+        this(dir, prefix, runSize, distinct, MAX_FAN_IN);
+    }
+
+    /**
+     * Creates a sorter that merges a given number of runs at once.
+     *
+     * @param dir where to keep temporary files
+     * @param prefix prefix of temporary file names
+     * @param runSize number of lines held in memory
+     * @param distinct whether to drop duplicate lines
+     * @param fanIn the most runs merged at once, at least 2
+     */
+    ExternalSorter(File dir, String prefix, int runSize, boolean distinct,
+            int fanIn) {
+        this.dir = dir;
+        this.prefix = prefix;
+        this.runSize = runSize;
+        this.distinct = distinct;
+        this.fanIn = Math.max(2, fanIn);
+        run = new ArrayList<String>();
+    }
+
+    /**
+     * Adds a line.
+     *
+     * @param line the line to add
+     * @throws IOException if a run could not be written
+     */
+    synchronized void add(String line) throws IOException {
+        run.add(line);
+        if (run.size() >= runSize) {
+            writeRun();
+        }
+    }
+
+    /**
+     * Merges everything added so far into a sorted file. The sorter is empty
+     * afterwards.
+     *
+     * @param target the sorted file to write
+     * @throws IOException if an error occurs
+     */
+    synchronized void sort(File target) throws IOException {
+        if (!run.isEmpty() || runs.isEmpty()) {
+            writeRun();
+        }
+        List<File> merged = new ArrayList<File>();
+        try {
+            while (runs.size() > fanIn) {
+                for (int i = 0; i < runs.size(); i += fanIn) {
+                    File file = File.createTempFile(prefix, ".run", dir);
+                    merged.add(file);
+                    merge(runs.subList(i, Math.min(i + fanIn, runs.size())),
+                            file);
+                }
+                for (File file : runs) {
+                    file.delete();
+                }
+                runs.clear();
+                runs.addAll(merged);
+                merged.clear();
+            }
+            merge(runs, target);
+        } finally {
+            for (File file : merged) {
+                file.delete();
+            }
+            discard();
+        }
+    }
+
+    /**
+     * Merges sorted runs into one sorted file.
+     *
+     * @param inputs the runs
+     * @param target the file to write
+     * @throws IOException if an error occurs
+     */
+    private void merge(List<File> inputs, File target) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>();
+        Writer out = openWriter(target);
+        try {
+            for (File file : inputs) {
+                RunReader reader = new RunReader(file);
+                if (reader.advance()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+            String last = null;
+            while (!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+                if (!distinct || !reader.line.equals(last)) {
+                    out.write(reader.line);
+                    out.write('\n');
+                    last = reader.line;
+                }
+                if (reader.advance()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+        } finally {
+            out.close();
+            for (RunReader reader : queue) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Deletes the temporary files.
+     */
+    synchronized void discard() {
+        for (File file : runs) {
+            file.delete();
+        }
+        runs.clear();
+        run.clear();
+    }
+
+    private void writeRun() throws IOException {
+        Collections.sort(run);
+        File file = File.createTempFile(prefix, ".run", dir);
+        runs.add(file);
+        Writer out = openWriter(file);
+        try {
+            String last = null;
+            for (String line : run) {
+                if (!distinct || !line.equals(last)) {
+                    out.write(line);
+                    out.write('\n');
+                    last = line;
+                }
+            }
+        } finally {
+            out.close();
+        }
+        run.clear();
+    }
+
+    /**
+     * Opens a sorted file for writing.
+     *
+     * @param file the file
+     * @return a writer
+     * @throws IOException if the file could not be opened
+     */
+    static Writer openWriter(File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(
+                new FileOutputStream(file)), "UTF-8"));
+    }
+
+    /**
+     * Opens a sorted file for reading.
+     *
+     * @param file the file
+     * @return a reader
+     * @throws IOException if the file could not be opened
+     */
+    static BufferedReader openReader(File file) throws IOException {
+        return new BufferedReader(new InputStreamReader(new GZIPInputStream(
+                new FileInputStream(file)), "UTF-8"));
+    }
+
+    /**
+     * The current line of a run during the merge.
+     */
+    private static class RunReader implements Comparable<RunReader> {
+
+        private final BufferedReader reader;
+
+        private String line;
+
+        private RunReader(File file) throws IOException {
+            reader = openReader(file);
+        }
+
+        private boolean advance() throws IOException {
+            line = reader.readLine();
+            return line != null;
+        }
+
+        private void close() throws IOException {
+            reader.close();
+        }
+
+        @Override
+        public int compareTo(RunReader other) {
+            return line.compareTo(other.line);
+        }
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A compact index of content fingerprints by object ID, used to skip rows
+ * that have not changed since the last harvest.
+ * <p>
+ * Both the object ID and the fingerprint are kept as 64-bit hashes in an
+ * open-addressing table of primitive longs, so each entry costs at most 32
+ * bytes of heap regardless of the length of the IDs. Only the entries seen
+ * during the current harvest are written back by {@link #save(File)}, so
+ * objects that disappear from the file drop out of the index.
+ */
+class FingerprintIndex {
+
+    /** File header ("CSVF") */
+    private static final int MAGIC = 0x43535646;
+
+    /** File format version */
+    private static final int VERSION = 1;
+
+    /** FNV-1a 64-bit offset basis */
+    static final long SEED = 0xcbf29ce484222325L;
+
+    /** FNV-1a 64-bit prime */
+    private static final long PRIME = 0x100000001b3L;
+
+    /** Keys are never 0, so 0 marks an empty slot */
+    private static final long EMPTY = 0;
+
+    /** Smallest table */
+    private static final int MIN_CAPACITY = 1024;
+
+    /** Object ID hashes */
+    private long[] keys;
+
+    /** Fingerprints */
+    private long[] values;
+
+    /** One bit per slot, set once the entry has been seen this harvest */
+    private long[] seen;
+
+    /** Number of entries */
+    private int size;
+
+    /** Number of entries seen this harvest */
+    private int seenCount;
+
+    /**
+     * Creates an empty index.
+     *
+     * @param expected the number of entries expected
+     */
+    FingerprintIndex(int expected) {
+        allocate(capacityFor(expected));
+    }
+
+    /**
+     * Loads an index saved by an earlier harvest, or creates an empty one if
+     * the file does not exist.
+     *
+     * @param file the index file
+     * @return the index
+     * @throws IOException if the file could not be read or is not an index
+     */
+    static FingerprintIndex load(File file) throws IOException {
+        if (!file.exists()) {
+            return new FingerprintIndex(0);
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a fingerprint index: " + file);
+            }
+            int count = in.readInt();
+            FingerprintIndex index = new FingerprintIndex(count);
+            for (int i = 0; i < count; i++) {
+                long key = in.readLong();
+                long value = in.readLong();
+                int slot = index.slot(key);
+                index.keys[slot] = key;
+                index.values[slot] = value;
+                index.size++;
+            }
+            return index;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the entries seen during this harvest. The file is replaced only
+     * once it has been written completely.
+     *
+     * @param file the index file
+     * @throws IOException if the file could not be written
+     */
+    synchronized void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(seenCount);
+            for (int slot = 0; slot < keys.length; slot++) {
+                if (isSeen(slot)) {
+                    out.writeLong(keys[slot]);
+                    out.writeLong(values[slot]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    /**
+     * Checks whether an object is unchanged since the last harvest, and if
+     * so marks its entry as seen. The entry of a new or changed object is
+     * left alone, so that it is only recorded with
+     * {@link #update(String, long)} once the object has been stored.
+     *
+     * @param oid the object ID
+     * @param fingerprint the fingerprint of its content
+     * @return <code>true</code> if the object is unchanged
+     */
+    synchronized boolean unchanged(String oid, long fingerprint) {
+        int slot = slot(key(oid));
+        if (keys[slot] == EMPTY || values[slot] != fingerprint) {
+            return false;
+        }
+        if (!isSeen(slot)) {
+            seen[slot >>> 6] |= 1L << slot;
+            seenCount++;
+        }
+        return true;
+    }
+
+    /**
+     * Records the fingerprint of an object.
+     *
+     * @param oid the object ID
+     * @param fingerprint the fingerprint of its content
+     * @return <code>true</code> if the object is new or its fingerprint
+     *         changed, <code>false</code> if it is unchanged
+     */
+    synchronized boolean update(String oid, long fingerprint) {
+        long key = key(oid);
+        int slot = slot(key);
+        boolean changed;
+        if (keys[slot] == EMPTY) {
+            keys[slot] = key;
+            size++;
+            changed = true;
+        } else {
+            changed = values[slot] != fingerprint;
+        }
+        values[slot] = fingerprint;
+        if (!isSeen(slot)) {
+            seen[slot >>> 6] |= 1L << slot;
+            seenCount++;
+        }
+        if (size * 2 > keys.length) {
+            rehash();
+        }
+        return changed;
+    }
+
+    /**
+     * Marks every entry as seen, so that all of them are written back. Used
+     * when a harvest carries on from a checkpoint and does not see the rows
+     * before it again.
+     */
+    synchronized void markAllSeen() {
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != EMPTY && !isSeen(slot)) {
+                seen[slot >>> 6] |= 1L << slot;
+                seenCount++;
+            }
+        }
+    }
+
+    /**
+     * Gets the number of entries seen during this harvest.
+     *
+     * @return the number of entries
+     */
+    synchronized int seenCount() {
+        return seenCount;
+    }
+
+    /**
+     * Continues an FNV-1a hash with a string. Strings are terminated, so that
+     * consecutive strings hash differently however they are split.
+     *
+     * @param hash the hash so far, {@link #SEED} to start
+     * @param value the string to add, may be null
+     * @return the new hash
+     */
+    static long hash(long hash, String value) {
+        if (value == null) {
+            return (hash ^ 0xffff) * PRIME;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * PRIME;
+        }
+        return (hash ^ 0x1f) * PRIME;
+    }
+
+    private static long key(String oid) {
+        long key = hash(SEED, oid);
+        return key == EMPTY ? PRIME : key;
+    }
+
+    private boolean isSeen(int slot) {
+        return (seen[slot >>> 6] & (1L << slot)) != 0;
+    }
+
+    private int slot(long key) {
+        int mask = keys.length - 1;
+        int slot = (int) (key ^ (key >>> 32)) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        long[] oldSeen = seen;
+        allocate(oldKeys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+                if ((oldSeen[i >>> 6] & (1L << i)) != 0) {
+                    seen[slot >>> 6] |= 1L << slot;
+                }
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new long[capacity];
+        seen = new long[(capacity + 63) >>> 6];
+    }
+
+    private static int capacityFor(int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expected * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+}
@@ -0,0 +1,461 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Live counters and latencies of a harvest.
+ * <p>
+ * When the metrics are timed, every stage of a row is timed into a
+ * {@link Histogram}: reading the row, running its filters, building its
+ * data, hashing its OID and writing it to storage. Timing takes a few clock
+ * reads per row, so otherwise only the counters and batch times are kept.
+ * Counters and histograms are lock-free, so worker threads update them
+ * without contention, and they can be read while the harvest runs, through
+ * {@link CSVHarvester#getMetrics()} or JMX.
+ */
+public class HarvestMetrics implements HarvestMetricsMBean {
+
+    /**
+     * The timed stages of a row.
+     */
+    public enum Stage {
+        /** Reading the row from the file */
+        READ,
+        /** Running the filters of the row */
+        FILTER,
+        /** Building the data of the record */
+        BUILD,
+        /** Hashing the OID of the record */
+        HASH,
+        /** Writing records to storage */
+        STORE
+    }
+
+    /**
+     * A latency histogram with a bucket for each power of two nanoseconds.
+     */
+    public static class Histogram {
+
+        /** Sample counts, bucket i holds samples below 2^i nanoseconds */
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+        /** Number of samples */
+        private final AtomicLong count = new AtomicLong();
+
+        /** Sum of all samples */
+        private final AtomicLong total = new AtomicLong();
+
+        /**
+         * Records a sample.
+         *
+         * @param nanos the latency in nanoseconds
+         */
+        public void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+            count.incrementAndGet();
+            total.addAndGet(nanos);
+        }
+
+        /**
+         * @return the number of samples
+         */
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * @return the sum of all samples in nanoseconds
+         */
+        public long getTotalNanos() {
+            return total.get();
+        }
+
+        /**
+         * @return the mean sample in nanoseconds, 0 if there are none
+         */
+        public double getMeanNanos() {
+            long n = count.get();
+            return n == 0 ? 0 : (double) total.get() / n;
+        }
+
+        /**
+         * Gets an upper bound of a percentile, accurate to a power of two.
+         *
+         * @param percentile the percentile, between 0 and 100
+         * @return the upper bound of the bucket holding the percentile in
+         *         nanoseconds, 0 if there are no samples
+         */
+        public long getPercentileNanos(double percentile) {
+            long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(n * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < 64; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0) {
+                    return i == 0 ? 0 : 1L << Math.min(i, 62);
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /** Rows read from the file */
+    private final AtomicLong rowsRead = new AtomicLong();
+
+    /** Rows rejected by a filter */
+    private final AtomicLong rowsRejected = new AtomicLong();
+
+    /** Rows skipped as unchanged */
+    private final AtomicLong rowsUnchanged = new AtomicLong();
+
+    /** Records written to storage */
+    private final AtomicLong recordsStored = new AtomicLong();
+
+    /** Whether the stages of each row are timed */
+    private final boolean timed;
+
+    /** Latencies by stage */
+    private final Histogram[] histograms;
+
+    /** Rejections by filter */
+    private final Map<String, AtomicLong> rejections = new LinkedHashMap<String, AtomicLong>();
+
+    /** Time taken by each batch */
+    private final Histogram batches = new Histogram();
+
+    /** Rows in the next batch */
+    private volatile int batchSize;
+
+    /** When the first row was read, 0 before */
+    private volatile long started;
+
+    /**
+     * Creates empty metrics, timing every stage.
+     */
+    public HarvestMetrics() {
+        this(true);
+    }
+
+    /**
+     * Creates empty metrics.
+     *
+     * @param timed whether the stages of each row are timed
+     */
+    public HarvestMetrics(boolean timed) {
+        this.timed = timed;
+        histograms = new Histogram[Stage.values().length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Checks whether the stages of each row are timed. If not, the times
+     * given for them are ignored, and need not be measured.
+     *
+     * @return <code>true</code> if the stages are timed
+     */
+    public boolean isTimed() {
+        return timed;
+    }
+
+    /**
+     * Adds a filter, whose rejections are counted with the returned counter.
+     *
+     * @param filter a description of the filter
+     * @return the rejection counter of the filter
+     */
+    synchronized AtomicLong addFilter(String filter) {
+        AtomicLong counter = rejections.get(filter);
+        if (counter == null) {
+            counter = new AtomicLong();
+            rejections.put(filter, counter);
+        }
+        return counter;
+    }
+
+    /**
+     * Counts a row read in a time.
+     *
+     * @param nanos the time taken to read the row
+     */
+    void rowRead(long nanos) {
+        if (started == 0) {
+            started = System.nanoTime() - nanos;
+        }
+        rowsRead.incrementAndGet();
+        if (timed) {
+            histograms[Stage.READ.ordinal()].record(nanos);
+        }
+    }
+
+    /**
+     * Counts a row rejected by a filter.
+     *
+     * @param filter the rejection counter of the filter
+     */
+    void rowRejected(AtomicLong filter) {
+        rowsRejected.incrementAndGet();
+        filter.incrementAndGet();
+    }
+
+    /**
+     * Counts a row skipped as unchanged.
+     */
+    void rowUnchanged() {
+        rowsUnchanged.incrementAndGet();
+    }
+
+    /**
+     * Counts records written to storage in one call.
+     *
+     * @param records the number of records
+     * @param nanos the time taken
+     */
+    void recordsStored(int records, long nanos) {
+        recordsStored.addAndGet(records);
+        if (timed) {
+            histograms[Stage.STORE.ordinal()].record(nanos);
+        }
+    }
+
+    /**
+     * Sets the number of rows in the next batch.
+     *
+     * @param rows the batch size
+     */
+    void setBatchSize(int rows) {
+        batchSize = rows;
+    }
+
+    /**
+     * Counts a batch returned to the harvest client.
+     *
+     * @param nanos the time the batch took
+     * @param nextSize the number of rows in the next batch
+     */
+    void batchDone(long nanos, int nextSize) {
+        batches.record(nanos);
+        batchSize = nextSize;
+    }
+
+    /**
+     * Gets the times taken by batches.
+     *
+     * @return the histogram of batch times
+     */
+    public Histogram getBatchHistogram() {
+        return batches;
+    }
+
+    /**
+     * Records the time of a stage.
+     *
+     * @param stage the stage
+     * @param nanos the time taken
+     */
+    void record(Stage stage, long nanos) {
+        if (timed) {
+            histograms[stage.ordinal()].record(nanos);
+        }
+    }
+
+    /**
+     * Gets the latencies of a stage.
+     *
+     * @param stage the stage
+     * @return its histogram
+     */
+    public Histogram getHistogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    /**
+     * Gets the number of rows each filter rejected.
+     *
+     * @return the counts, by filter description, in configuration order
+     */
+    public synchronized Map<String, Long> getRejectionsByFilter() {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : rejections.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    @Override
+    public long getRowsRead() {
+        return rowsRead.get();
+    }
+
+    @Override
+    public long getRowsRejected() {
+        return rowsRejected.get();
+    }
+
+    @Override
+    public long getRowsUnchanged() {
+        return rowsUnchanged.get();
+    }
+
+    @Override
+    public long getRecordsStored() {
+        return recordsStored.get();
+    }
+
+    @Override
+    public double getRowsPerSecond() {
+        long start = started;
+        if (start == 0) {
+            return 0;
+        }
+        long elapsed = System.nanoTime() - start;
+        return elapsed <= 0 ? 0 : rowsRead.get() * 1e9 / elapsed;
+    }
+
+    @Override
+    public double getReadMeanMicros() {
+        return mean(Stage.READ);
+    }
+
+    @Override
+    public double getReadP99Micros() {
+        return p99(Stage.READ);
+    }
+
+    @Override
+    public double getFilterMeanMicros() {
+        return mean(Stage.FILTER);
+    }
+
+    @Override
+    public double getFilterP99Micros() {
+        return p99(Stage.FILTER);
+    }
+
+    @Override
+    public double getBuildMeanMicros() {
+        return mean(Stage.BUILD);
+    }
+
+    @Override
+    public double getBuildP99Micros() {
+        return p99(Stage.BUILD);
+    }
+
+    @Override
+    public double getHashMeanMicros() {
+        return mean(Stage.HASH);
+    }
+
+    @Override
+    public double getHashP99Micros() {
+        return p99(Stage.HASH);
+    }
+
+    @Override
+    public double getStoreMeanMicros() {
+        return mean(Stage.STORE);
+    }
+
+    @Override
+    public double getStoreP99Micros() {
+        return p99(Stage.STORE);
+    }
+
+    @Override
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    @Override
+    public long getBatches() {
+        return batches.getCount();
+    }
+
+    @Override
+    public double getBatchMeanMillis() {
+        return batches.getMeanNanos() / 1e6;
+    }
+
+    @Override
+    public double getBatchP99Millis() {
+        return batches.getPercentileNanos(99) / 1e6;
+    }
+
+    @Override
+    public String[] getFilterRejections() {
+        List<String> lines = new ArrayList<String>();
+        for (Map.Entry<String, Long> entry : getRejectionsByFilter().entrySet()) {
+            lines.add(entry.getKey() + " = " + entry.getValue());
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    /**
+     * Describes the metrics in a few lines, for the log.
+     *
+     * @return the summary
+     */
+    public String summary() {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("%d rows read (%.0f rows/s), %d rejected,"
+                + " %d unchanged, %d records stored", getRowsRead(),
+                getRowsPerSecond(), getRowsRejected(), getRowsUnchanged(),
+                getRecordsStored()));
+        if (timed) {
+            for (Stage stage : Stage.values()) {
+                Histogram histogram = getHistogram(stage);
+                out.append(String.format("%n  %-6s %10d calls, %10.1f ms total,"
+                        + " mean %8.1f us, p99 < %8.1f us", stage.name()
+                        .toLowerCase(), histogram.getCount(), histogram
+                        .getTotalNanos() / 1e6, histogram.getMeanNanos() / 1e3,
+                        histogram.getPercentileNanos(99) / 1e3));
+            }
+        }
+        out.append(String.format("%n  batch  %10d calls, mean %8.1f ms,"
+                + " p99 < %8.1f ms, next %d rows", getBatches(),
+                getBatchMeanMillis(), getBatchP99Millis(), getBatchSize()));
+        for (String line : getFilterRejections()) {
+            out.append(String.format("%n  rejected by %s", line));
+        }
+        return out.toString();
+    }
+
+    private double mean(Stage stage) {
+        return getHistogram(stage).getMeanNanos() / 1e3;
+    }
+
+    private double p99(Stage stage) {
+        return getHistogram(stage).getPercentileNanos(99) / 1e3;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+/**
+ * The JMX view of {@link HarvestMetrics}. Latencies are in microseconds,
+ * and batch times in milliseconds.
+ */
+public interface HarvestMetricsMBean {
+
+    /**
+     * @return the number of rows read from the file
+     */
+    long getRowsRead();
+
+    /**
+     * @return the number of rows rejected by a filter
+     */
+    long getRowsRejected();
+
+    /**
+     * @return the number of rows skipped as unchanged since the last harvest
+     */
+    long getRowsUnchanged();
+
+    /**
+     * @return the number of records written to storage
+     */
+    long getRecordsStored();
+
+    /**
+     * @return rows read per second since the first row
+     */
+    double getRowsPerSecond();
+
+    /**
+     * @return mean time to read a row
+     */
+    double getReadMeanMicros();
+
+    /**
+     * @return 99th percentile time to read a row
+     */
+    double getReadP99Micros();
+
+    /**
+     * @return mean time to run the filters of a row
+     */
+    double getFilterMeanMicros();
+
+    /**
+     * @return 99th percentile time to run the filters of a row
+     */
+    double getFilterP99Micros();
+
+    /**
+     * @return mean time to build the data of a record
+     */
+    double getBuildMeanMicros();
+
+    /**
+     * @return 99th percentile time to build the data of a record
+     */
+    double getBuildP99Micros();
+
+    /**
+     * @return mean time to hash the OID of a record
+     */
+    double getHashMeanMicros();
+
+    /**
+     * @return 99th percentile time to hash the OID of a record
+     */
+    double getHashP99Micros();
+
+    /**
+     * @return mean time of a storage write
+     */
+    double getStoreMeanMicros();
+
+    /**
+     * @return 99th percentile time of a storage write
+     */
+    double getStoreP99Micros();
+
+    /**
+     * @return the number of rows in the next batch
+     */
+    int getBatchSize();
+
+    /**
+     * @return the number of batches returned to the harvest client
+     */
+    long getBatches();
+
+    /**
+     * @return mean time of a batch, in milliseconds
+     */
+    double getBatchMeanMillis();
+
+    /**
+     * @return 99th percentile time of a batch, in milliseconds
+     */
+    double getBatchP99Millis();
+
+    /**
+     * @return the number of rows each filter rejected, as
+     *         "field Filter (type,regex) = count"
+     */
+    String[] getFilterRejections();
+}
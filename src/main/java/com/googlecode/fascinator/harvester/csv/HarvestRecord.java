@@ -0,0 +1,217 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONValue;
+
+import com.googlecode.fascinator.common.JsonObject;
+
+/**
+ * A record built from a row of the CSV file, ready to be stored.
+ * <p>
+ * A record made straight from a row keeps the cells of the row, and only
+ * builds its data and metadata when they are first asked for. Until then
+ * {@link #writeJson(Writer)} writes it without building them at all.
+ */
+public class HarvestRecord {
+
+    /** Object ID */
+    private final String oid;
+
+    /** The "recordIDPrefix" node */
+    private final String recordIdPrefix;
+
+    /** The "data" node, or null until it is built */
+    private JsonObject data;
+
+    /** The "metadata" node, or null until it is built */
+    private JsonObject metadata;
+
+    /** The "dc.identifier" of the record */
+    private final String identifier;
+
+    /** The cells of the row, or null if the data was given */
+    private final String[] columns;
+
+    /** Turns the cells into data, or null if the data was given */
+    private final RecordWriter writer;
+
+    /**
+     * Creates a record.
+     *
+     * @param oid the object ID
+     * @param recordIdPrefix the record ID prefix
+     * @param data the field values of the row
+     * @param metadata the metadata of the row
+     */
+    HarvestRecord(String oid, String recordIdPrefix, JsonObject data,
+            JsonObject metadata) {
+        this.oid = oid;
+        this.recordIdPrefix = recordIdPrefix;
+        this.data = data;
+        this.metadata = metadata;
+        identifier = null;
+        columns = null;
+        writer = null;
+    }
+
+    /**
+     * Creates a record from the cells of a row.
+     *
+     * @param oid the object ID
+     * @param recordIdPrefix the record ID prefix
+     * @param identifier the "dc.identifier" of the record
+     * @param columns the cells of the row
+     * @param writer turns the cells into data
+     */
+    HarvestRecord(String oid, String recordIdPrefix, String identifier,
+            String[] columns, RecordWriter writer) {
+        this.oid = oid;
+        this.recordIdPrefix = recordIdPrefix;
+        this.identifier = identifier;
+        this.columns = columns;
+        this.writer = writer;
+    }
+
+    /**
+     * Gets the ID of the object this record is stored in.
+     *
+     * @return the object ID
+     */
+    public String getOid() {
+        return oid;
+    }
+
+    /**
+     * Gets the value of the "recordIDPrefix" node.
+     *
+     * @return the record ID prefix
+     */
+    public String getRecordIdPrefix() {
+        return recordIdPrefix;
+    }
+
+    /**
+     * Gets the "data" node: the included field values of the row.
+     *
+     * @return the data
+     */
+    public JsonObject getData() {
+        if (data == null) {
+            data = writer.buildData(columns);
+        }
+        return data;
+    }
+
+    /**
+     * Gets the "metadata" node.
+     *
+     * @return the metadata
+     */
+    @SuppressWarnings("unchecked")
+    public JsonObject getMetadata() {
+        if (metadata == null) {
+            metadata = new JsonObject();
+            metadata.put("dc.identifier", identifier);
+        }
+        return metadata;
+    }
+
+    /**
+     * Writes the record as compact JSON, as a new payload holds it: its
+     * record ID prefix, data and metadata.
+     *
+     * @param out where to write the JSON
+     * @throws IOException if the JSON could not be written
+     */
+    @SuppressWarnings("unchecked")
+    public void writeJson(Writer out) throws IOException {
+        if (data == null && metadata == null && writer != null) {
+            writer.write(out, recordIdPrefix, identifier, columns);
+            return;
+        }
+        JsonObject json = new JsonObject();
+        json.put("recordIDPrefix", recordIdPrefix);
+        json.put("data", getData());
+        json.put("metadata", getMetadata());
+        JSONValue.writeJSONString(json, out);
+    }
+
+    /**
+     * Merges a later record for the same object into this one, with the
+     * same result as storing the two records one after the other when
+     * existing payloads are merged. Without merging, the later record
+     * replaces this one instead.
+     *
+     * @param later a record for the same object
+     */
+    void merge(HarvestRecord later) {
+        getData().putAll(later.getData());
+        getMetadata().putAll(later.getMetadata());
+    }
+
+    /**
+     * Folds a later row of the same object into this record. Where the two
+     * rows hold different values for a field, the field holds all of them
+     * as an array, in file order. Values that are already there are not
+     * repeated, so a field that is the same in every row keeps one value.
+     *
+     * @param later a record for the same object
+     */
+    @SuppressWarnings("unchecked")
+    void aggregate(HarvestRecord later) {
+        JsonObject values = getData();
+        for (Map.Entry<Object, Object> entry : ((Map<Object, Object>) later
+                .getData()).entrySet()) {
+            Object key = entry.getKey();
+            if (!values.containsKey(key)) {
+                values.put(key, entry.getValue());
+                continue;
+            }
+            Object value = values.get(key);
+            JSONArray list;
+            if (value instanceof JSONArray) {
+                list = (JSONArray) value;
+            } else {
+                list = new JSONArray();
+                list.add(value);
+            }
+            Object more = entry.getValue();
+            if (more instanceof List) {
+                for (Object item : (List<Object>) more) {
+                    if (!list.contains(item)) {
+                        list.add(item);
+                    }
+                }
+            } else if (!list.contains(more)) {
+                list.add(more);
+            }
+            if (list != value && list.size() > 1) {
+                values.put(key, list);
+            }
+        }
+        getMetadata().putAll(later.getMetadata());
+    }
+}
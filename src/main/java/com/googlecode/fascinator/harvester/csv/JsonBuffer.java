@@ -0,0 +1,74 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * A reusable UTF-8 buffer that JSON payloads are written into before being
+ * handed to storage. The underlying byte array grows to fit the largest
+ * payload and is then reused, and the stream given to storage reads the
+ * buffer in place rather than copying it.
+ * <p>
+ * A buffer belongs to a single thread, and its contents are only valid until
+ * the next call to {@link #writer()}.
+ */
+class JsonBuffer extends ByteArrayOutputStream {
+
+    /** Default initial size */
+    private static final int DEFAULT_SIZE = 4096;
+
+    /** Encodes into this buffer */
+    private final Writer writer;
+
+    /**
+     * Creates an empty buffer.
+     */
+    JsonBuffer() {
+        super(DEFAULT_SIZE);
+        writer = new OutputStreamWriter(this, Charset.forName("UTF-8"));
+    }
+
+    /**
+     * Empties the buffer and gets a writer to fill it with.
+     *
+     * @return a writer that encodes into this buffer
+     */
+    Writer writer() {
+        reset();
+        return writer;
+    }
+
+    /**
+     * Gets the written content as a stream, without copying it.
+     *
+     * @return a stream over the content of the buffer
+     * @throws IOException if the writer could not be flushed
+     */
+    InputStream toInputStream() throws IOException {
+        writer.flush();
+        return new ByteArrayInputStream(buf, 0, count);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * The objects known to exist in storage, loaded once at the start of a
+ * harvest so that new objects can be created without first asking storage
+ * for them and catching the resulting exception.
+ * <p>
+ * IDs are kept as 64-bit hashes in an open-addressing table of primitive
+ * longs. A hash collision can only make a new object look like an existing
+ * one, in which case the harvester falls back to creating it.
+ */
+class KnownObjects {
+
+    /** Hashes are never 0, so 0 marks an empty slot */
+    private static final long EMPTY = 0;
+
+    /** Smallest table */
+    private static final int MIN_CAPACITY = 1024;
+
+    /** Object ID hashes */
+    private long[] keys = new long[MIN_CAPACITY];
+
+    /** Number of entries */
+    private int size;
+
+    /**
+     * Loads the objects listed by a storage plugin.
+     *
+     * @param oids the object IDs in storage
+     * @return the known objects
+     */
+    static KnownObjects fromStorage(Set<String> oids) {
+        KnownObjects known = new KnownObjects();
+        for (String oid : oids) {
+            known.add(oid);
+        }
+        return known;
+    }
+
+    /**
+     * Loads the objects produced by the previous harvest, from the sorted
+     * index kept for deletion detection.
+     *
+     * @param file the index file, which may not exist yet
+     * @return the known objects
+     * @throws IOException if the index could not be read
+     */
+    static KnownObjects fromIndex(File file) throws IOException {
+        KnownObjects known = new KnownObjects();
+        if (file.exists()) {
+            BufferedReader reader = ExternalSorter.openReader(file);
+            try {
+                String oid;
+                while ((oid = reader.readLine()) != null) {
+                    known.add(oid);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return known;
+    }
+
+    /**
+     * Whether an object is known to exist.
+     *
+     * @param oid the object ID
+     * @return <code>true</code> if it exists, or collides with one that does
+     */
+    synchronized boolean contains(String oid) {
+        return keys[slot(key(oid))] != EMPTY;
+    }
+
+    /**
+     * Records that an object exists.
+     *
+     * @param oid the object ID
+     */
+    synchronized void add(String oid) {
+        long key = key(oid);
+        int slot = slot(key);
+        if (keys[slot] == EMPTY) {
+            keys[slot] = key;
+            size++;
+            if (size * 2 > keys.length) {
+                rehash();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of known objects.
+     *
+     * @return the number of objects
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    private static long key(String oid) {
+        long key = FingerprintIndex.hash(FingerprintIndex.SEED, oid);
+        return key == EMPTY ? 1 : key;
+    }
+
+    private int slot(long key) {
+        int mask = keys.length - 1;
+        int slot = (int) (key ^ (key >>> 32)) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash() {
+        long[] old = keys;
+        keys = new long[old.length * 2];
+        for (long key : old) {
+            if (key != EMPTY) {
+                keys[slot(key)] = key;
+            }
+        }
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads rows from a memory-mapped UTF-8 CSV file.
+ * <p>
+ * The file is mapped in windows with NIO and parsed as bytes, and each value
+ * is decoded in one call once its bytes have been found. As the delimiter,
+ * quote, escape and line break characters are all single bytes in UTF-8,
+ * well-formed files give exactly the same rows as opencsv's
+ * <code>CSVReader</code> with its default quote (") and escape (\)
+ * characters, including values that span several lines.
+ * <p>
+ * A reader can be limited to a byte range of the file. It reads every row
+ * that starts inside the range, so ranges from {@link #split(File, char, int)}
+ * can be parsed independently and together give all rows of the file.
+ * <p>
+ * With a projection, the cells of unused columns are still scanned for
+ * delimiters, quotes and line breaks, but their bytes are neither kept nor
+ * decoded, and they are returned as null.
+ */
+class MappedCSVReader implements RowReader {
+
+    /** Default size of a mapped window */
+    static final int DEFAULT_WINDOW = 32 * 1024 * 1024;
+
+    /** Values are decoded as UTF-8 */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Quote character, as used by CSVReader */
+    private static final int QUOTE = '"';
+
+    /** Escape character, as used by CSVReader */
+    private static final int ESCAPE = '\\';
+
+    /** Returned at the end of the file or line */
+    private static final int END = -1;
+
+    /** The file */
+    private final FileInputStream in;
+
+    /** The file channel */
+    private final FileChannel channel;
+
+    /** Length of the file */
+    private final long length;
+
+    /** End of the range, rows starting here or later are not read */
+    private final long end;
+
+    /** Column delimiter */
+    private final int separator;
+
+    /** Size of a mapped window */
+    private final int window;
+
+    /** The mapped window */
+    private ByteBuffer buffer;
+
+    /** File offset of the start of the window */
+    private long bufferStart;
+
+    /** Bytes of the current value */
+    private byte[] value = new byte[256];
+
+    /** Number of bytes in the current value */
+    private int valueLength;
+
+    /** Values of the current row */
+    private final List<String> row = new ArrayList<String>();
+
+    /** Whether the end of the range has been reached */
+    private boolean done;
+
+    /** Columns to decode, or null for all */
+    private boolean[] projection;
+
+    /** Whether the current value is decoded */
+    private boolean keep = true;
+
+    /**
+     * Creates a reader for a whole file.
+     *
+     * @param file the CSV file
+     * @param separator the column delimiter, a single-byte character
+     * @throws IOException if the file could not be opened
+     */
+    MappedCSVReader(File file, char separator) throws IOException {
+        this(file, separator, 0, Long.MAX_VALUE, DEFAULT_WINDOW);
+    }
+
+    /**
+     * Creates a reader for the rows starting in a byte range of a file.
+     *
+     * @param file the CSV file
+     * @param separator the column delimiter, a single-byte character
+     * @param start offset of the first row to read
+     * @param end rows starting at or after this offset are not read
+     * @param window size of each mapped window
+     * @throws IOException if the file could not be opened
+     */
+    MappedCSVReader(File file, char separator, long start, long end,
+            int window) throws IOException {
+        if (separator >= 0x80) {
+            throw new IllegalArgumentException(
+                    "Delimiter must be a single-byte character: " + separator);
+        }
+        this.separator = separator;
+        this.window = window;
+        in = new FileInputStream(file);
+        channel = in.getChannel();
+        length = channel.size();
+        this.end = Math.min(end, length);
+        map(Math.min(start, length));
+    }
+
+    /**
+     * Finds the offsets that split a file into ranges of about equal size,
+     * each starting at the beginning of a row. Quoted values containing line
+     * breaks are honoured, so no range starts inside a row.
+     *
+     * @param file the CSV file
+     * @param separator the column delimiter
+     * @param parts the number of ranges
+     * @return <code>parts + 1</code> offsets, the first 0 and the last the
+     *         length of the file; range <code>i</code> runs from offset
+     *         <code>i</code> to offset <code>i + 1</code>
+     * @throws IOException if the file could not be read
+     */
+    static long[] split(File file, char separator, int parts)
+            throws IOException {
+        return split(file, separator, 0, parts);
+    }
+
+    /**
+     * Finds the offsets that split the rows from an offset to the end of a
+     * file into ranges of about equal size. The bytes are scanned from the
+     * offset, so it must be the start of a row, such as the end of the
+     * header.
+     *
+     * @param file the CSV file
+     * @param separator the column delimiter
+     * @param start offset of the first row
+     * @param parts the number of ranges
+     * @return <code>parts + 1</code> offsets, the first <code>start</code>
+     *         and the last the length of the file
+     * @throws IOException if the file could not be read
+     */
+    static long[] split(File file, char separator, long start, int parts)
+            throws IOException {
+        MappedCSVReader reader = new MappedCSVReader(file, separator, start,
+                Long.MAX_VALUE, DEFAULT_WINDOW);
+        try {
+            return reader.split(parts);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Gets the offset of the next row.
+     *
+     * @return a file offset
+     */
+    @Override
+    public long position() {
+        return bufferStart + buffer.position();
+    }
+
+    @Override
+    public void setProjection(boolean[] columns) {
+        projection = columns;
+    }
+
+    @Override
+    public String[] readNext() throws IOException {
+        if (done || position() >= end) {
+            done = true;
+            return null;
+        }
+        int c = read();
+        if (c == END) {
+            done = true;
+            return null;
+        }
+        row.clear();
+        valueLength = 0;
+        keep = wanted(0);
+        boolean inQuotes = false;
+        // position in the current line, in UTF-16 characters
+        int index = 0;
+        int previous = END;
+        while (true) {
+            if (c == END) {
+                done = true;
+                if (inQuotes) {
+                    // CSVReader drops an unterminated quoted value
+                    return row.isEmpty() ? null : toArray();
+                }
+                addValue();
+                return toArray();
+            }
+            if (c == '\n' || c == '\r') {
+                if (c == '\r' && peek() == '\n') {
+                    read();
+                }
+                if (!inQuotes) {
+                    addValue();
+                    return toArray();
+                }
+                // a quoted value continues on the next line
+                append('\n');
+                index = 0;
+                previous = END;
+                c = read();
+                continue;
+            }
+
+            int current = index;
+            if ((c & 0xc0) != 0x80) {
+                index += c >= 0xf0 ? 2 : 1;
+            }
+            if (c == ESCAPE) {
+                int next = peekInLine();
+                if (inQuotes && (next == QUOTE || next == ESCAPE)) {
+                    append(next);
+                    read();
+                    index++;
+                    c = next;
+                }
+            } else if (c == QUOTE) {
+                int next = peekInLine();
+                if (inQuotes && next == QUOTE) {
+                    append(next);
+                    read();
+                    index++;
+                } else {
+                    inQuotes = !inQuotes;
+                    // the tricky case of an embedded quote in the middle: a,bc"d"ef,g
+                    if (current > 2 && previous != separator && next != END
+                            && next != separator) {
+                        append(c);
+                    }
+                }
+            } else if (c == separator && !inQuotes) {
+                addValue();
+            } else {
+                append(c);
+            }
+            previous = c;
+            c = read();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Splits the rest of the range into parts starting at row boundaries.
+     *
+     * @param parts the number of parts
+     * @return <code>parts + 1</code> offsets
+     * @throws IOException if the file could not be read
+     */
+    private long[] split(int parts) throws IOException {
+        long start = position();
+        long[] bounds = new long[parts + 1];
+        bounds[0] = start;
+        int part = 1;
+        boolean inQuotes = false;
+        int c;
+        while (part < parts && (c = read()) != END) {
+            if (c == '\n' || c == '\r') {
+                if (c == '\r' && peek() == '\n') {
+                    read();
+                }
+                if (!inQuotes) {
+                    long offset = position();
+                    while (part < parts
+                            && offset >= start + (end - start) * part / parts) {
+                        bounds[part++] = offset;
+                    }
+                }
+            } else if (c == ESCAPE) {
+                int next = peekInLine();
+                if (inQuotes && (next == QUOTE || next == ESCAPE)) {
+                    read();
+                }
+            } else if (c == QUOTE) {
+                if (inQuotes && peekInLine() == QUOTE) {
+                    read();
+                } else {
+                    inQuotes = !inQuotes;
+                }
+            }
+        }
+        while (part <= parts) {
+            bounds[part++] = end;
+        }
+        return bounds;
+    }
+
+    private int read() throws IOException {
+        if (!buffer.hasRemaining() && !remap()) {
+            return END;
+        }
+        return buffer.get() & 0xff;
+    }
+
+    private int peek() throws IOException {
+        if (!buffer.hasRemaining() && !remap()) {
+            return END;
+        }
+        return buffer.get(buffer.position()) & 0xff;
+    }
+
+    /**
+     * Looks at the next character of the current line.
+     *
+     * @return the next byte, or {@link #END} at the end of the line
+     * @throws IOException if the file could not be read
+     */
+    private int peekInLine() throws IOException {
+        int next = peek();
+        return next == '\n' || next == '\r' ? END : next;
+    }
+
+    /**
+     * Maps the window following the current one.
+     *
+     * @return <code>false</code> at the end of the file
+     * @throws IOException if the file could not be mapped
+     */
+    private boolean remap() throws IOException {
+        long offset = bufferStart + buffer.limit();
+        if (offset >= length) {
+            return false;
+        }
+        map(offset);
+        return true;
+    }
+
+    private void map(long offset) throws IOException {
+        long size = Math.min(window, length - offset);
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+        bufferStart = offset;
+    }
+
+    private void append(int c) {
+        if (!keep) {
+            return;
+        }
+        if (valueLength == value.length) {
+            byte[] larger = new byte[value.length * 2];
+            System.arraycopy(value, 0, larger, 0, valueLength);
+            value = larger;
+        }
+        value[valueLength++] = (byte) c;
+    }
+
+    private boolean wanted(int column) {
+        return projection == null
+                || (column < projection.length && projection[column]);
+    }
+
+    private void addValue() {
+        row.add(keep ? decode() : null);
+        valueLength = 0;
+        keep = wanted(row.size());
+    }
+
+    private String decode() {
+        String decoded = new String(value, 0, valueLength, UTF8);
+        valueLength = 0;
+        return decoded;
+    }
+
+    private String[] toArray() {
+        return row.toArray(new String[row.size()]);
+    }
+}
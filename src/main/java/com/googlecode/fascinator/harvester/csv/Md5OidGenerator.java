@@ -0,0 +1,175 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Generates the MD5 OIDs the harvester has always used: the hex MD5 of the
+ * file name, record ID prefix and record ID, as UTF-8.
+ * <p>
+ * When the file name and prefix fill at least one MD5 block they are
+ * digested once, and each OID starts from a clone of that digest, so only
+ * the record ID is hashed per row. Shorter ones are cheaper to copy into a
+ * digest kept by each thread than to clone. ASCII record IDs are encoded
+ * into a buffer kept by each thread.
+ */
+class Md5OidGenerator extends OidGenerator {
+
+    /** The encoding OIDs are hashed in */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** The size of an MD5 block in bytes */
+    private static final int BLOCK_SIZE = 64;
+
+    /** The file name and prefix */
+    private final String prefix;
+
+    /** The file name and prefix as UTF-8 */
+    private final byte[] prefixBytes;
+
+    /** The digest of the file name and prefix, never updated, or null */
+    private final MessageDigest prefixDigest;
+
+    /** Whether OIDs must be hashed from the whole string */
+    private final boolean slow;
+
+    /** Buffers of each thread */
+    private final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            try {
+                return new Buffers();
+            } catch (NoSuchAlgorithmException nsae) {
+                return null;
+            }
+        }
+    };
+
+    /**
+     * Creates a generator.
+     *
+     * @param filename the name of the harvested file
+     * @param idPrefix the record ID prefix
+     */
+    Md5OidGenerator(String filename, String idPrefix) {
+        prefix = filename + idPrefix;
+        prefixBytes = prefix.getBytes(UTF_8);
+        prefixDigest = prefixBytes.length < BLOCK_SIZE ? null
+                : digestPrefix(prefixBytes);
+        slow = splitsSurrogate(prefix);
+    }
+
+    @Override
+    String createOid(String recordId) {
+        Buffers local = buffers.get();
+        if (slow || local == null) {
+            return DigestUtils.md5Hex(prefix + recordId);
+        }
+        MessageDigest digest;
+        if (prefixDigest != null) {
+            try {
+                digest = (MessageDigest) prefixDigest.clone();
+            } catch (CloneNotSupportedException cnse) {
+                // checked by digestPrefix
+                throw new IllegalStateException(cnse);
+            }
+        } else {
+            digest = local.digest;
+            digest.reset();
+            digest.update(prefixBytes);
+        }
+        String id = String.valueOf(recordId);
+        int length = id.length();
+        if (local.bytes.length < length) {
+            local.bytes = new byte[Math.max(length, 2 * local.bytes.length)];
+        }
+        byte[] bytes = local.bytes;
+        for (int i = 0; i < length; i++) {
+            char c = id.charAt(i);
+            if (c >= 0x80) {
+                digest.update(id.getBytes(UTF_8));
+                return hex(digest.digest(), local.hex);
+            }
+            bytes[i] = (byte) c;
+        }
+        digest.update(bytes, 0, length);
+        return hex(digest.digest(), local.hex);
+    }
+
+    /**
+     * Checks whether a surrogate pair may be split between the prefix and
+     * the ID. Together they are encoded as a pair, which the prefix and the
+     * ID cannot be encoded on their own to match.
+     *
+     * @param prefix the file name and prefix
+     * @return <code>true</code> if the prefix ends with a high surrogate
+     */
+    private static boolean splitsSurrogate(String prefix) {
+        return prefix.length() > 0
+                && Character.isHighSurrogate(prefix.charAt(prefix.length() - 1));
+    }
+
+    /**
+     * Digests the file name and prefix.
+     *
+     * @param prefixBytes the file name and prefix as UTF-8
+     * @return the digest, or null if it cannot be cloned
+     */
+    private static MessageDigest digestPrefix(byte[] prefixBytes) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(prefixBytes);
+            digest.clone();
+            return digest;
+        } catch (NoSuchAlgorithmException nsae) {
+            return null;
+        } catch (CloneNotSupportedException cnse) {
+            return null;
+        }
+    }
+
+    /**
+     * The buffers of a thread.
+     */
+    private static class Buffers {
+
+        /** The digest of the thread */
+        private final MessageDigest digest;
+
+        /** The encoded record ID */
+        private byte[] bytes = new byte[64];
+
+        /** The hex of the digest */
+        private final char[] hex = new char[32];
+
+        /**
+         * Creates the buffers.
+         *
+         * @throws NoSuchAlgorithmException if there is no MD5
+         */
+        private Buffers() throws NoSuchAlgorithmException {
+            digest = MessageDigest.getInstance("MD5");
+        }
+    }
+}
@@ -0,0 +1,450 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.googlecode.fascinator.api.harvester.HarvesterException;
+
+/**
+ * Harvests several CSV files, each with its own harvester, on a fixed set of
+ * threads.
+ * <p>
+ * Each thread takes the next file, harvests it batch by batch and queues the
+ * object IDs of every batch, which are handed out one batch at a time by
+ * {@link #nextBatch()}. The queue is bounded, so threads wait while the
+ * batches are not being taken. Once every file has been harvested, the
+ * deleted objects of each file are handed out in file order. Deleted objects
+ * are only found within the files being harvested: the objects of a file
+ * that has been removed since the last harvest are not reported.
+ * <p>
+ * The harvester of a file is shut down as soon as it is no longer needed:
+ * once the file has been harvested, or once its deleted objects have been
+ * handed out.
+ */
+class MultiFileHarvest {
+
+    /**
+     * Creates the harvester of a file.
+     */
+    interface FileHarvesterFactory {
+
+        /**
+         * Creates and initialises the harvester of a file.
+         *
+         * @param file the CSV file
+         * @return the harvester
+         * @throws HarvesterException if the harvester could not be created
+         */
+        CSVHarvester open(File file) throws HarvesterException;
+    }
+
+    /** Queued by a thread once it has no more files to harvest */
+    private static final Set<String> THREAD_DONE = Collections
+            .unmodifiableSet(new HashSet<String>());
+
+    /** Batches queued per thread */
+    private static final int BATCHES_PER_THREAD = 2;
+
+    /** Logging */
+    private Logger log = LoggerFactory.getLogger(MultiFileHarvest.class);
+
+    /** The files, in name order */
+    private final List<File> files;
+
+    /** The harvester of each file, from when it is started until it is shut down */
+    private final CSVHarvester[] harvesters;
+
+    /** Creates the harvester of each file */
+    private final FileHarvesterFactory factory;
+
+    /** Object IDs of harvested batches */
+    private final BlockingQueue<Set<String>> batches;
+
+    /** The threads */
+    private final Thread[] threads;
+
+    /** Index of the next file to harvest */
+    private int nextFile;
+
+    /** Threads that have not yet finished, as seen by the caller */
+    private int running;
+
+    /** Index of the file whose deleted objects are being read */
+    private int deletedFile;
+
+    /** The first error raised by any thread */
+    private volatile HarvesterException error;
+
+    /** Whether the threads have been told to stop */
+    private volatile boolean stopped;
+
+    /**
+     * Starts harvesting the files.
+     *
+     * @param name a name for the threads
+     * @param files the files
+     * @param threadCount the number of files harvested at once
+     * @param factory creates the harvester of each file
+     */
+    MultiFileHarvest(String name, List<File> files, int threadCount,
+            FileHarvesterFactory factory) {
+        this.files = files;
+        this.factory = factory;
+        harvesters = new CSVHarvester[files.size()];
+        int count = Math.max(1, Math.min(threadCount, files.size()));
+        batches = new ArrayBlockingQueue<Set<String>>(count * BATCHES_PER_THREAD);
+        threads = new Thread[count];
+        running = count;
+        for (int i = 0; i < count; i++) {
+            threads[i] = new Thread(name + "-" + i) {
+                @Override
+                public void run() {
+                    work();
+                }
+            };
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    /**
+     * Finds the files of a location that is a directory or a glob.
+     * <p>
+     * A directory gives every file in it that is not hidden. A glob is
+     * matched against the names of the files in its directory, so only its
+     * last part may hold wildcards, for example
+     * <code>/data/daily/*.csv</code>. A glob may use <code>*</code>,
+     * <code>?</code>, <code>[...]</code> (<code>[!...]</code> to negate) and
+     * <code>{a,b}</code>.
+     *
+     * @param location a file, directory or glob
+     * @return the files in name order, or null if the location is a single
+     *         file
+     * @throws HarvesterException if the directory could not be read
+     */
+    static List<File> findFiles(File location) throws HarvesterException {
+        File dir;
+        String glob;
+        if (location.isDirectory()) {
+            dir = location;
+            glob = "*";
+        } else if (isGlob(location.getName())) {
+            dir = location.getAbsoluteFile().getParentFile();
+            glob = location.getName();
+        } else {
+            return null;
+        }
+        if (!dir.isDirectory()) {
+            throw new HarvesterException("Could not find directory '" + dir + "'");
+        }
+        final Pattern pattern;
+        try {
+            pattern = globPattern(glob);
+        } catch (IllegalArgumentException iae) {
+            throw new HarvesterException("Invalid file pattern '" + glob + "'", iae);
+        }
+        File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && !file.isHidden()
+                        && pattern.matcher(file.getName()).matches();
+            }
+        });
+        if (files == null) {
+            throw new HarvesterException("Could not read directory '" + dir + "'");
+        }
+        List<File> found = new ArrayList<File>();
+        Collections.addAll(found, files);
+        Collections.sort(found);
+        return found;
+    }
+
+    /**
+     * Compiles a glob into a regular expression matching whole file names.
+     *
+     * @param glob the glob
+     * @return the pattern
+     * @throws IllegalArgumentException if a bracket or brace is not closed
+     */
+    static Pattern globPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        boolean inBraces = false;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+            case '*':
+                regex.append(".*");
+                break;
+            case '?':
+                regex.append('.');
+                break;
+            case '[':
+                int close = glob.indexOf(']', i + 2);
+                if (close < 0) {
+                    throw new IllegalArgumentException("Unclosed '[' at " + i);
+                }
+                regex.append('[');
+                int from = i + 1;
+                if (glob.charAt(from) == '!') {
+                    regex.append('^');
+                    from++;
+                }
+                for (int j = from; j < close; j++) {
+                    char member = glob.charAt(j);
+                    if (member == '\\' || member == '[' || member == ']'
+                            || member == '^' || member == '&') {
+                        regex.append('\\');
+                    }
+                    regex.append(member);
+                }
+                regex.append(']');
+                i = close;
+                break;
+            case '{':
+                if (inBraces) {
+                    throw new IllegalArgumentException("Nested '{' at " + i);
+                }
+                inBraces = true;
+                regex.append("(?:");
+                break;
+            case '}':
+                if (!inBraces) {
+                    throw new IllegalArgumentException("Unopened '}' at " + i);
+                }
+                inBraces = false;
+                regex.append(')');
+                break;
+            case ',':
+                regex.append(inBraces ? "|" : ",");
+                break;
+            default:
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        if (inBraces) {
+            throw new IllegalArgumentException("Unclosed '{'");
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * Checks whether a file name holds glob wildcards.
+     *
+     * @param name the file name
+     * @return <code>true</code> if it has any of <code>*?[{</code>
+     */
+    private static boolean isGlob(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            switch (name.charAt(i)) {
+            case '*':
+            case '?':
+            case '[':
+            case '{':
+                return true;
+            default:
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether there may be more batches.
+     *
+     * @return <code>true</code> until every file has been harvested and its
+     *         batches taken
+     */
+    boolean hasMore() {
+        return running > 0 || !batches.isEmpty();
+    }
+
+    /**
+     * Waits for the next harvested batch.
+     *
+     * @return the object IDs of the batch, empty once every file has been
+     *         harvested
+     * @throws HarvesterException if harvesting any file failed, or if
+     *             interrupted
+     */
+    Set<String> nextBatch() throws HarvesterException {
+        while (running > 0 || !batches.isEmpty()) {
+            Set<String> batch;
+            try {
+                batch = batches.take();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new HarvesterException("Interrupted waiting for files", ex);
+            }
+            if (error != null) {
+                throw error;
+            }
+            if (batch == THREAD_DONE) {
+                running--;
+            } else {
+                return batch;
+            }
+        }
+        return new HashSet<String>();
+    }
+
+    /**
+     * Checks whether there may be more deleted objects.
+     *
+     * @return <code>true</code> if there may be more
+     */
+    boolean hasMoreDeleted() {
+        if (hasMore()) {
+            return false;
+        }
+        for (int i = deletedFile; i < harvesters.length; i++) {
+            if (harvesters[i] != null && harvesters[i].hasMoreDeletedObjects()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the next batch of deleted objects, from the first file that has
+     * any left.
+     *
+     * @return the deleted object IDs, empty until every file has been
+     *         harvested
+     * @throws HarvesterException if an error occurred
+     */
+    Set<String> nextDeleted() throws HarvesterException {
+        if (hasMore()) {
+            return new HashSet<String>();
+        }
+        for (; deletedFile < harvesters.length; deletedFile++) {
+            CSVHarvester harvester = harvesters[deletedFile];
+            if (harvester != null && harvester.hasMoreDeletedObjects()) {
+                return harvester.getDeletedObjectIdList();
+            }
+            close(deletedFile);
+        }
+        return new HashSet<String>();
+    }
+
+    /**
+     * Stops the threads and shuts down the harvester of every file.
+     */
+    void shutdown() {
+        stopped = true;
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (int i = 0; i < harvesters.length; i++) {
+            close(i);
+        }
+    }
+
+    /**
+     * Shuts down the harvester of a file, if it is still open.
+     *
+     * @param index the index of the file
+     */
+    private void close(int index) {
+        CSVHarvester harvester = harvesters[index];
+        if (harvester != null) {
+            harvesters[index] = null;
+            try {
+                harvester.shutdown();
+            } catch (HarvesterException ex) {
+                log.warn("Failed to shut down a file harvester: ", ex);
+            }
+        }
+    }
+
+    /**
+     * Takes the next file to harvest.
+     *
+     * @return the index of the file, or -1 if there are none left
+     */
+    private synchronized int takeFile() {
+        if (nextFile == files.size()) {
+            return -1;
+        }
+        return nextFile++;
+    }
+
+    private void fail(HarvesterException ex) {
+        synchronized (this) {
+            if (error == null) {
+                error = ex;
+            }
+        }
+    }
+
+    /**
+     * Thread loop: harvest files until there are none left.
+     */
+    private void work() {
+        try {
+            int index;
+            while (error == null && !stopped && (index = takeFile()) >= 0) {
+                File file = files.get(index);
+                try {
+                    CSVHarvester harvester = factory.open(file);
+                    harvesters[index] = harvester;
+                    while (error == null && !stopped && harvester.hasMoreObjects()) {
+                        Set<String> batch = harvester.getObjectIdList();
+                        if (!batch.isEmpty()) {
+                            batches.put(batch);
+                        }
+                    }
+                    log.debug("Harvested '{}'", file);
+                    if (!harvester.hasMoreObjects()
+                            && !harvester.hasMoreDeletedObjects()) {
+                        // nothing more is needed from it
+                        close(index);
+                    }
+                } catch (HarvesterException ex) {
+                    fail(new HarvesterException("Error harvesting '" + file + "'", ex));
+                } catch (RuntimeException ex) {
+                    log.error("Error harvesting '" + file + "': ", ex);
+                    fail(new HarvesterException(ex));
+                }
+            }
+            batches.put(THREAD_DONE);
+        } catch (InterruptedException ex) {
+            // shutting down
+        }
+    }
+}
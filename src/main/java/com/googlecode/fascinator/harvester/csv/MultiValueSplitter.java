@@ -0,0 +1,205 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+/**
+ * Splits multi-value cells into their values.
+ * <p>
+ * The rules are those of opencsv's <code>CSVReader</code> reading the cell
+ * with its default quote (") and escape (\) characters: only the first line
+ * is used unless a quoted value continues past it, and an empty cell gives no
+ * values at all. A splitter reuses its scratch state from cell to cell, so it
+ * must not be shared between threads.
+ */
+class MultiValueSplitter {
+
+    /** Quote character, as used by CSVReader */
+    private static final char QUOTE = '"';
+
+    /** Escape character, as used by CSVReader */
+    private static final char ESCAPE = '\\';
+
+    /** Returned at the end of the cell or line */
+    private static final int END = -1;
+
+    /** Value delimiter */
+    private final char delimiter;
+
+    /** Values of the last cell */
+    private String[] values = new String[16];
+
+    /** Number of values of the last cell */
+    private int count;
+
+    /** Characters of the current value */
+    private final StringBuilder value = new StringBuilder();
+
+    /**
+     * Creates a splitter.
+     *
+     * @param delimiter the value delimiter
+     */
+    MultiValueSplitter(char delimiter) {
+        this.delimiter = delimiter;
+    }
+
+    /**
+     * Splits a cell. The values are available from {@link #values()} until the
+     * next call.
+     *
+     * @param cell the cell
+     * @return the number of values, or -1 if the cell has none (where
+     *         CSVReader would return null)
+     */
+    int split(String cell) {
+        count = 0;
+        if (cell == null || cell.length() == 0) {
+            return -1;
+        }
+        if (isPlain(cell)) {
+            int start = 0;
+            int end;
+            while ((end = cell.indexOf(delimiter, start)) >= 0) {
+                add(cell.substring(start, end));
+                start = end + 1;
+            }
+            add(start == 0 ? cell : cell.substring(start));
+            return count;
+        }
+
+        int length = cell.length();
+        int i = 0;
+        value.setLength(0);
+        boolean inQuotes = false;
+        // position in the current line
+        int index = 0;
+        int previous = END;
+        while (true) {
+            if (i == length) {
+                if (inQuotes) {
+                    // CSVReader drops an unterminated quoted value
+                    return count == 0 ? -1 : count;
+                }
+                addValue();
+                return count;
+            }
+            char c = cell.charAt(i++);
+            if (c == '\n' || c == '\r') {
+                if (c == '\r' && i < length && cell.charAt(i) == '\n') {
+                    i++;
+                }
+                if (!inQuotes) {
+                    addValue();
+                    return count;
+                }
+                // a quoted value continues on the next line
+                value.append('\n');
+                index = 0;
+                previous = END;
+                continue;
+            }
+
+            int current = index++;
+            if (c == ESCAPE) {
+                int next = peekInLine(cell, i);
+                if (inQuotes && (next == QUOTE || next == ESCAPE)) {
+                    value.append((char) next);
+                    i++;
+                    index++;
+                    c = (char) next;
+                }
+            } else if (c == QUOTE) {
+                int next = peekInLine(cell, i);
+                if (inQuotes && next == QUOTE) {
+                    value.append(QUOTE);
+                    i++;
+                    index++;
+                } else {
+                    inQuotes = !inQuotes;
+                    // the tricky case of an embedded quote in the middle: a,bc"d"ef,g
+                    if (current > 2 && previous != delimiter && next != END
+                            && next != delimiter) {
+                        value.append(c);
+                    }
+                }
+            } else if (c == delimiter && !inQuotes) {
+                addValue();
+            } else {
+                value.append(c);
+            }
+            previous = c;
+        }
+    }
+
+    /**
+     * Gets the values of the last cell. Only the first {@link #split(String)}
+     * entries are valid, and the array is reused by the next call.
+     *
+     * @return the values
+     */
+    String[] values() {
+        return values;
+    }
+
+    /**
+     * Checks whether a cell can be split at its delimiters alone.
+     *
+     * @param cell the cell
+     * @return <code>true</code> if the cell has no quotes, escapes or line
+     *         breaks
+     */
+    private boolean isPlain(String cell) {
+        for (int i = 0; i < cell.length(); i++) {
+            char c = cell.charAt(i);
+            if (c == QUOTE || c == ESCAPE || c == '\n' || c == '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Looks at the next character of the current line.
+     *
+     * @param cell the cell
+     * @param i index of the next character
+     * @return the next character, or {@link #END} at the end of the line
+     */
+    private int peekInLine(String cell, int i) {
+        if (i == cell.length()) {
+            return END;
+        }
+        char next = cell.charAt(i);
+        return next == '\n' || next == '\r' ? END : next;
+    }
+
+    private void addValue() {
+        add(value.toString());
+        value.setLength(0);
+    }
+
+    private void add(String item) {
+        if (count == values.length) {
+            String[] larger = new String[values.length * 2];
+            System.arraycopy(values, 0, larger, 0, count);
+            values = larger;
+        }
+        values[count++] = item;
+    }
+}
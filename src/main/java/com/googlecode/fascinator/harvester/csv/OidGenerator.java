@@ -0,0 +1,69 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+/**
+ * Turns record IDs into the object IDs they are stored under. The OID of a
+ * record depends on the name of the harvested file and the record ID prefix
+ * as well as the record ID, and a generator is made for one file and prefix.
+ * <p>
+ * Generators are used by every worker thread at once.
+ */
+abstract class OidGenerator {
+
+    /** Hex digits, lower case */
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Gets the OID of a record.
+     *
+     * @param recordId the record ID, without the prefix
+     * @return the OID
+     */
+    abstract String createOid(String recordId);
+
+    /**
+     * Writes bytes as lower case hex.
+     *
+     * @param bytes the bytes
+     * @param out where to write the hex, twice as long as the bytes
+     * @return the hex
+     */
+    static String hex(byte[] bytes, char[] out) {
+        for (int i = 0; i < bytes.length; i++) {
+            out[2 * i] = DIGITS[(bytes[i] >> 4) & 0xf];
+            out[2 * i + 1] = DIGITS[bytes[i] & 0xf];
+        }
+        return new String(out, 0, 2 * bytes.length);
+    }
+
+    /**
+     * Writes a number as 16 lower case hex digits.
+     *
+     * @param value the number
+     * @param out where to write the hex
+     * @param offset where in <code>out</code> the hex starts
+     */
+    static void hex(long value, char[] out, int offset) {
+        for (int i = 15; i >= 0; i--) {
+            out[offset + i] = DIGITS[(int) value & 0xf];
+            value >>>= 4;
+        }
+    }
+}
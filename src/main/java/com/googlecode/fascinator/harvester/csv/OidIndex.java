@@ -0,0 +1,170 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Keeps the IDs of the objects produced by a harvest in a sorted file, and
+ * finds the objects that were produced by the previous harvest but not by
+ * this one.
+ * <p>
+ * IDs are sorted on disk with an {@link ExternalSorter}, and the two sorted
+ * files are compared as streams, so memory use is bounded however many
+ * objects there are. The previous index is only replaced once all deleted
+ * objects have been read.
+ */
+class OidIndex {
+
+    /** The index of the previous harvest */
+    private final File file;
+
+    /** The index of this harvest, until it replaces the previous one */
+    private final File next;
+
+    /** Sorts the IDs of this harvest */
+    private final ExternalSorter sorter;
+
+    /** Reads the previous index while finding deletions */
+    private BufferedReader previous;
+
+    /** Reads the new index while finding deletions */
+    private BufferedReader current;
+
+    /** Current line of the new index */
+    private String currentLine;
+
+    /** Whether deleted objects are still being read */
+    private boolean comparing;
+
+    /**
+     * Creates an index.
+     *
+     * @param file where the index is kept between harvests
+     * @param runSize number of IDs held in memory while sorting
+     */
+    OidIndex(File file, int runSize) {
+        this.file = file;
+        next = new File(file.getPath() + ".new");
+        sorter = new ExternalSorter(file.getAbsoluteFile().getParentFile(),
+                file.getName(), runSize, true);
+    }
+
+    /**
+     * Records an object produced by this harvest.
+     *
+     * @param oid the object ID
+     * @throws IOException if an error occurs
+     */
+    void add(String oid) throws IOException {
+        sorter.add(oid);
+    }
+
+    /**
+     * Completes the index of this harvest and starts comparing it with the
+     * previous one.
+     *
+     * @throws IOException if an error occurs
+     */
+    void finish() throws IOException {
+        sorter.sort(next);
+        comparing = true;
+        if (file.exists()) {
+            previous = ExternalSorter.openReader(file);
+            current = ExternalSorter.openReader(next);
+            currentLine = current.readLine();
+        } else {
+            commit();
+        }
+    }
+
+    /**
+     * Whether there may be more deleted objects to read.
+     *
+     * @return <code>true</code> if there may be more
+     */
+    boolean hasMoreDeleted() {
+        return comparing;
+    }
+
+    /**
+     * Reads the next deleted objects. Once there are no more, the index of
+     * this harvest replaces the previous one.
+     *
+     * @param max the maximum number of objects to return
+     * @return the IDs of deleted objects
+     * @throws IOException if an error occurs
+     */
+    Set<String> nextDeleted(int max) throws IOException {
+        Set<String> deleted = new HashSet<String>();
+        if (!comparing) {
+            return deleted;
+        }
+        String line;
+        while (deleted.size() < max && (line = previous.readLine()) != null) {
+            while (currentLine != null && currentLine.compareTo(line) < 0) {
+                currentLine = current.readLine();
+            }
+            if (!line.equals(currentLine)) {
+                deleted.add(line);
+            }
+        }
+        if (deleted.size() < max) {
+            commit();
+        }
+        return deleted;
+    }
+
+    /**
+     * Stops without replacing the previous index.
+     */
+    void close() {
+        closeReaders();
+        sorter.discard();
+        next.delete();
+        comparing = false;
+    }
+
+    private void commit() throws IOException {
+        closeReaders();
+        comparing = false;
+        if (!next.renameTo(file) && !(file.delete() && next.renameTo(file))) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    private void closeReaders() {
+        try {
+            if (previous != null) {
+                previous.close();
+            }
+            if (current != null) {
+                current.close();
+            }
+        } catch (IOException ioe) {
+            // only read from, nothing is lost
+        }
+        previous = null;
+        current = null;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+/**
+ * Reads rows with opencsv's {@link CSVReader}.
+ */
+class OpenCSVRowReader implements RowReader {
+
+    /** CSV Reader */
+    private final CSVReader csvReader;
+
+    /** Columns to keep, or null for all */
+    private boolean[] projection;
+
+    /**
+     * Creates a reader.
+     *
+     * @param reader the CSV data
+     * @param separator the column delimiter
+     */
+    OpenCSVRowReader(Reader reader, char separator) {
+        csvReader = new CSVReader(reader, separator);
+    }
+
+    @Override
+    public String[] readNext() throws IOException {
+        String[] row = csvReader.readNext();
+        if (row != null && projection != null) {
+            for (int i = 0; i < row.length; i++) {
+                if (i >= projection.length || !projection[i]) {
+                    row[i] = null;
+                }
+            }
+        }
+        return row;
+    }
+
+    /**
+     * The rows are read through a buffered character stream, so the byte
+     * offset of a row is not known.
+     *
+     * @return -1
+     */
+    @Override
+    public long position() {
+        return -1;
+    }
+
+    /**
+     * CSVReader builds every cell of a row as it splits the line, so this
+     * saves no parsing: the cells of unused columns are only dropped once the
+     * row has been read, and returned as null, so that rows waiting for the
+     * workers do not hold on to them.
+     *
+     * @param columns flags by column index, or null to keep every column
+     */
+    @Override
+    public void setProjection(boolean[] columns) {
+        projection = columns;
+    }
+
+    @Override
+    public void close() throws IOException {
+        csvReader.close();
+    }
+}
@@ -0,0 +1,553 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Decompresses a gzip file on background threads, so that decompression
+ * overlaps with parsing. Reads give the same bytes as
+ * <code>GZIPInputStream</code>, including for files of several concatenated
+ * members.
+ * <p>
+ * Each member is inflated by a task that reads the file directly and hands
+ * its output to the reader through a small bounded queue of chunks. Once a
+ * file turns out to have more than one member, the members after the current
+ * one are inflated at the same time: as members can only be found by
+ * inflating the one before, tasks are started at the following offsets that
+ * look like member headers, and the output of those that turn out not to be
+ * members is thrown away.
+ * <p>
+ * Tasks are stopped with a flag they check between reads, never by
+ * interrupting them: a thread interrupted in a read closes the file channel
+ * that every task shares. Whatever stops a task, including an unchecked
+ * exception or an error, is thrown by the read that reaches its member.
+ */
+class ParallelGzipInputStream extends InputStream {
+
+    /** First two bytes of a gzip member */
+    private static final int GZIP_MAGIC = 0x1f8b;
+
+    /** Deflate compression method */
+    private static final int DEFLATED = 8;
+
+    /** Header flags */
+    private static final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+
+    /** Size of the chunks handed to the reader */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /** Chunks queued by each task */
+    private static final int QUEUE_SIZE = 4;
+
+    /** Queued by a task once it has finished */
+    private static final byte[] END = new byte[0];
+
+    /** Numbers the threads of all streams */
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    /**
+     * Inflates the member starting at an offset, if there is one.
+     */
+    private class Member implements Runnable {
+
+        /** Offset of the header */
+        private final long start;
+
+        /** Output chunks, then {@link #END} */
+        private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<byte[]>(QUEUE_SIZE);
+
+        /** Offset after the trailer, once inflated */
+        private volatile long end;
+
+        /** Whether there was no valid member header at the offset */
+        private volatile boolean noHeader;
+
+        /** The error that stopped the task, if any */
+        private volatile Throwable error;
+
+        /** Whether the output is no longer wanted */
+        private volatile boolean cancelled;
+
+        /** The running task */
+        private Future<?> future;
+
+        private Member(long start) {
+            this.start = start;
+        }
+
+        /**
+         * Stops the task. It is not interrupted, but stops before its next
+         * read, and its queue is emptied so that it is not left waiting to
+         * hand over a chunk.
+         */
+        private void cancel() {
+            cancelled = true;
+            future.cancel(false);
+            chunks.clear();
+        }
+
+        @Override
+        public void run() {
+            try {
+                inflate();
+            } catch (IOException ioe) {
+                error = ioe;
+            } catch (InterruptedException ie) {
+                // the executor was shut down
+                return;
+            } catch (Throwable t) {
+                // anything else must not leave the reader waiting
+                error = t;
+            }
+            try {
+                put(END);
+            } catch (InterruptedException ie) {
+                // the executor was shut down
+            }
+        }
+
+        /** Hands a chunk to the reader, unless the task was cancelled */
+        private void put(byte[] chunk) throws InterruptedException {
+            if (!cancelled) {
+                chunks.put(chunk);
+            }
+        }
+
+        private void inflate() throws IOException, InterruptedException {
+            Input in = new Input(start);
+            if (!readHeader(in)) {
+                noHeader = true;
+                return;
+            }
+            Inflater inflater = new Inflater(true);
+            CRC32 crc = new CRC32();
+            long size = 0;
+            try {
+                byte[] chunk = new byte[CHUNK_SIZE];
+                int length = 0;
+                while (!inflater.finished()) {
+                    if (cancelled) {
+                        return;
+                    }
+                    if (inflater.needsInput()) {
+                        in.feed(inflater);
+                    }
+                    int n;
+                    try {
+                        n = inflateChunk(inflater, chunk, length, chunk.length - length);
+                    } catch (DataFormatException dfe) {
+                        throw new ZipException(dfe.getMessage());
+                    }
+                    if (n == 0 && inflater.needsDictionary()) {
+                        throw new ZipException("Preset dictionary in gzip member");
+                    }
+                    length += n;
+                    if (length == chunk.length) {
+                        crc.update(chunk, 0, length);
+                        size += length;
+                        put(chunk);
+                        chunk = new byte[CHUNK_SIZE];
+                        length = 0;
+                    }
+                }
+                crc.update(chunk, 0, length);
+                size += length;
+                if (length > 0) {
+                    byte[] last = new byte[length];
+                    System.arraycopy(chunk, 0, last, 0, length);
+                    put(last);
+                }
+                in.unread(inflater.getRemaining());
+            } finally {
+                inflater.end();
+            }
+            if (in.readInt() != (int) crc.getValue()
+                    || in.readInt() != (int) size) {
+                throw new ZipException("Corrupt GZIP trailer");
+            }
+            end = in.position();
+        }
+    }
+
+    /**
+     * Reads the file from an offset, for one member.
+     */
+    private class Input {
+
+        /** Bytes read from the file */
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+
+        /** File offset of the start of the buffer */
+        private long bufferStart;
+
+        /** Position in the buffer */
+        private int position;
+
+        /** Bytes in the buffer */
+        private int limit;
+
+        private Input(long start) {
+            bufferStart = start;
+        }
+
+        private long position() {
+            return bufferStart + position;
+        }
+
+        private boolean fill() throws IOException {
+            bufferStart += limit;
+            position = 0;
+            limit = 0;
+            while (limit == 0) {
+                int n = channel.read(ByteBuffer.wrap(buffer), bufferStart);
+                if (n < 0) {
+                    return false;
+                }
+                limit = n;
+            }
+            return true;
+        }
+
+        private int read() throws IOException {
+            if (position == limit && !fill()) {
+                return -1;
+            }
+            return buffer[position++] & 0xff;
+        }
+
+        private int readUnsigned() throws IOException {
+            int b = read();
+            if (b < 0) {
+                throw new EOFException("Unexpected end of gzip member");
+            }
+            return b;
+        }
+
+        private int readShort() throws IOException {
+            return readUnsigned() | (readUnsigned() << 8);
+        }
+
+        private int readInt() throws IOException {
+            return readShort() | (readShort() << 16);
+        }
+
+        private void skip(int count) throws IOException {
+            for (int i = 0; i < count; i++) {
+                readUnsigned();
+            }
+        }
+
+        private void feed(Inflater inflater) throws IOException {
+            if (position == limit && !fill()) {
+                throw new EOFException("Unexpected end of gzip member");
+            }
+            inflater.setInput(buffer, position, limit - position);
+            position = limit;
+        }
+
+        private void unread(int count) {
+            position -= count;
+        }
+    }
+
+    /** The file */
+    private final FileInputStream file;
+
+    /** The file channel, read at offsets by every task */
+    private final FileChannel channel;
+
+    /** Length of the file */
+    private final long length;
+
+    /** Inflates the members */
+    private final ExecutorService executor;
+
+    /** Number of members inflated at once */
+    private final int threads;
+
+    /** Members started, in file order, the first being read */
+    private final LinkedList<Member> members = new LinkedList<Member>();
+
+    /** Offset up to which the file has been searched for member headers */
+    private long scanned;
+
+    /** Whether the file has turned out to have several members */
+    private boolean multiMember;
+
+    /** The chunk being read */
+    private byte[] chunk = END;
+
+    /** Position in the chunk */
+    private int chunkPosition;
+
+    /** Whether the end of the data has been reached */
+    private boolean done;
+
+    /**
+     * Opens a gzip file.
+     *
+     * @param path the file
+     * @param threads the number of members inflated at once
+     * @throws IOException if the file could not be opened
+     */
+    ParallelGzipInputStream(File path, int threads) throws IOException {
+        this.threads = Math.max(1, threads);
+        file = new FileInputStream(path);
+        channel = file.getChannel();
+        length = channel.size();
+        final String name = "ParallelGzip-" + THREAD_COUNT.incrementAndGet() + "-";
+        executor = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+            private int count;
+
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, name + count++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        start(0);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (chunkPosition == chunk.length) {
+            if (!nextChunk()) {
+                return -1;
+            }
+        }
+        int n = Math.min(len, chunk.length - chunkPosition);
+        System.arraycopy(chunk, chunkPosition, b, off, n);
+        chunkPosition += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        done = true;
+        for (Member member : members) {
+            member.cancel();
+        }
+        members.clear();
+        executor.shutdown();
+        file.close();
+    }
+
+    /**
+     * Takes the next chunk of the member being read, moving on to the next
+     * member at the end of one.
+     *
+     * @return <code>false</code> at the end of the data
+     * @throws IOException if the data could not be inflated
+     */
+    private boolean nextChunk() throws IOException {
+        if (done) {
+            return false;
+        }
+        Member current = members.getFirst();
+        byte[] next;
+        try {
+            next = current.chunks.take();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted decompressing");
+        }
+        if (next != END) {
+            chunk = next;
+            chunkPosition = 0;
+            return true;
+        }
+        members.removeFirst();
+        Throwable error = current.error;
+        if (error instanceof IOException) {
+            throw (IOException) error;
+        } else if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        } else if (error != null) {
+            throw (Error) error;
+        }
+        if (current.noHeader) {
+            if (current.start == 0) {
+                throw new ZipException("Not in GZIP format");
+            }
+            // trailing bytes that are not a member are ignored, as
+            // GZIPInputStream does
+            done = true;
+            return false;
+        }
+        if (current.end >= length) {
+            done = true;
+            return false;
+        }
+        // drop the members that turned out not to be
+        while (!members.isEmpty() && members.getFirst().start < current.end) {
+            members.removeFirst().cancel();
+        }
+        if (members.isEmpty() || members.getFirst().start != current.end) {
+            // nothing was started there, so free every thread for it
+            for (Member member : members) {
+                member.cancel();
+            }
+            members.clear();
+            start(current.end);
+        }
+        multiMember = true;
+        startAhead();
+        chunk = END;
+        chunkPosition = 0;
+        return true;
+    }
+
+    /**
+     * Inflates the next bytes of a member, on the thread of its task.
+     *
+     * @param inflater the inflater of the member
+     * @param b the chunk to inflate into
+     * @param off where to start in the chunk
+     * @param len the most bytes to inflate
+     * @return the number of bytes inflated
+     * @throws DataFormatException if the data is not valid deflate data
+     */
+    int inflateChunk(Inflater inflater, byte[] b, int off, int len)
+            throws DataFormatException {
+        return inflater.inflate(b, off, len);
+    }
+
+    /**
+     * Starts inflating the first member.
+     *
+     * @param offset the offset of the member
+     */
+    private void start(long offset) {
+        members.add(submit(offset));
+        scanned = offset + 1;
+    }
+
+    private Member submit(long offset) {
+        Member member = new Member(offset);
+        member.future = executor.submit(member);
+        return member;
+    }
+
+    /**
+     * Starts inflating at the next offsets that look like member headers,
+     * until every thread is busy.
+     *
+     * @throws IOException if the file could not be read
+     */
+    private void startAhead() throws IOException {
+        if (!multiMember) {
+            return;
+        }
+        ByteBuffer window = ByteBuffer.allocate(CHUNK_SIZE);
+        while (members.size() < threads && scanned < length - 2) {
+            window.clear();
+            int n = channel.read(window, scanned);
+            if (n < 3) {
+                scanned = length;
+                return;
+            }
+            byte[] bytes = window.array();
+            long found = -1;
+            for (int i = 0; i + 2 < n; i++) {
+                if (bytes[i] == (byte) 0x1f && bytes[i + 1] == (byte) 0x8b
+                        && bytes[i + 2] == DEFLATED) {
+                    found = scanned + i;
+                    break;
+                }
+            }
+            if (found < 0) {
+                // the last two bytes may start a header
+                scanned += n - 2;
+            } else {
+                members.add(submit(found));
+                scanned = found + 1;
+            }
+        }
+    }
+
+    /**
+     * Reads a member header.
+     *
+     * @param in the input, at the start of the member
+     * @return <code>false</code> if there is no valid header
+     * @throws IOException if the file could not be read
+     */
+    private static boolean readHeader(Input in) throws IOException {
+        try {
+            if (((in.readUnsigned() << 8) | in.readUnsigned()) != GZIP_MAGIC
+                    || in.readUnsigned() != DEFLATED) {
+                return false;
+            }
+            int flags = in.readUnsigned();
+            if ((flags & 0xe0) != 0) {
+                return false;
+            }
+            // modification time, extra flags and operating system
+            in.skip(6);
+            if ((flags & FEXTRA) != 0) {
+                in.skip(in.readShort());
+            }
+            if ((flags & FNAME) != 0) {
+                while (in.readUnsigned() != 0) {
+                    // skip the name
+                }
+            }
+            if ((flags & FCOMMENT) != 0) {
+                while (in.readUnsigned() != 0) {
+                    // skip the comment
+                }
+            }
+            if ((flags & FHCRC) != 0) {
+                in.skip(2);
+            }
+            return true;
+        } catch (EOFException eofe) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.json.simple.JSONArray;
+
+import com.googlecode.fascinator.common.JsonObject;
+
+/**
+ * Turns the included columns of a row into the "data" of a record, either as
+ * a <code>JsonObject</code> or written straight out as JSON.
+ * <p>
+ * The streamed JSON is exactly what <code>JSONValue.writeJSONString</code>
+ * writes for a new payload holding the same record, with the same escaping,
+ * so stored payloads do not depend on which path wrote them. Field names are
+ * escaped once, when the writer is created. Payloads are only streamed when
+ * they are stored compact, that is with "prettyPrint" set to false, which is
+ * not the default: pretty-printed payloads are built as a
+ * <code>JsonObject</code> first.
+ */
+class RecordWriter {
+
+    /** Positions of the included columns in each row, in row order */
+    private final int[] indexes;
+
+    /** Field names of the included columns */
+    private final String[] fields;
+
+    /** Field names escaped and quoted, each followed by a colon */
+    private final String[] keys;
+
+    /** Whether each included column holds several values */
+    private final boolean[] multiValue;
+
+    /** Whether two included columns share a field name */
+    private final boolean duplicates;
+
+    /** Splitters for multi-value cells, one per thread */
+    private final ThreadLocal<MultiValueSplitter> splitters;
+
+    /**
+     * Creates a writer.
+     *
+     * @param indexes positions of the included columns in each row, in
+     *            ascending order
+     * @param fields field names of the included columns
+     * @param multiValue whether each included column holds several values
+     * @param multiValueDelimiter the delimiter of multi-value cells
+     */
+    RecordWriter(int[] indexes, String[] fields, boolean[] multiValue,
+            final char multiValueDelimiter) {
+        this.indexes = indexes;
+        this.fields = fields;
+        this.multiValue = multiValue;
+        keys = new String[fields.length];
+        Set<String> names = new HashSet<String>();
+        for (int i = 0; i < fields.length; i++) {
+            StringBuilder key = new StringBuilder();
+            key.append('"');
+            escape(fields[i], key);
+            keys[i] = key.append("\":").toString();
+            names.add(fields[i]);
+        }
+        duplicates = names.size() < fields.length;
+        splitters = new ThreadLocal<MultiValueSplitter>() {
+            @Override
+            protected MultiValueSplitter initialValue() {
+                return new MultiValueSplitter(multiValueDelimiter);
+            }
+        };
+    }
+
+    /**
+     * Checks whether records can be written without building their data. A
+     * field repeated in the row takes the position of its first column and
+     * the value of its last, which is left to <code>JsonObject</code>.
+     *
+     * @return <code>true</code> if no field name is repeated
+     */
+    boolean canStream() {
+        return !duplicates;
+    }
+
+    /**
+     * Builds the data of a row.
+     *
+     * @param columns the cells of the row
+     * @return the data
+     */
+    @SuppressWarnings("unchecked")
+    JsonObject buildData(String[] columns) {
+        MultiValueSplitter splitter = splitters.get();
+        JsonObject data = new JsonObject();
+        for (int i = 0; i < indexes.length; i++) {
+            if (indexes[i] >= columns.length) {
+                break;
+            }
+            String value = columns[indexes[i]];
+            if (multiValue[i]) {
+                int count = splitter.split(value);
+                String[] values = splitter.values();
+                JSONArray list = new JSONArray();
+                for (int v = 0; v < count; v++) {
+                    list.add(values[v]);
+                }
+                data.put(fields[i], list);
+            } else {
+                data.put(fields[i], value);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Writes a new payload for a row: its record ID prefix, data and
+     * metadata.
+     *
+     * @param out where to write the JSON
+     * @param recordIdPrefix the record ID prefix
+     * @param identifier the "dc.identifier" of the record
+     * @param columns the cells of the row
+     * @throws IOException if the JSON could not be written
+     */
+    void write(Writer out, String recordIdPrefix, String identifier,
+            String[] columns) throws IOException {
+        MultiValueSplitter splitter = splitters.get();
+        out.write("{\"recordIDPrefix\":");
+        writeString(out, recordIdPrefix);
+        out.write(",\"data\":{");
+        for (int i = 0; i < indexes.length; i++) {
+            if (indexes[i] >= columns.length) {
+                break;
+            }
+            if (i > 0) {
+                out.write(',');
+            }
+            out.write(keys[i]);
+            String value = columns[indexes[i]];
+            if (multiValue[i]) {
+                int count = splitter.split(value);
+                String[] values = splitter.values();
+                out.write('[');
+                for (int v = 0; v < count; v++) {
+                    if (v > 0) {
+                        out.write(',');
+                    }
+                    writeString(out, values[v]);
+                }
+                out.write(']');
+            } else {
+                writeString(out, value);
+            }
+        }
+        out.write("},\"metadata\":{\"dc.identifier\":");
+        writeString(out, identifier);
+        out.write("}}");
+    }
+
+    /**
+     * Writes a JSON string, escaped as <code>JSONValue.escape</code> does.
+     *
+     * @param out where to write the string
+     * @param value the string, or null
+     * @throws IOException if the string could not be written
+     */
+    static void writeString(Writer out, String value) throws IOException {
+        if (value == null) {
+            out.write("null");
+            return;
+        }
+        out.write('"');
+        int length = value.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            String escaped = escape(value.charAt(i));
+            if (escaped != null) {
+                out.write(value, start, i - start);
+                out.write(escaped);
+                start = i + 1;
+            }
+        }
+        out.write(value, start, length - start);
+        out.write('"');
+    }
+
+    /**
+     * Appends a string, escaped as <code>JSONValue.escape</code> does.
+     *
+     * @param value the string
+     * @param out where to append the escaped string
+     */
+    private static void escape(String value, StringBuilder out) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String escaped = escape(c);
+            if (escaped != null) {
+                out.append(escaped);
+            } else {
+                out.append(c);
+            }
+        }
+    }
+
+    /**
+     * Escapes a character.
+     *
+     * @param c the character
+     * @return its escape sequence, or null if it is written as it is
+     */
+    private static String escape(char c) {
+        switch (c) {
+        case '"':
+            return "\\\"";
+        case '\\':
+            return "\\\\";
+        case '\b':
+            return "\\b";
+        case '\f':
+            return "\\f";
+        case '\n':
+            return "\\n";
+        case '\r':
+            return "\\r";
+        case '\t':
+            return "\\t";
+        case '/':
+            return "\\/";
+        default:
+            if (c <= '\u001F' || (c >= '\u007F' && c <= '\u009F')
+                    || (c >= '\u2000' && c <= '\u20FF')) {
+                String hex = Integer.toHexString(c).toUpperCase();
+                return "\\u0000".substring(0, 6 - hex.length()) + hex;
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,391 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import com.googlecode.fascinator.api.harvester.HarvesterException;
+
+/**
+ * Folds the rows of each object into a single record, so that an object with
+ * several rows is written once.
+ * <p>
+ * How far apart the rows of an object may be depends on the mode:
+ * <ul>
+ * <li>{@link Mode#ADJACENT}: the rows of an object follow each other, as in
+ * a file sorted by ID. One object is held at a time.</li>
+ * <li>{@link Mode#WINDOW}: the rows of an object are close together. Up to a
+ * set number of objects are held, and the object started longest ago is
+ * written when another is needed. Rows further apart than that are written
+ * separately.</li>
+ * <li>{@link Mode#SORT}: the rows may be anywhere. They are sorted by OID on
+ * disk with an {@link ExternalSorter}, and nothing is written until the end
+ * of the file. The sorted objects are then written a batch at a time, by
+ * successive calls to {@link #finish(int)}.</li>
+ * </ul>
+ * Each object is written through an {@link Output} with a fingerprint of all
+ * its rows, in file order. An aggregator is used by one thread.
+ */
+class RowAggregator {
+
+    /**
+     * How far apart the rows of an object may be.
+     */
+    enum Mode {
+        ADJACENT, WINDOW, SORT;
+    }
+
+    /**
+     * Writes the records of objects once all their rows have been seen.
+     */
+    interface Output {
+
+        /**
+         * Writes the record of an object.
+         *
+         * @param record the record, with the data of all its rows
+         * @param fingerprint a fingerprint of all its rows
+         * @throws HarvesterException if an error occurs
+         */
+        void write(HarvestRecord record, long fingerprint)
+                throws HarvesterException;
+    }
+
+    /**
+     * The rows of one object seen so far.
+     */
+    private static class Group {
+
+        private final HarvestRecord record;
+
+        private long fingerprint;
+
+        private Group(HarvestRecord record, long fingerprint) {
+            this.record = record;
+            this.fingerprint = fingerprint;
+        }
+
+        private void add(HarvestRecord later, long rowFingerprint) {
+            record.aggregate(later);
+            fingerprint = (fingerprint ^ rowFingerprint) * PRIME;
+        }
+    }
+
+    /** Mixes the fingerprints of the rows of an object */
+    private static final long PRIME = 0x100000001b3L;
+
+    /** Digits of a row number in a sorted line, so lines sort in row order */
+    private static final int ROW_DIGITS = 19;
+
+    /** How far apart the rows of an object may be */
+    private final Mode mode;
+
+    /** Objects held at once, in window mode */
+    private final int window;
+
+    /** Where objects are written */
+    private final Output output;
+
+    /** The record ID prefix, to rebuild sorted records */
+    private final String idPrefix;
+
+    /** The index of the ID column, to rebuild sorted records */
+    private final int idIndex;
+
+    /** Turns the cells of sorted rows into data */
+    private final RecordWriter writer;
+
+    /** Objects being held, by OID, oldest first */
+    private final LinkedHashMap<String, Group> groups = new LinkedHashMap<String, Group>();
+
+    /** Sorts the rows, in sort mode */
+    private final ExternalSorter sorter;
+
+    /** Where the sorted rows are written, in sort mode */
+    private final File sorted;
+
+    /** The sorted rows being written, or null */
+    private BufferedReader sortedIn;
+
+    /** The object whose sorted rows are being read, or null */
+    private Group sortedGroup;
+
+    /**
+     * Creates an aggregator.
+     *
+     * @param mode how far apart the rows of an object may be
+     * @param size the number of objects held in window mode, or of rows held
+     *            in memory while sorting in sort mode
+     * @param dir where to keep temporary files in sort mode
+     * @param idPrefix the record ID prefix
+     * @param idIndex the index of the ID column
+     * @param writer turns the cells of a row into data
+     * @param output where objects are written
+     * @throws IOException if the temporary file could not be created
+     */
+    RowAggregator(Mode mode, int size, File dir, String idPrefix, int idIndex,
+            RecordWriter writer, Output output) throws IOException {
+        this.mode = mode;
+        this.window = Math.max(1, size);
+        this.idPrefix = idPrefix;
+        this.idIndex = idIndex;
+        this.writer = writer;
+        this.output = output;
+        if (mode == Mode.SORT) {
+            sorter = new ExternalSorter(dir, "csv-aggregate", window, false);
+            sorted = File.createTempFile("csv-aggregate", ".sorted", dir);
+        } else {
+            sorter = null;
+            sorted = null;
+        }
+    }
+
+    /**
+     * Adds a row that passed the filters.
+     *
+     * @param record the record of the row
+     * @param columns the cells of the row
+     * @param rowNumber the number of the row in the file
+     * @param fingerprint a fingerprint of the row
+     * @throws IOException if the row could not be sorted
+     * @throws HarvesterException if an object could not be written
+     */
+    void add(HarvestRecord record, String[] columns, long rowNumber,
+            long fingerprint) throws IOException, HarvesterException {
+        if (mode == Mode.SORT) {
+            sorter.add(encode(record.getOid(), columns, rowNumber, fingerprint));
+            return;
+        }
+        String oid = record.getOid();
+        Group group = groups.get(oid);
+        if (group != null) {
+            group.add(record, fingerprint);
+            return;
+        }
+        if (mode == Mode.ADJACENT || groups.size() >= window) {
+            Iterator<Group> oldest = groups.values().iterator();
+            if (oldest.hasNext()) {
+                Group done = oldest.next();
+                oldest.remove();
+                output.write(done.record, done.fingerprint);
+            }
+        }
+        groups.put(oid, new Group(record, fingerprint));
+    }
+
+    /**
+     * Writes the objects held, once the whole file has been read. In sort
+     * mode at most a given number of objects are written, and this is called
+     * again until it returns <code>false</code>. In the other modes every
+     * object held is written at once.
+     *
+     * @param limit the most sorted objects to write
+     * @return <code>true</code> if there are sorted objects left to write
+     * @throws IOException if the sorted rows could not be read
+     * @throws HarvesterException if an object could not be written, which
+     *             only loses that object
+     */
+    boolean finish(int limit) throws IOException, HarvesterException {
+        if (mode == Mode.SORT) {
+            if (sortedIn == null) {
+                sorter.sort(sorted);
+                sortedIn = ExternalSorter.openReader(sorted);
+            }
+            boolean keep = false;
+            try {
+                int count = 0;
+                String line;
+                while ((line = sortedIn.readLine()) != null) {
+                    int tab = line.indexOf('\t');
+                    String oid = line.substring(0, tab);
+                    int hex = tab + ROW_DIGITS + 2;
+                    long fingerprint = Long.parseLong(line.substring(hex, hex + 8), 16) << 32
+                            | Long.parseLong(line.substring(hex + 8, hex + 16), 16);
+                    String[] columns = decode(line, hex + 16);
+                    // a short row is identified by its row number
+                    String recordId = idIndex < columns.length ? columns[idIndex]
+                            : Long.toString(Long.parseLong(line.substring(tab + 1, hex - 1)));
+                    HarvestRecord record = new HarvestRecord(oid, idPrefix,
+                            idPrefix + recordId, columns, writer);
+                    Group group = sortedGroup;
+                    if (group != null && group.record.getOid().equals(oid)) {
+                        group.add(record, fingerprint);
+                        continue;
+                    }
+                    sortedGroup = new Group(record, fingerprint);
+                    if (group != null) {
+                        // a failed write leaves the rest to be written
+                        keep = true;
+                        output.write(group.record, group.fingerprint);
+                        keep = false;
+                        count++;
+                    }
+                    if (count >= limit) {
+                        keep = true;
+                        return true;
+                    }
+                }
+                Group group = sortedGroup;
+                sortedGroup = null;
+                if (group != null) {
+                    output.write(group.record, group.fingerprint);
+                }
+                return false;
+            } finally {
+                if (!keep) {
+                    closeSorted();
+                }
+            }
+        }
+        List<Group> held = new ArrayList<Group>(groups.values());
+        groups.clear();
+        for (Group group : held) {
+            output.write(group.record, group.fingerprint);
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether sorted objects are left to write by
+     * {@link #finish(int)}.
+     *
+     * @return <code>true</code> if there are more
+     */
+    boolean hasMore() {
+        return sortedIn != null;
+    }
+
+    /**
+     * Drops everything held, and deletes the temporary files.
+     */
+    void discard() {
+        groups.clear();
+        if (sorter != null) {
+            sorter.discard();
+            closeSorted();
+        }
+    }
+
+    /**
+     * Closes and deletes the sorted rows.
+     */
+    private void closeSorted() {
+        sortedGroup = null;
+        if (sortedIn != null) {
+            try {
+                sortedIn.close();
+            } catch (IOException ioe) {
+                // nothing more is read from it
+            }
+            sortedIn = null;
+        }
+        sorted.delete();
+    }
+
+    /**
+     * Encodes a row as a line that sorts by OID, then by row number. The
+     * fingerprint is kept as 16 hex digits, and the cells follow, each after
+     * a tab, with tabs, line breaks and backslashes escaped.
+     *
+     * @param oid the OID of the row
+     * @param columns the cells of the row
+     * @param rowNumber the number of the row in the file
+     * @param fingerprint a fingerprint of the row
+     * @return the line
+     */
+    static String encode(String oid, String[] columns, long rowNumber,
+            long fingerprint) {
+        StringBuilder line = new StringBuilder(oid.length() + 64);
+        line.append(oid).append('\t');
+        String row = Long.toString(rowNumber);
+        for (int i = row.length(); i < ROW_DIGITS; i++) {
+            line.append('0');
+        }
+        line.append(row).append('\t');
+        String hex = Long.toHexString(fingerprint);
+        for (int i = hex.length(); i < 16; i++) {
+            line.append('0');
+        }
+        line.append(hex);
+        for (String cell : columns) {
+            line.append('\t');
+            if (cell == null) {
+                continue;
+            }
+            for (int i = 0; i < cell.length(); i++) {
+                char c = cell.charAt(i);
+                switch (c) {
+                case '\\':
+                    line.append("\\\\");
+                    break;
+                case '\t':
+                    line.append("\\t");
+                    break;
+                case '\n':
+                    line.append("\\n");
+                    break;
+                case '\r':
+                    line.append("\\r");
+                    break;
+                default:
+                    line.append(c);
+                }
+            }
+        }
+        return line.toString();
+    }
+
+    /**
+     * Decodes the cells of a line written by
+     * {@link #encode(String, String[], long, long)}.
+     *
+     * @param line the line
+     * @param start the position after the fingerprint
+     * @return the cells
+     */
+    static String[] decode(String line, int start) {
+        List<String> cells = new ArrayList<String>();
+        StringBuilder cell = null;
+        for (int i = start; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\t') {
+                if (cell != null) {
+                    cells.add(cell.toString());
+                }
+                cell = new StringBuilder();
+            } else if (c == '\\' && i + 1 < line.length()) {
+                char escaped = line.charAt(++i);
+                cell.append(escaped == 't' ? '\t' : escaped == 'n' ? '\n'
+                        : escaped == 'r' ? '\r' : escaped);
+            } else {
+                cell.append(c);
+            }
+        }
+        if (cell != null) {
+            cells.add(cell.toString());
+        }
+        return cells.toArray(new String[cells.size()]);
+    }
+}
@@ -0,0 +1,578 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.commons.io.FileUtils;
+import org.json.simple.JSONArray;
+
+import com.googlecode.fascinator.api.harvester.HarvesterException;
+import com.googlecode.fascinator.common.JsonObject;
+import com.googlecode.fascinator.common.JsonSimple;
+
+/**
+ * A boolean filter expression, compiled once from the "filter" option and
+ * evaluated against the raw cells of each row.
+ * <p>
+ * An expression is a JSON object that is one of:
+ * <ul>
+ * <li><code>{"and": [...]}</code>: all of the expressions must pass</li>
+ * <li><code>{"or": [...]}</code>: one of the expressions must pass</li>
+ * <li><code>{"not": {...}}</code>: the expression must fail</li>
+ * <li><code>{"field": "...", ...}</code>: a test of one column, with one of
+ * <ul>
+ * <li>regex: the regex must match part of the value, as for the "filters"
+ * option</li>
+ * <li>equals: the value must be this string</li>
+ * <li>in: an array of strings, the value must be one of them</li>
+ * <li>inFile: a UTF-8 file of strings, one per line, the value must be one of
+ * them</li>
+ * <li>gt, gte, lt, lte: numeric bounds, the value must be a number within all
+ * of them</li>
+ * </ul>
+ * For multi-value fields "multi" may be ANY (the default) or ALL, as for the
+ * "filters" option. Cells missing from a short row are tested as empty.</li>
+ * </ul>
+ * "and", "or" and "not" must be the only key of their object, a field is
+ * tested with one of "regex", "equals", "in", "inFile" or the bounds, and
+ * any other key is an error.
+ * The operands of "and" and "or" are evaluated cheapest first, and stop as
+ * soon as the result is known.
+ */
+abstract class RowFilter {
+
+    /** Extra cost of splitting a multi-value cell */
+    private static final int MULTI_VALUE_COST = 8;
+
+    /** Keys that make an expression of their own */
+    private static final List<String> OPERATORS = Arrays.asList("and", "or",
+            "not");
+
+    /** Keys of a field test, other than the test itself */
+    private static final List<String> FIELD_KEYS = Arrays.asList("field",
+            "multi");
+
+    /** Keys of the tests of a field, other than the bounds */
+    private static final List<String> VALUE_TESTS = Arrays.asList("regex",
+            "equals", "in", "inFile");
+
+    /** Keys of the numeric bounds of a field */
+    private static final List<String> BOUNDS = Arrays.asList("gt", "gte",
+            "lt", "lte");
+
+    /** Orders expressions cheapest first */
+    private static final Comparator<RowFilter> BY_COST = new Comparator<RowFilter>() {
+        @Override
+        public int compare(RowFilter a, RowFilter b) {
+            return a.cost() - b.cost();
+        }
+    };
+
+    /**
+     * Compiles an expression.
+     *
+     * @param json the expression
+     * @param fields the names of the columns, in row order
+     * @param multiValueFields the names of the multi-value columns
+     * @return the compiled expression
+     * @throws HarvesterException if the expression is invalid
+     */
+    static RowFilter compile(JsonSimple json, List<String> fields,
+            List<String> multiValueFields) throws HarvesterException {
+        JsonObject node = json.getJsonObject();
+        for (String operator : OPERATORS) {
+            if (node.containsKey(operator) && node.size() > 1) {
+                throw new HarvesterException("In a filter expression, '"
+                        + operator + "' must be the only key of its object: "
+                        + node.toJSONString());
+            }
+        }
+        if (node.containsKey("and") || node.containsKey("or")) {
+            boolean and = node.containsKey("and");
+            List<JsonSimple> operands = json.getJsonSimpleList(and ? "and" : "or");
+            if (operands == null || operands.isEmpty()) {
+                throw new HarvesterException("In a filter expression, '"
+                        + (and ? "and" : "or") + "' needs an array of expressions");
+            }
+            RowFilter[] compiled = new RowFilter[operands.size()];
+            for (int i = 0; i < compiled.length; i++) {
+                compiled[i] = compile(operands.get(i), fields, multiValueFields);
+            }
+            Arrays.sort(compiled, BY_COST);
+            return and ? new And(compiled) : new Or(compiled);
+        }
+        if (node.containsKey("not")) {
+            JsonObject operand = json.getObject("not");
+            if (operand == null) {
+                throw new HarvesterException(
+                        "In a filter expression, 'not' needs an expression");
+            }
+            return new Not(compile(new JsonSimple(operand), fields,
+                    multiValueFields));
+        }
+        String field = json.getString(null, "field");
+        if (field == null) {
+            throw new HarvesterException("In a filter expression, expected"
+                    + " 'and', 'or', 'not' or 'field' in " + node.toJSONString());
+        }
+        int index = fields.indexOf(field);
+        if (index < 0) {
+            throw new HarvesterException("Filter column '" + field
+                    + "' was not found in the data");
+        }
+        String multi = json.getString("ANY", "multi");
+        if (!"ANY".equals(multi) && !"ALL".equals(multi)) {
+            throw new HarvesterException("In a filter expression, invalid"
+                    + " filter match type '" + multi + "', valid values are ANY, ALL");
+        }
+        return new Field(field, index, multiValueFields.contains(field),
+                "ALL".equals(multi), compileTest(json));
+    }
+
+    /**
+     * Tests a row.
+     *
+     * @param row the cells of the row
+     * @param splitter splits multi-value cells
+     * @return <code>true</code> if the row passes
+     */
+    abstract boolean accept(String[] row, MultiValueSplitter splitter);
+
+    /**
+     * Gets a relative estimate of the cost of a test.
+     *
+     * @return the cost
+     */
+    abstract int cost();
+
+    /**
+     * Marks the columns the expression tests.
+     *
+     * @param used flags by column index, set for each column tested
+     */
+    abstract void columns(boolean[] used);
+
+    /**
+     * Compiles the test of a field.
+     *
+     * @param json the field expression
+     * @return the test
+     * @throws HarvesterException if the test is missing or invalid
+     */
+    private static ValueTest compileTest(JsonSimple json)
+            throws HarvesterException {
+        String field = json.getString(null, "field");
+        int tests = 0;
+        boolean bounded = false;
+        for (Object key : json.getJsonObject().keySet()) {
+            if (VALUE_TESTS.contains(key)) {
+                tests++;
+            } else if (BOUNDS.contains(key)) {
+                bounded = true;
+            } else if (!FIELD_KEYS.contains(key)) {
+                throw new HarvesterException("In a filter expression on '"
+                        + field + "', unknown key '" + key + "'");
+            }
+        }
+        if (tests + (bounded ? 1 : 0) > 1) {
+            throw new HarvesterException("In a filter expression on '" + field
+                    + "', expected only one of 'regex', 'equals', 'in',"
+                    + " 'inFile' or a range; combine tests with 'and'");
+        }
+        if ((json.getPath("gt") != null && json.getPath("gte") != null)
+                || (json.getPath("lt") != null && json.getPath("lte") != null)) {
+            throw new HarvesterException("In a filter expression on '" + field
+                    + "', a range has at most one lower and one upper bound");
+        }
+        String regex = json.getString(null, "regex");
+        if (regex != null) {
+            try {
+                return new Matches(ValueMatcher.compile(regex));
+            } catch (PatternSyntaxException e) {
+                throw new HarvesterException("In a filter expression, provided regex was invalid " + e.getMessage(), e);
+            }
+        }
+        String equals = json.getString(null, "equals");
+        if (equals != null) {
+            return new In("equals " + equals, Collections.singleton(equals));
+        }
+        JSONArray in = json.getArray("in");
+        if (in != null) {
+            Set<String> values = new HashSet<String>();
+            for (Object value : in) {
+                values.add(String.valueOf(value));
+            }
+            return new In("in " + values.size() + " values", values);
+        }
+        String inFile = json.getString(null, "inFile");
+        if (inFile != null) {
+            try {
+                Set<String> values = new HashSet<String>(FileUtils.readLines(
+                        new File(inFile), "UTF-8"));
+                return new In("in " + inFile, values);
+            } catch (IOException ioe) {
+                throw new HarvesterException("Could not read the values of a filter on '"
+                        + field + "' from " + inFile, ioe);
+            }
+        }
+        Range range = new Range();
+        range.lower = bound(json, "gte", "gt");
+        range.lowerInclusive = json.getPath("gte") != null;
+        range.upper = bound(json, "lte", "lt");
+        range.upperInclusive = json.getPath("lte") != null;
+        if (range.lower == null && range.upper == null) {
+            throw new HarvesterException("In a filter expression on '" + field
+                    + "', expected 'regex', 'equals', 'in', 'inFile' or a range");
+        }
+        return range;
+    }
+
+    private static Double bound(JsonSimple json, String inclusive,
+            String exclusive) throws HarvesterException {
+        Object value = json.getPath(inclusive);
+        String key = inclusive;
+        if (value == null) {
+            value = json.getPath(exclusive);
+            key = exclusive;
+        }
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Double.valueOf(value.toString());
+        } catch (NumberFormatException ex) {
+            throw new HarvesterException("In a filter expression, '" + key
+                    + "' must be a number: " + value);
+        }
+    }
+
+    /**
+     * All operands must pass.
+     */
+    private static class And extends RowFilter {
+
+        private final RowFilter[] operands;
+
+        private final int cost;
+
+        private And(RowFilter[] operands) {
+            this.operands = operands;
+            int sum = 0;
+            for (RowFilter operand : operands) {
+                sum += operand.cost();
+            }
+            cost = sum;
+        }
+
+        @Override
+        boolean accept(String[] row, MultiValueSplitter splitter) {
+            for (RowFilter operand : operands) {
+                if (!operand.accept(row, splitter)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        int cost() {
+            return cost;
+        }
+
+        @Override
+        void columns(boolean[] used) {
+            for (RowFilter operand : operands) {
+                operand.columns(used);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return join(" and ", operands);
+        }
+    }
+
+    /**
+     * One operand must pass.
+     */
+    private static class Or extends RowFilter {
+
+        private final RowFilter[] operands;
+
+        private final int cost;
+
+        private Or(RowFilter[] operands) {
+            this.operands = operands;
+            int sum = 0;
+            for (RowFilter operand : operands) {
+                sum += operand.cost();
+            }
+            cost = sum;
+        }
+
+        @Override
+        boolean accept(String[] row, MultiValueSplitter splitter) {
+            for (RowFilter operand : operands) {
+                if (operand.accept(row, splitter)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        int cost() {
+            return cost;
+        }
+
+        @Override
+        void columns(boolean[] used) {
+            for (RowFilter operand : operands) {
+                operand.columns(used);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return join(" or ", operands);
+        }
+    }
+
+    /**
+     * The operand must fail.
+     */
+    private static class Not extends RowFilter {
+
+        private final RowFilter operand;
+
+        private Not(RowFilter operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        boolean accept(String[] row, MultiValueSplitter splitter) {
+            return !operand.accept(row, splitter);
+        }
+
+        @Override
+        int cost() {
+            return operand.cost();
+        }
+
+        @Override
+        void columns(boolean[] used) {
+            operand.columns(used);
+        }
+
+        @Override
+        public String toString() {
+            return "not " + operand;
+        }
+    }
+
+    /**
+     * A test of one column.
+     */
+    private static class Field extends RowFilter {
+
+        private final String field;
+
+        private final int index;
+
+        private final boolean multiValue;
+
+        private final boolean all;
+
+        private final ValueTest test;
+
+        private Field(String field, int index, boolean multiValue,
+                boolean all, ValueTest test) {
+            this.field = field;
+            this.index = index;
+            this.multiValue = multiValue;
+            this.all = all;
+            this.test = test;
+        }
+
+        @Override
+        boolean accept(String[] row, MultiValueSplitter splitter) {
+            String value = index < row.length ? row[index] : "";
+            if (!multiValue) {
+                return test.test(value);
+            }
+            int count = splitter.split(value);
+            if (count <= 0) {
+                return false;
+            }
+            String[] values = splitter.values();
+            for (int i = 0; i < count; i++) {
+                if (test.test(values[i]) != all) {
+                    return !all;
+                }
+            }
+            return all;
+        }
+
+        @Override
+        int cost() {
+            return test.cost() + (multiValue ? MULTI_VALUE_COST : 0);
+        }
+
+        @Override
+        void columns(boolean[] used) {
+            used[index] = true;
+        }
+
+        @Override
+        public String toString() {
+            return "'" + field + "' " + (multiValue ? (all ? "ALL " : "ANY ") : "")
+                    + test;
+        }
+    }
+
+    /**
+     * A test of a single value.
+     */
+    private abstract static class ValueTest {
+
+        abstract boolean test(String value);
+
+        abstract int cost();
+    }
+
+    /**
+     * The value must match a regex.
+     */
+    private static class Matches extends ValueTest {
+
+        private final ValueMatcher matcher;
+
+        private Matches(ValueMatcher matcher) {
+            this.matcher = matcher;
+        }
+
+        @Override
+        boolean test(String value) {
+            return matcher.matches(value);
+        }
+
+        @Override
+        int cost() {
+            return matcher.cost();
+        }
+
+        @Override
+        public String toString() {
+            return "matches " + matcher;
+        }
+    }
+
+    /**
+     * The value must be one of a set.
+     */
+    private static class In extends ValueTest {
+
+        private final String description;
+
+        private final Set<String> values;
+
+        private In(String description, Set<String> values) {
+            this.description = description;
+            this.values = values;
+        }
+
+        @Override
+        boolean test(String value) {
+            return values.contains(value);
+        }
+
+        @Override
+        int cost() {
+            return 1;
+        }
+
+        @Override
+        public String toString() {
+            return description;
+        }
+    }
+
+    /**
+     * The value must be a number in a range.
+     */
+    private static class Range extends ValueTest {
+
+        private Double lower;
+
+        private boolean lowerInclusive;
+
+        private Double upper;
+
+        private boolean upperInclusive;
+
+        @Override
+        boolean test(String value) {
+            double number;
+            try {
+                number = Double.parseDouble(value);
+            } catch (NumberFormatException ex) {
+                return false;
+            }
+            if (lower != null && (lowerInclusive ? number < lower : number <= lower)) {
+                return false;
+            }
+            if (upper != null && (upperInclusive ? number > upper : number >= upper)) {
+                return false;
+            }
+            return !Double.isNaN(number);
+        }
+
+        @Override
+        int cost() {
+            return 3;
+        }
+
+        @Override
+        public String toString() {
+            return (lower == null ? "" : (lowerInclusive ? ">= " : "> ") + lower)
+                    + (lower != null && upper != null ? " and " : "")
+                    + (upper == null ? "" : (upperInclusive ? "<= " : "< ") + upper);
+        }
+    }
+
+    private static String join(String separator, RowFilter[] operands) {
+        StringBuilder out = new StringBuilder();
+        for (RowFilter operand : operands) {
+            if (out.length() > 0) {
+                out.append(separator);
+            }
+            out.append('(').append(operand).append(')');
+        }
+        return out.toString();
+    }
+}
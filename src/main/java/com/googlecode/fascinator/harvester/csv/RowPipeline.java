@@ -0,0 +1,328 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.googlecode.fascinator.api.harvester.HarvesterException;
+
+/**
+ * Hands rows from a single reader thread to a fixed set of worker threads.
+ * <p>
+ * Rows are grouped into fixed-size chunks and each worker has its own bounded
+ * queue of chunks, so a worker that falls behind blocks the reader instead of
+ * letting rows pile up in memory. Rows are routed to a worker by an affinity
+ * value (normally the record ID), so all rows for the same object are handled
+ * by the same worker in file order and the stored result is the same as a
+ * serial harvest.
+ * <p>
+ * The reader calls {@link #submit(String[], long, int)} for every row of a
+ * batch and then {@link #finishBatch(boolean)}, which waits for all workers to finish
+ * the batch and returns the object IDs they produced.
+ */
+class RowPipeline {
+
+    /**
+     * Processes the rows of one worker thread.
+     */
+    interface RowHandler {
+
+        /**
+         * Process a row.
+         *
+         * @param columns the column data of the row
+         * @param rowNumber the number of the row in the file
+         * @return the OID of the stored object, or null if it was filtered out
+         * @throws HarvesterException if an error occurs
+         */
+        String processRow(String[] columns, long rowNumber)
+                throws HarvesterException;
+
+        /**
+         * Complete any work held back during the batch.
+         *
+         * @param last whether this is the last batch of the file, after
+         *            which nothing may be held back
+         * @return the OIDs of objects stored by work that was held back
+         * @throws HarvesterException if an error occurs
+         */
+        Collection<String> finishBatch(boolean last) throws HarvesterException;
+    }
+
+    /**
+     * The shared state of one <code>getObjectIdList</code> call.
+     */
+    private static class Batch {
+
+        /** Object IDs produced by all workers */
+        private final Set<String> objectIds = Collections
+                .synchronizedSet(new HashSet<String>());
+
+        /** Counted down by each worker once it has finished the batch */
+        private final CountDownLatch done;
+
+        /** The first error raised by any worker */
+        private volatile HarvesterException error;
+
+        private Batch(int workers) {
+            done = new CountDownLatch(workers);
+        }
+
+        private void fail(HarvesterException ex) {
+            synchronized (this) {
+                if (error == null) {
+                    error = ex;
+                }
+            }
+        }
+    }
+
+    /**
+     * A fixed-size run of rows for one worker.
+     */
+    private static class Chunk {
+
+        /** The batch these rows belong to */
+        private final Batch batch;
+
+        /** Row numbers */
+        private final long[] numbers;
+
+        /** Row data */
+        private final String[][] rows;
+
+        /** Number of rows in the chunk */
+        private int size;
+
+        /** Whether this is the last chunk of the batch for the worker */
+        private boolean endOfBatch;
+
+        /** Whether the batch is the last of the file */
+        private boolean lastBatch;
+
+        private Chunk(Batch batch, int capacity) {
+            this.batch = batch;
+            numbers = new long[capacity];
+            rows = new String[capacity][];
+        }
+    }
+
+    /** Tells a worker to exit */
+    private static final Chunk POISON = new Chunk(null, 0);
+
+    /** Logging */
+    private Logger log = LoggerFactory.getLogger(RowPipeline.class);
+
+    /** Rows per chunk */
+    private final int chunkSize;
+
+    /** Worker queues */
+    private final BlockingQueue<Chunk>[] queues;
+
+    /** Chunk being filled for each worker */
+    private final Chunk[] pending;
+
+    /** Worker threads */
+    private final Thread[] workers;
+
+    /** The batch being filled */
+    private Batch batch;
+
+    /**
+     * Starts the worker threads.
+     *
+     * @param name a name for the worker threads
+     * @param handlers a handler for each worker thread
+     * @param chunkSize number of rows handed to a worker at a time
+     * @param queueSize number of chunks that may wait for each worker
+     */
+    @SuppressWarnings("unchecked")
+    RowPipeline(String name, RowHandler[] handlers, int chunkSize,
+            int queueSize) {
+        int threads = handlers.length;
+        this.chunkSize = chunkSize;
+        queues = new BlockingQueue[threads];
+        pending = new Chunk[threads];
+        workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final BlockingQueue<Chunk> queue = new ArrayBlockingQueue<Chunk>(
+                    queueSize);
+            final RowHandler handler = handlers[i];
+            queues[i] = queue;
+            workers[i] = new Thread(name + "-" + i) {
+                @Override
+                public void run() {
+                    work(handler, queue);
+                }
+            };
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Queue a row for processing, blocking while its worker is full.
+     *
+     * @param columns the column data of the row
+     * @param rowNumber the number of the row in the file
+     * @param affinity rows with the same value go to the same worker
+     * @throws HarvesterException if interrupted while waiting
+     */
+    void submit(String[] columns, long rowNumber, int affinity)
+            throws HarvesterException {
+        if (batch == null) {
+            batch = new Batch(workers.length);
+        }
+        int worker = (affinity & Integer.MAX_VALUE) % workers.length;
+        Chunk chunk = pending[worker];
+        if (chunk == null) {
+            chunk = new Chunk(batch, chunkSize);
+            pending[worker] = chunk;
+        }
+        chunk.numbers[chunk.size] = rowNumber;
+        chunk.rows[chunk.size] = columns;
+        chunk.size++;
+        if (chunk.size == chunkSize) {
+            pending[worker] = null;
+            put(worker, chunk);
+        }
+    }
+
+    /**
+     * Wait for every row submitted since the last call to be processed.
+     *
+     * @param last whether this is the last batch of the file
+     * @return the object IDs produced by the batch
+     * @throws HarvesterException if any row failed, or if interrupted
+     */
+    Set<String> finishBatch(boolean last) throws HarvesterException {
+        if (batch == null && last) {
+            // the workers may still hold work back
+            batch = new Batch(workers.length);
+        }
+        if (batch == null) {
+            return new HashSet<String>();
+        }
+        Batch finished = batch;
+        batch = null;
+        for (int i = 0; i < workers.length; i++) {
+            Chunk chunk = pending[i];
+            pending[i] = null;
+            if (chunk == null) {
+                chunk = new Chunk(finished, 0);
+            }
+            chunk.endOfBatch = true;
+            chunk.lastBatch = last;
+            put(i, chunk);
+        }
+        try {
+            finished.done.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new HarvesterException("Interrupted waiting for workers", ex);
+        }
+        if (finished.error != null) {
+            throw finished.error;
+        }
+        return new HashSet<String>(finished.objectIds);
+    }
+
+    /**
+     * Stop the worker threads once they have drained their queues.
+     */
+    void shutdown() {
+        for (int i = 0; i < workers.length; i++) {
+            try {
+                queues[i].put(POISON);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void put(int worker, Chunk chunk) throws HarvesterException {
+        try {
+            queues[worker].put(chunk);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new HarvesterException("Interrupted queueing rows", ex);
+        }
+    }
+
+    /**
+     * Worker loop: process chunks until told to exit.
+     *
+     * @param handler the handler of this worker
+     * @param queue the queue of this worker
+     */
+    private void work(RowHandler handler, BlockingQueue<Chunk> queue) {
+        while (true) {
+            Chunk chunk;
+            try {
+                chunk = queue.take();
+            } catch (InterruptedException ex) {
+                return;
+            }
+            if (chunk == POISON) {
+                return;
+            }
+            Batch owner = chunk.batch;
+            // after a failure the rest of the batch is only drained
+            if (owner.error == null) {
+                try {
+                    for (int i = 0; i < chunk.size; i++) {
+                        String oid = handler.processRow(chunk.rows[i],
+                                chunk.numbers[i]);
+                        if (oid != null) {
+                            owner.objectIds.add(oid);
+                        }
+                    }
+                } catch (HarvesterException ex) {
+                    owner.fail(ex);
+                } catch (RuntimeException ex) {
+                    log.error("Error processing row: ", ex);
+                    owner.fail(new HarvesterException(ex));
+                }
+            }
+            if (chunk.endOfBatch) {
+                // rows processed before a failure are still completed,
+                // as they would be in a serial harvest
+                try {
+                    owner.objectIds.addAll(handler.finishBatch(chunk.lastBatch));
+                } catch (HarvesterException ex) {
+                    owner.fail(ex);
+                } catch (RuntimeException ex) {
+                    log.error("Error finishing batch: ", ex);
+                    owner.fail(new HarvesterException(ex));
+                }
+                owner.done.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Reads the rows of a CSV source one at a time.
+ */
+interface RowReader extends Closeable {
+
+    /**
+     * Reads the next row.
+     *
+     * @return the values of the row, or null at the end of the data
+     * @throws IOException if the data could not be read
+     */
+    String[] readNext() throws IOException;
+
+    /**
+     * Gets the byte offset of the next row in the source, so that a harvest
+     * can carry on from it.
+     *
+     * @return the offset, or -1 if the reader does not know it
+     */
+    long position();
+
+    /**
+     * Tells the reader which columns of the following rows are used. A
+     * reader may then leave the other cells of a row null rather than
+     * decoding them, or may ignore the hint and read every cell.
+     *
+     * @param columns flags by column index, columns past the end are not
+     *            used, or null to read every column
+     */
+    void setProjection(boolean[] columns);
+}
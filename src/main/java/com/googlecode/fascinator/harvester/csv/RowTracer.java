@@ -0,0 +1,109 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.googlecode.fascinator.common.JsonObject;
+
+/**
+ * Logs what happens to a sample of the rows of a harvest.
+ * <p>
+ * Every <code>every</code>th row is traced in full: a failed filter or the
+ * data built for it. Rows rejected by a filter can also be traced on their
+ * own. Messages are logged at INFO level, as tracing is switched on in the
+ * harvest configuration, and rows that are not traced cost a single check.
+ */
+class RowTracer {
+
+    /** Logging */
+    private final Logger log = LoggerFactory.getLogger(RowTracer.class);
+
+    /** Trace every nth row, 0 for none */
+    private final long every;
+
+    /** Whether to trace every row rejected by a filter */
+    private final boolean rejected;
+
+    /**
+     * Creates a tracer.
+     *
+     * @param every trace every nth row, 0 for none
+     * @param rejected whether to trace every row rejected by a filter
+     */
+    RowTracer(long every, boolean rejected) {
+        this.every = every;
+        this.rejected = rejected;
+    }
+
+    /**
+     * Checks whether a row is traced in full.
+     *
+     * @param rowNumber the number of the row in the file
+     * @return <code>true</code> if the row is sampled
+     */
+    boolean traces(long rowNumber) {
+        return every > 0 && rowNumber % every == 0;
+    }
+
+    /**
+     * Traces a row rejected by a filter, if it is sampled or rejected rows
+     * are traced.
+     *
+     * @param rowNumber the number of the row in the file
+     * @param sampled whether the row is traced in full
+     * @param field the field
+     * @param value the value of the field
+     * @param filter the filter that failed
+     */
+    void rejected(long rowNumber, boolean sampled, String field, String value,
+            Object filter) {
+        if (sampled || rejected) {
+            log.info("Row {}: field '{}' with value '{}' failed {}",
+                    new Object[] { rowNumber, field, value, filter });
+        }
+    }
+
+    /**
+     * Traces a row rejected by the filter expression, if it is sampled or
+     * rejected rows are traced.
+     *
+     * @param rowNumber the number of the row in the file
+     * @param sampled whether the row is traced in full
+     * @param filter the filter expression
+     */
+    void rejected(long rowNumber, boolean sampled, Object filter) {
+        if (sampled || rejected) {
+            log.info("Row {}: failed filter {}", rowNumber, filter);
+        }
+    }
+
+    /**
+     * Traces the data built for a row.
+     *
+     * @param rowNumber the number of the row in the file
+     * @param oid the object ID
+     * @param data the data
+     */
+    void record(long rowNumber, String oid, JsonObject data) {
+        log.info("Row {}: object {} data {}",
+                new Object[] { rowNumber, oid, data.toJSONString() });
+    }
+}
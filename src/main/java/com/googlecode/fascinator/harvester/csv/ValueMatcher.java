@@ -0,0 +1,352 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tests a value against a filter regex, as
+ * <code>Pattern.compile(regex).matcher(value).find()</code> would.
+ * <p>
+ * Most filters are plain literals, sometimes anchored, or alternations of
+ * literals: <code>^Tom$</code>, <code>^http://</code>, <code>cat</code>,
+ * <code>^(cat|dog)$</code>. {@link #compile(String)} recognises these and
+ * matches them with string comparisons, hash lookups or
+ * <code>indexOf</code>. Anything else is matched with the regex, reusing one
+ * <code>Matcher</code> per thread.
+ * <p>
+ * As in <code>java.util.regex</code>, <code>$</code> also matches before a
+ * line terminator at the very end of the value.
+ */
+abstract class ValueMatcher {
+
+    /** Characters with a special meaning in a regex */
+    private static final String META = "\\^$.|?*+()[]{}";
+
+    /** The regex matched */
+    private final String regex;
+
+    /** Whether the regex is anchored at the end */
+    private final boolean end;
+
+    private ValueMatcher(String regex, boolean end) {
+        this.regex = regex;
+        this.end = end;
+    }
+
+    /**
+     * Compiles a filter regex.
+     *
+     * @param regex the regex
+     * @return a matcher
+     * @throws java.util.regex.PatternSyntaxException if the regex is invalid
+     */
+    static ValueMatcher compile(String regex) {
+        // always validated, so invalid patterns fail as they did
+        Pattern pattern = Pattern.compile(regex);
+
+        String body = regex;
+        boolean start = body.startsWith("^");
+        if (start) {
+            body = body.substring(1);
+        }
+        boolean end = body.endsWith("$") && !isEscaped(body, body.length() - 1);
+        if (end) {
+            body = body.substring(0, body.length() - 1);
+        }
+        boolean grouped = false;
+        if (body.startsWith("(?:") && body.endsWith(")")) {
+            body = body.substring(3, body.length() - 1);
+            grouped = true;
+        } else if (body.startsWith("(") && !body.startsWith("(?")
+                && body.endsWith(")")) {
+            body = body.substring(1, body.length() - 1);
+            grouped = true;
+        }
+        List<String> literals = parseLiterals(body);
+        if (literals == null
+                || (literals.size() > 1 && !grouped && (start || end))) {
+            // ^a|b$ means (^a)|(b$), not worth a fast path
+            return new Regex(regex, pattern);
+        }
+        if (start && end) {
+            return new Exact(regex, literals);
+        }
+        if (start) {
+            return new Prefix(regex, literals);
+        }
+        if (end) {
+            return new Suffix(regex, literals);
+        }
+        return new Contains(regex, literals);
+    }
+
+    /**
+     * Tests a value.
+     *
+     * @param value the value
+     * @return <code>true</code> if the regex is found in the value
+     */
+    boolean matches(String value) {
+        if (test(value)) {
+            return true;
+        }
+        if (end) {
+            String trimmed = trimTerminator(value);
+            return trimmed != null && test(trimmed);
+        }
+        return false;
+    }
+
+    /**
+     * Gets a relative estimate of the cost of a test.
+     *
+     * @return the cost, 1 for the cheapest tests
+     */
+    abstract int cost();
+
+    /**
+     * Tests a value, taking <code>$</code> as the end of the value.
+     *
+     * @param value the value
+     * @return <code>true</code> if the value matches
+     */
+    abstract boolean test(String value);
+
+    @Override
+    public String toString() {
+        return regex;
+    }
+
+    /**
+     * Removes the line terminator <code>$</code> may match before.
+     *
+     * @param value the value
+     * @return the value without its final line terminator, or null if there
+     *         is none
+     */
+    private static String trimTerminator(String value) {
+        int length = value.length();
+        if (length == 0) {
+            return null;
+        }
+        char last = value.charAt(length - 1);
+        if (last == '\n') {
+            if (length > 1 && value.charAt(length - 2) == '\r') {
+                return value.substring(0, length - 2);
+            }
+            return value.substring(0, length - 1);
+        }
+        if (last == '\r' || last == '\u0085' || last == '\u2028'
+                || last == '\u2029') {
+            return value.substring(0, length - 1);
+        }
+        return null;
+    }
+
+    private static boolean isEscaped(String regex, int index) {
+        int slashes = 0;
+        for (int i = index - 1; i >= 0 && regex.charAt(i) == '\\'; i--) {
+            slashes++;
+        }
+        return slashes % 2 == 1;
+    }
+
+    /**
+     * Parses literals separated by <code>|</code>.
+     *
+     * @param body the regex, without anchors or group
+     * @return the literals, or null if the regex is not only literals
+     */
+    private static List<String> parseLiterals(String body) {
+        List<String> literals = new ArrayList<String>();
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < body.length(); i++) {
+            char c = body.charAt(i);
+            if (c == '\\') {
+                if (i + 1 == body.length()) {
+                    return null;
+                }
+                char next = body.charAt(++i);
+                // \Q, \d, \t and friends are not plain literals
+                if (Character.isLetterOrDigit(next) || next >= 0x80) {
+                    return null;
+                }
+                literal.append(next);
+            } else if (c == '|') {
+                literals.add(literal.toString());
+                literal.setLength(0);
+            } else if (META.indexOf(c) >= 0) {
+                return null;
+            } else {
+                literal.append(c);
+            }
+        }
+        literals.add(literal.toString());
+        return literals;
+    }
+
+    /**
+     * Matches <code>^a$</code> and <code>^(a|b)$</code>.
+     */
+    private static class Exact extends ValueMatcher {
+
+        private final String single;
+
+        private final Set<String> set;
+
+        private Exact(String regex, List<String> literals) {
+            super(regex, true);
+            if (literals.size() == 1) {
+                single = literals.get(0);
+                set = null;
+            } else {
+                single = null;
+                set = new HashSet<String>(literals);
+            }
+        }
+
+        @Override
+        int cost() {
+            return 1;
+        }
+
+        @Override
+        boolean test(String value) {
+            return single != null ? single.equals(value) : set.contains(value);
+        }
+    }
+
+    /**
+     * Matches <code>^a</code> and <code>^(a|b)</code>.
+     */
+    private static class Prefix extends ValueMatcher {
+
+        private final String[] literals;
+
+        private Prefix(String regex, List<String> literals) {
+            super(regex, false);
+            this.literals = literals.toArray(new String[literals.size()]);
+        }
+
+        @Override
+        int cost() {
+            return 1 + literals.length;
+        }
+
+        @Override
+        boolean test(String value) {
+            for (String literal : literals) {
+                if (value.startsWith(literal)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Matches <code>a$</code> and <code>(a|b)$</code>.
+     */
+    private static class Suffix extends ValueMatcher {
+
+        private final String[] literals;
+
+        private Suffix(String regex, List<String> literals) {
+            super(regex, true);
+            this.literals = literals.toArray(new String[literals.size()]);
+        }
+
+        @Override
+        int cost() {
+            return 1 + literals.length;
+        }
+
+        @Override
+        boolean test(String value) {
+            for (String literal : literals) {
+                if (value.endsWith(literal)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Matches <code>a</code>, <code>a|b</code> and <code>(a|b)</code>.
+     */
+    private static class Contains extends ValueMatcher {
+
+        private final String[] literals;
+
+        private Contains(String regex, List<String> literals) {
+            super(regex, false);
+            this.literals = literals.toArray(new String[literals.size()]);
+        }
+
+        @Override
+        int cost() {
+            return 4 * literals.length;
+        }
+
+        @Override
+        boolean test(String value) {
+            for (String literal : literals) {
+                if (value.indexOf(literal) >= 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Matches any other regex.
+     */
+    private static class Regex extends ValueMatcher {
+
+        private final ThreadLocal<Matcher> matcher;
+
+        private Regex(String regex, final Pattern pattern) {
+            super(regex, false);
+            matcher = new ThreadLocal<Matcher>() {
+                @Override
+                protected Matcher initialValue() {
+                    return pattern.matcher("");
+                }
+            };
+        }
+
+        @Override
+        int cost() {
+            return 20;
+        }
+
+        @Override
+        boolean test(String value) {
+            return matcher.get().reset(value).find();
+        }
+    }
+}
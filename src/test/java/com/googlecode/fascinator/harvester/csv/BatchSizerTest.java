@@ -0,0 +1,91 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for choosing batch sizes.
+ */
+public class BatchSizerTest {
+
+    /** A millisecond in nanoseconds */
+    private static final long MILLIS = 1000000L;
+
+    /**
+     * Test that the size is kept without a target or budget.
+     */
+    @Test
+    public void fixed() {
+        BatchSizer sizer = new BatchSizer(50, 10, 100000, 0, 0);
+        sizer.batchDone(50, 0, 1000 * MILLIS);
+        Assert.assertEquals(50, sizer.size());
+        Assert.assertEquals(0, sizer.weigh(new String[] { "a", "b" }));
+        Assert.assertFalse(sizer.full(49, Long.MAX_VALUE));
+        Assert.assertTrue(sizer.full(50, 0));
+    }
+
+    /**
+     * Test that the size moves towards the target time, by at most a factor
+     * of two a batch, within its bounds.
+     */
+    @Test
+    public void target() {
+        BatchSizer sizer = new BatchSizer(50, 10, 300, 100 * MILLIS, 0);
+        sizer.batchDone(50, 0, 10 * MILLIS);
+        Assert.assertEquals(100, sizer.size());
+        sizer.batchDone(100, 0, 20 * MILLIS);
+        Assert.assertEquals(200, sizer.size());
+        sizer.batchDone(200, 0, 40 * MILLIS);
+        Assert.assertEquals(300, sizer.size());
+        sizer.batchDone(300, 0, 200 * MILLIS);
+        Assert.assertEquals(150, sizer.size());
+        sizer.batchDone(150, 0, 120 * MILLIS);
+        Assert.assertEquals(125, sizer.size());
+        sizer.batchDone(125, 0, 10000 * MILLIS);
+        Assert.assertEquals(62, sizer.size());
+        for (int i = 0; i < 10; i++) {
+            sizer.batchDone(sizer.size(), 0, 10000 * MILLIS);
+        }
+        Assert.assertEquals(10, sizer.size());
+    }
+
+    /**
+     * Test that batches end at the memory budget, and later batches keep to
+     * the rows that fit.
+     */
+    @Test
+    public void memory() {
+        BatchSizer sizer = new BatchSizer(1000, 1, 100000, 0, 10000);
+        String[] row = new String[] { "0123456789", "0123456789" };
+        long weight = sizer.weigh(row);
+        Assert.assertEquals(48 + 2 * (48 + 20), weight);
+        long bytes = 0;
+        int rows = 0;
+        while (!sizer.full(rows, bytes)) {
+            rows++;
+            bytes += weight;
+        }
+        Assert.assertEquals(55, rows);
+        sizer.batchDone(rows, bytes, MILLIS);
+        Assert.assertEquals(54, sizer.size());
+    }
+}
@@ -18,11 +18,30 @@
  */
 package com.googlecode.fascinator.harvester.csv;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.zip.GZIPOutputStream;
 
 import junit.framework.Assert;
 
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.json.simple.JSONArray;
 import org.junit.Before;
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -31,7 +50,11 @@ import org.slf4j.LoggerFactory;
 import com.googlecode.fascinator.api.PluginManager;
 import com.googlecode.fascinator.api.harvester.Harvester;
 import com.googlecode.fascinator.api.harvester.HarvesterException;
+import com.googlecode.fascinator.api.storage.Payload;
 import com.googlecode.fascinator.api.storage.Storage;
+import com.googlecode.fascinator.api.storage.StorageException;
+import com.googlecode.fascinator.common.JsonObject;
+import com.googlecode.fascinator.common.JsonSimple;
 
 /**
  * Unit tests for the CSV harvester plugin.
@@ -46,6 +69,9 @@ public class CSVHarvesterTest {
     /** In memory storage */
     private Storage ram;
 
+    /** The file the row tracer logs to, see logback-test.xml and log4j.properties */
+    private static final File TRACE_LOG = new File("target", "row-trace.log");
+
     /**
      * Sets the "test.dir" and "test.cache.dir" system property for use in the
      * JSON configuration.
@@ -101,6 +127,528 @@ public class CSVHarvesterTest {
         Assert.assertEquals(5, idList.size());
     }
 
+    /**
+     * Test that worker threads harvest the same objects as a serial harvest.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void threads() throws Exception {
+        Set<String> serial = getHarvester("/geonames.json").getObjectIdList();
+        CSVHarvester csvHarvester = getHarvester("/geonames-threads.json");
+        Set<String> idList = harvestAll(csvHarvester);
+        csvHarvester.shutdown();
+        Assert.assertEquals(serial, idList);
+    }
+
+    /**
+     * Test that batched writes store each object once, with the same result
+     * as writing the rows one after the other.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void batchWrites() throws Exception {
+        CSVHarvester csvHarvester = getHarvester("/batch-writes.json");
+        Set<String> idList = csvHarvester.getObjectIdList();
+        Assert.assertEquals(2, idList.size());
+        JsonSimple json = getPayload("duplicates.csv", "http://www.mypetrules.com/", "1");
+        Assert.assertEquals("Thomas", json.getString(null, "data", "Name"));
+        Assert.assertEquals("", json.getString(null, "data", "Description"));
+        Assert.assertEquals("http://www.mypetrules.com/1",
+                json.getString(null, "metadata", "dc.identifier"));
+    }
+
+    /**
+     * Test that a storage writing whole batches is told not to merge or
+     * pretty-print, and is given the last record of each object.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void batchWritesOverwrite() throws Exception {
+        final List<Object[]> calls = new ArrayList<Object[]>();
+        InvocationHandler handler = new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args)
+                    throws Throwable {
+                if ("storeRecords".equals(method.getName())) {
+                    calls.add(args);
+                    return null;
+                }
+                try {
+                    return method.invoke(ram, args);
+                } catch (InvocationTargetException ite) {
+                    throw ite.getCause();
+                }
+            }
+        };
+        Storage storage = (Storage) Proxy.newProxyInstance(getClass()
+                .getClassLoader(), new Class<?>[] { Storage.class,
+                BatchRecordStorage.class }, handler);
+        JsonSimple config = new JsonSimple(new File(getClass().getResource(
+                "/batch-writes.json").toURI()));
+        JsonObject options = config.writeObject("harvester", "csv");
+        options.put("mergeExisting", false);
+        options.put("prettyPrint", false);
+        Harvester csvHarvester = PluginManager.getHarvester("csv", storage);
+        csvHarvester.init(config.toString());
+        Assert.assertEquals(2, csvHarvester.getObjectIdList().size());
+        csvHarvester.shutdown();
+
+        Assert.assertEquals(1, calls.size());
+        Object[] args = calls.get(0);
+        Assert.assertEquals(Boolean.FALSE, args[2]);
+        Assert.assertEquals(Boolean.FALSE, args[3]);
+        @SuppressWarnings("unchecked")
+        List<HarvestRecord> records = (List<HarvestRecord>) args[1];
+        Assert.assertEquals(2, records.size());
+        Assert.assertEquals("Thomas", records.get(0).getData().get("Name"));
+        Assert.assertEquals("Denise", records.get(1).getData().get("Name"));
+    }
+
+    /**
+     * Test that unchanged rows are skipped when the file is harvested again.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void changeDetection() throws Exception {
+        File fingerprints = new File(System.getProperty("test.dir"),
+                "change-detection.fingerprints");
+        fingerprints.delete();
+        CSVHarvester csvHarvester = getHarvester("/change-detection.json");
+        Assert.assertEquals(4, harvestAll(csvHarvester).size());
+        Assert.assertTrue(fingerprints.exists());
+        csvHarvester = getHarvester("/change-detection.json");
+        Assert.assertEquals(0, harvestAll(csvHarvester).size());
+    }
+
+    /**
+     * Test that a row whose object could not be stored is stored again by
+     * the next harvest, rather than being taken as unchanged.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void changeDetectionRetry() throws Exception {
+        File fingerprints = new File(System.getProperty("test.dir"),
+                "change-detection.fingerprints");
+        fingerprints.delete();
+        final String failing = DigestUtils
+                .md5Hex("complex.csvhttp://www.mypetrules.com/2");
+        InvocationHandler handler = new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args)
+                    throws Throwable {
+                String name = method.getName();
+                if (("createObject".equals(name) || "getObject".equals(name))
+                        && failing.equals(args[0])) {
+                    throw new StorageException("Refused " + args[0]);
+                }
+                try {
+                    return method.invoke(ram, args);
+                } catch (InvocationTargetException ite) {
+                    throw ite.getCause();
+                }
+            }
+        };
+        Storage storage = (Storage) Proxy.newProxyInstance(
+                Storage.class.getClassLoader(), new Class<?>[] { Storage.class },
+                handler);
+        JsonSimple config = new JsonSimple(new File(getClass().getResource(
+                "/change-detection.json").toURI()));
+        config.writeObject("harvester", "csv").put("batchSize", 1);
+        Harvester csvHarvester = PluginManager.getHarvester("csv", storage);
+        csvHarvester.init(config.toString());
+        Set<String> idList = new HashSet<String>();
+        int failures = 0;
+        while (csvHarvester.hasMoreObjects()) {
+            try {
+                idList.addAll(csvHarvester.getObjectIdList());
+            } catch (HarvesterException he) {
+                failures++;
+            }
+        }
+        csvHarvester.shutdown();
+        Assert.assertEquals(1, failures);
+        Assert.assertEquals(3, idList.size());
+        Assert.assertFalse(idList.contains(failing));
+
+        Set<String> retried = harvestAll(getHarvester("/change-detection.json"));
+        Assert.assertEquals(Collections.singleton(failing), retried);
+    }
+
+    /**
+     * Test that rows removed from the file are reported as deleted objects.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void deletionDetection() throws Exception {
+        File dir = new File(System.getProperty("test.dir"));
+        new File(dir, "deletion.oids").delete();
+        File csv = new File(dir, "deletion.csv");
+        FileUtils.writeStringToFile(csv,
+                "ID\tName\n1\tTom\n2\tDenise\n3\tHarry\n", "UTF-8");
+        CSVHarvester csvHarvester = getHarvester("/deletion.json");
+        Assert.assertEquals(3, harvestAll(csvHarvester).size());
+        Assert.assertTrue(harvestDeleted(csvHarvester).isEmpty());
+
+        FileUtils.writeStringToFile(csv, "ID\tName\n1\tTom\n3\tHarry\n",
+                "UTF-8");
+        csvHarvester = getHarvester("/deletion.json");
+        Assert.assertEquals(2, harvestAll(csvHarvester).size());
+        Set<String> deleted = harvestDeleted(csvHarvester);
+        Assert.assertEquals(1, deleted.size());
+        Assert.assertTrue(deleted.contains(DigestUtils
+                .md5Hex("deletion.csvhttp://www.mypetrules.com/2")));
+    }
+
+    /**
+     * Test that a harvest that did not finish carries on from the offset of
+     * its checkpoint when opencsv is configured, as checkpoints are read with
+     * the mapped reader.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void checkpoint() throws Exception {
+        assertResumes("/checkpoint.json", "checkpoint.checkpoint");
+    }
+
+    /**
+     * Test that a harvest that did not finish carries on from the offset of
+     * its checkpoint, including after a value spanning several lines.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void checkpointMapped() throws Exception {
+        assertResumes("/checkpoint-mapped.json", "checkpoint-mapped.checkpoint");
+    }
+
+    /**
+     * Test that checkpoints are ignored for a compressed file, which cannot
+     * be read from an offset.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void checkpointCompressed() throws Exception {
+        File dir = new File(System.getProperty("test.dir"));
+        File gzip = new File(dir, "gzip/complex.csv.gz");
+        gzip.getParentFile().mkdirs();
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(gzip));
+        try {
+            out.write(FileUtils.readFileToByteArray(new File(dir, "complex.csv")));
+        } finally {
+            out.close();
+        }
+        File checkpoint = new File(dir, "checkpoint-gzip.checkpoint");
+        checkpoint.delete();
+        CSVHarvester csvHarvester = getHarvester("/checkpoint-gzip.json");
+        Assert.assertEquals(1, csvHarvester.getObjectIdList().size());
+        csvHarvester.shutdown();
+        Assert.assertFalse(checkpoint.exists());
+    }
+
+    /**
+     * Test harvesting the files matching a glob, each with its own header,
+     * OIDs and state files.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void multiFile() throws Exception {
+        File dir = new File(System.getProperty("test.dir"), "daily");
+        FileUtils.deleteDirectory(dir);
+        FileUtils.writeStringToFile(new File(dir, "a.csv"),
+                "ID\tName\n1\tTom\n2\tDenise\n", "UTF-8");
+        FileUtils.writeStringToFile(new File(dir, "b.csv"),
+                "Name\tID\nHarry\t3\nMavis\t4\nThomas\t1\n", "UTF-8");
+        FileUtils.writeStringToFile(new File(dir, "notes.txt"), "ID\n5\n",
+                "UTF-8");
+        CSVHarvester csvHarvester = getHarvester("/multi-file.json");
+        Set<String> idList = harvestAll(csvHarvester);
+        Assert.assertEquals(5, csvHarvester.getMetrics().getRowsRead());
+        csvHarvester.shutdown();
+        Assert.assertEquals(5, idList.size());
+        String prefix = "http://www.mypetrules.com/";
+        for (String oid : new String[] { "a.csv" + prefix + "1",
+                "a.csv" + prefix + "2", "b.csv" + prefix + "1",
+                "b.csv" + prefix + "3", "b.csv" + prefix + "4" }) {
+            Assert.assertTrue(oid, idList.contains(DigestUtils.md5Hex(oid)));
+        }
+        Assert.assertEquals("Thomas", getPayload("b.csv", prefix, "1")
+                .getString(null, "data", "Name"));
+        File resources = dir.getParentFile();
+        Assert.assertTrue(new File(resources, "multi-file-a.csv.fingerprints").exists());
+        Assert.assertTrue(new File(resources, "multi-file-b.csv.fingerprints").exists());
+
+        csvHarvester = getHarvester("/multi-file.json");
+        Assert.assertTrue(harvestAll(csvHarvester).isEmpty());
+        csvHarvester.shutdown();
+    }
+
+    /**
+     * Test that the dry run of several files adds up the profiles of the
+     * files, matching their columns by name.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void multiFileDryRun() throws Exception {
+        File dir = new File(System.getProperty("test.dir"), "daily");
+        FileUtils.deleteDirectory(dir);
+        FileUtils.writeStringToFile(new File(dir, "a.csv"),
+                "ID\tName\n1\tTom\n2\t\n", "UTF-8");
+        FileUtils.writeStringToFile(new File(dir, "b.csv"),
+                "Name\tID\nHarry\t3\nMavis\t4\nThomas\t1\n", "UTF-8");
+        JsonSimple config = new JsonSimple(new File(getClass().getResource(
+                "/multi-file.json").toURI()));
+        JsonObject options = config.writeObject("harvester", "csv");
+        options.put("dryRun", true);
+        options.put("dryRunSamples", 10);
+        Harvester harvester = PluginManager.getHarvester("csv", ram);
+        harvester.init(config.toString());
+        CSVHarvester csvHarvester = (CSVHarvester) harvester;
+        Assert.assertTrue(harvestAll(csvHarvester).isEmpty());
+        csvHarvester.shutdown();
+        DryRunProfile profile = csvHarvester.getDryRunProfile();
+        Assert.assertEquals(5, profile.getRowsPassed());
+        Assert.assertEquals(0, profile.getDuplicateIds());
+        Assert.assertEquals(1.0, profile.getFillRates().get("ID"), 0);
+        Assert.assertEquals(0.8, profile.getFillRates().get("Name"), 0.0001);
+        Assert.assertEquals(5, profile.getSamples().size());
+    }
+
+    /**
+     * Test that a gzip file gives the same objects as the file uncompressed.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void gzip() throws Exception {
+        File dir = new File(System.getProperty("test.dir"));
+        File gzip = new File(dir, "gzip/complex.csv.gz");
+        gzip.getParentFile().mkdirs();
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(gzip));
+        try {
+            out.write(FileUtils.readFileToByteArray(new File(dir, "complex.csv")));
+        } finally {
+            out.close();
+        }
+        CSVHarvester csvHarvester = getHarvester("/gzip.json");
+        Set<String> idList = harvestAll(csvHarvester);
+        csvHarvester.shutdown();
+        Assert.assertEquals(4, idList.size());
+        Assert.assertTrue(idList.contains(DigestUtils
+                .md5Hex("complex.csvhttp://www.mypetrules.com/4")));
+        Assert.assertEquals("Leader of\nthe pack", getPayload("complex.csv",
+                "http://www.mypetrules.com/", "4").getString(null, "data",
+                "Description"));
+    }
+
+    /**
+     * Test harvesting a gzip compressed stream given by the application, with
+     * OIDs made from the namespace rather than a file name.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void stream() throws Exception {
+        File dir = new File(System.getProperty("test.dir"));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = new GZIPOutputStream(bytes);
+        try {
+            out.write(FileUtils.readFileToByteArray(new File(dir, "complex.csv")));
+        } finally {
+            out.close();
+        }
+        CSVHarvester csvHarvester = (CSVHarvester) PluginManager.getHarvester("csv", ram);
+        csvHarvester.setSource(new ByteArrayInputStream(bytes.toByteArray()));
+        csvHarvester.init(new File(getClass().getResource("/stream.json").toURI()));
+        Set<String> idList = harvestAll(csvHarvester);
+        csvHarvester.shutdown();
+        Assert.assertEquals(4, idList.size());
+        Assert.assertTrue(idList.contains(DigestUtils
+                .md5Hex("petshttp://www.mypetrules.com/4")));
+        Assert.assertEquals("Leader of\nthe pack", getPayload("pets",
+                "http://www.mypetrules.com/", "4").getString(null, "data",
+                "Description"));
+    }
+
+    /**
+     * Test that a stream cannot be harvested without an OID namespace.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test(expected=HarvesterException.class)
+    public void streamWithoutNamespace() throws Exception {
+        CSVHarvester csvHarvester = (CSVHarvester) PluginManager.getHarvester("csv", ram);
+        csvHarvester.setSource(new StringReader("ID,Name\n1,Fido\n"));
+        csvHarvester.init(new File(getClass().getResource("/simple.json").toURI()));
+    }
+
+    /**
+     * Test that rows sharing an ID are folded into one object, with the
+     * values that differ kept as arrays, and that the sorted objects are
+     * handed out a batch at a time.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void aggregate() throws Exception {
+        CSVHarvester csvHarvester = getHarvester("/aggregate.json");
+        Set<String> idList = new HashSet<String>();
+        while (csvHarvester.hasMoreObjects()) {
+            Set<String> batch = csvHarvester.getObjectIdList();
+            Assert.assertTrue(batch.size() <= 1);
+            idList.addAll(batch);
+        }
+        csvHarvester.shutdown();
+        Assert.assertEquals(2, idList.size());
+        Assert.assertEquals(2, csvHarvester.getMetrics().getRecordsStored());
+        JsonSimple json = getPayload("duplicates.csv", "http://www.mypetrules.com/", "1");
+        Assert.assertEquals(Arrays.asList("Tom", "Thomas"),
+                json.getStringList("data", "Name"));
+        Assert.assertEquals("Denise", getPayload("duplicates.csv",
+                "http://www.mypetrules.com/", "2").getString(null, "data", "Name"));
+    }
+
+    /**
+     * Test that shards harvest every row once between them, with the OIDs of
+     * a single harvest, including rows with values that span lines.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void shards() throws Exception {
+        for (String name : new String[] { "/geonames.json", "/complex.json" }) {
+            assertShards(name);
+        }
+    }
+
+    /**
+     * Test that range shards refuse an ID column that is not read, rather
+     * than falling back to row numbers that they do not know.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test(expected = HarvesterException.class)
+    @SuppressWarnings("unchecked")
+    public void rangeShardsUnreadId() throws Exception {
+        JsonSimple config = new JsonSimple(new File(getClass().getResource(
+                "/complex.json").toURI()));
+        JsonObject csv = config.writeObject("harvester", "csv");
+        JSONArray included = new JSONArray();
+        included.add("Name");
+        csv.put("includedFields", included);
+        csv.put("shardCount", 2);
+        Harvester csvHarvester = PluginManager.getHarvester("csv", ram);
+        csvHarvester.init(config.toString());
+    }
+
+    /**
+     * Harvests a file in three shards, shared out in each way.
+     *
+     * @param name the harvest configuration
+     * @throws Exception if any error occurred
+     */
+    private void assertShards(String name) throws Exception {
+        Set<String> expected = getHarvester(name).getObjectIdList();
+        for (String shardBy : new String[] { "range", "id" }) {
+            Set<String> idList = new HashSet<String>();
+            int count = 0;
+            for (int shard = 0; shard < 3; shard++) {
+                JsonSimple config = new JsonSimple(new File(getClass()
+                        .getResource(name).toURI()));
+                JsonObject csv = config.writeObject("harvester", "csv");
+                csv.put("shardCount", 3);
+                csv.put("shardIndex", shard);
+                csv.put("shardBy", shardBy);
+                Harvester csvHarvester = PluginManager.getHarvester("csv", ram);
+                csvHarvester.init(config.toString());
+                Set<String> shardIds = harvestAll((CSVHarvester) csvHarvester);
+                count += shardIds.size();
+                idList.addAll(shardIds);
+                csvHarvester.shutdown();
+            }
+            Assert.assertEquals(name + " " + shardBy, expected.size(), count);
+            Assert.assertEquals(name + " " + shardBy, expected, idList);
+        }
+    }
+
+    /**
+     * Test that a dry run profiles the rows without storing anything, or
+     * reporting any objects.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void dryRun() throws Exception {
+        CSVHarvester csvHarvester = getHarvester("/dry-run.json");
+        Set<String> idList = harvestAll(csvHarvester);
+        csvHarvester.shutdown();
+        Assert.assertTrue(idList.isEmpty());
+        Assert.assertTrue(ram.getObjectIdList().isEmpty());
+        Assert.assertEquals(0, csvHarvester.getMetrics().getRecordsStored());
+        Assert.assertFalse(new File(getClass().getResource("/").toURI(),
+                "dry-run.fingerprints").exists());
+        DryRunProfile profile = csvHarvester.getDryRunProfile();
+        Assert.assertEquals(2, profile.getRowsPassed());
+        Assert.assertEquals(0, profile.getDuplicateIds());
+        Assert.assertEquals(Long.valueOf(2), profile.getPassesByFilter()
+                .values().iterator().next());
+        Assert.assertEquals(1.0, profile.getFillRates().get("Friends"), 0);
+        Assert.assertEquals(2, profile.getSamples().size());
+    }
+
+    /**
+     * Test that existing payloads are overwritten, with compact JSON, when
+     * merging is turned off.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void overwrite() throws Exception {
+        getHarvester("/batch-writes.json").getObjectIdList();
+        CSVHarvester csvHarvester = getHarvester("/overwrite.json");
+        Assert.assertEquals(2, csvHarvester.getObjectIdList().size());
+        JsonSimple json = getPayload("duplicates.csv", "http://www.mypetrules.com/", "2");
+        Assert.assertEquals("Denise", json.getString(null, "data", "Name"));
+        Assert.assertNull(json.getString(null, "data", "Description"));
+        String oid = DigestUtils.md5Hex("duplicates.csvhttp://www.mypetrules.com/2");
+        Payload payload = ram.getObject(oid).getPayload("metadata.json");
+        String content = IOUtils.toString(payload.open(), "UTF-8");
+        payload.close();
+        Assert.assertEquals(-1, content.indexOf('\n'));
+        Assert.assertEquals("{\"recordIDPrefix\":\"http:\\/\\/www.mypetrules.com\\/\","
+                + "\"data\":{\"ID\":\"2\",\"Name\":\"Denise\"},\"metadata\":"
+                + "{\"dc.identifier\":\"http:\\/\\/www.mypetrules.com\\/2\"}}",
+                content);
+    }
+
+    /**
+     * Test creating and updating objects when the existing objects are
+     * listed at the start of the harvest.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void knownObjects() throws Exception {
+        CSVHarvester csvHarvester = getHarvester("/known-objects.json");
+        Assert.assertEquals(2, csvHarvester.getObjectIdList().size());
+        JsonSimple json = getPayload("duplicates.csv", "http://www.mypetrules.com/", "1");
+        Assert.assertEquals("Thomas", json.getString(null, "data", "Name"));
+
+        csvHarvester = getHarvester("/known-objects.json");
+        Assert.assertEquals(2, csvHarvester.getObjectIdList().size());
+        json = getPayload("duplicates.csv", "http://www.mypetrules.com/", "2");
+        Assert.assertEquals("Denise", json.getString(null, "data", "Name"));
+    }
+
     /**
      * Test getting a list of object identifiers with a slightly more complex
      * csv file.
@@ -144,6 +692,63 @@ public class CSVHarvesterTest {
         Assert.assertEquals(2, idList.size());
     }
     
+    /**
+     * Test a filter expression with ranges, sets and negation
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void filterExpression() throws Exception {
+        CSVHarvester csvHarvester = getHarvester("/geonames-expression.json");
+        Set<String> idList = harvestAll(csvHarvester);
+        Assert.assertEquals(3, idList.size());
+        for (String id : new String[] { "3039163", "3039604", "3040132" }) {
+            Assert.assertTrue(id, idList.contains(DigestUtils
+                    .md5Hex("geonames.csvhttp://geonames.org/" + id)));
+        }
+        Assert.assertEquals(2, csvHarvester.getMetrics().getRowsRejected());
+    }
+    
+    /**
+     * Test the metrics of a filtered harvest
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void filterMetrics() throws Exception {
+        CSVHarvester csvHarvester = getHarvester("/simple-filter.json");
+        Assert.assertEquals(2, harvestAll(csvHarvester).size());
+        HarvestMetrics metrics = csvHarvester.getMetrics();
+        Assert.assertEquals(4, metrics.getRowsRead());
+        Assert.assertEquals(2, metrics.getRowsRejected());
+        Assert.assertEquals(2, metrics.getRecordsStored());
+        Assert.assertEquals(Long.valueOf(2), metrics
+                .getRejectionsByFilter().values().iterator().next());
+        Assert.assertEquals(4, metrics.getHistogram(
+                HarvestMetrics.Stage.FILTER).getCount());
+        Assert.assertEquals(2, metrics.getHistogram(
+                HarvestMetrics.Stage.HASH).getCount());
+        csvHarvester.shutdown();
+    }
+
+    /**
+     * Test that the stages of the rows are not timed by default, while the
+     * rows and records are still counted
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void untimedMetrics() throws Exception {
+        CSVHarvester csvHarvester = getHarvester("/simple.json");
+        Assert.assertEquals(4, harvestAll(csvHarvester).size());
+        HarvestMetrics metrics = csvHarvester.getMetrics();
+        Assert.assertFalse(metrics.isTimed());
+        Assert.assertEquals(4, metrics.getRowsRead());
+        Assert.assertEquals(4, metrics.getRecordsStored());
+        for (HarvestMetrics.Stage stage : HarvestMetrics.Stage.values()) {
+            Assert.assertEquals(0, metrics.getHistogram(stage).getCount());
+        }
+        Assert.assertTrue(metrics.getBatches() > 0);
+        csvHarvester.shutdown();
+    }
+    
     /**
      * Test a field with multiple values being filtered
      * @throws Exception if any error occurred
@@ -174,6 +779,52 @@ public class CSVHarvesterTest {
         Assert.assertEquals(1, idList.size());
     }
     
+    /**
+     * Test that tracing every row logs each rejection and record, and does
+     * not change what is harvested
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void multiFilterTrace() throws Exception {
+        CSVHarvester csvHarvester = getHarvester("/multi-filter-trace.json");
+        long offset = TRACE_LOG.length();
+        Set<String> idList = csvHarvester.getObjectIdList();
+        Assert.assertEquals(2, idList.size());
+        List<String> traced = readTrace(offset);
+        Assert.assertNotNull(traced.toString(), traced(traced,
+                "Row 1: field 'Friends' with value 'Denise' failed "));
+        Assert.assertNotNull(traced.toString(), traced(traced,
+                "Row 2: field 'Friends' with value 'Harry;Mavis' failed "));
+        String record = traced(traced, "Row 3: object ");
+        Assert.assertTrue(traced.toString(), record != null
+                && record.contains("\"Harry\""));
+        Assert.assertNotNull(traced.toString(), traced(traced, "Row 4: object "));
+        Assert.assertNotNull(traced.toString(), traced(traced,
+                "Row 5: field 'Friends' with value '' failed "));
+    }
+
+    /**
+     * Test that only every nth row is traced when rejected rows are not
+     * traced on their own
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void multiFilterTraceSample() throws Exception {
+        CSVHarvester csvHarvester = getHarvester("/multi-filter-trace-sample.json");
+        long offset = TRACE_LOG.length();
+        Set<String> idList = csvHarvester.getObjectIdList();
+        Assert.assertEquals(2, idList.size());
+        List<String> traced = readTrace(offset);
+        Assert.assertNull(traced.toString(), traced(traced, "Row 1:"));
+        Assert.assertNotNull(traced.toString(), traced(traced,
+                "Row 2: field 'Friends' with value 'Harry;Mavis' failed "));
+        Assert.assertNull(traced.toString(), traced(traced, "Row 3:"));
+        String record = traced(traced, "Row 4: object ");
+        Assert.assertTrue(traced.toString(), record != null
+                && record.contains("\"Mavis\""));
+        Assert.assertNull(traced.toString(), traced(traced, "Row 5:"));
+    }
+    
     /**
      * Tests that an exception is thrown when the same delimiter is set for
      * the delimiter and multiValueFieldDelimiter params
@@ -199,6 +850,129 @@ public class CSVHarvesterTest {
         Assert.assertEquals(1, idList.size());
     }
     
+    /**
+     * Harvests two rows, then harvests the rest with a new harvester, which
+     * must carry on from the third row.
+     *
+     * @param config the harvest configuration
+     * @param checkpointName name of the checkpoint file
+     * @throws Exception if any error occurred
+     */
+    private void assertResumes(String config, String checkpointName)
+            throws Exception {
+        File checkpoint = new File(System.getProperty("test.dir"), checkpointName);
+        checkpoint.delete();
+        CSVHarvester csvHarvester = getHarvester(config);
+        Set<String> idList = new HashSet<String>();
+        idList.addAll(csvHarvester.getObjectIdList());
+        idList.addAll(csvHarvester.getObjectIdList());
+        csvHarvester.shutdown();
+        Assert.assertEquals(2, idList.size());
+        Assert.assertTrue(checkpoint.exists());
+        Assert.assertTrue(Checkpoint.load(checkpoint).getOffset() > 0);
+
+        csvHarvester = getHarvester(config);
+        Set<String> rest = harvestAll(csvHarvester);
+        Assert.assertEquals(2, csvHarvester.getMetrics().getRowsRead());
+        csvHarvester.shutdown();
+        Assert.assertEquals(2, rest.size());
+        for (String id : new String[] { "3", "4" }) {
+            Assert.assertTrue(id, rest.contains(DigestUtils
+                    .md5Hex("complex.csvhttp://www.mypetrules.com/" + id)));
+        }
+        Assert.assertFalse(checkpoint.exists());
+        Assert.assertEquals("Leader of\nthe pack", getPayload("complex.csv",
+                "http://www.mypetrules.com/", "4").getString(null, "data",
+                "Description"));
+    }
+
+    /**
+     * Harvests every batch of a harvester.
+     *
+     * @param csvHarvester the harvester
+     * @return the object identifiers of all batches
+     * @throws Exception if any error occurred
+     */
+    private Set<String> harvestAll(CSVHarvester csvHarvester) throws Exception {
+        Set<String> idList = new HashSet<String>();
+        while (csvHarvester.hasMoreObjects()) {
+            idList.addAll(csvHarvester.getObjectIdList());
+        }
+        return idList;
+    }
+
+    /**
+     * Reads the messages the row tracer logged after an offset of its log.
+     *
+     * @param offset the length of the log before the harvest
+     * @return the messages, one per line
+     * @throws Exception if any error occurred
+     */
+    private List<String> readTrace(long offset) throws Exception {
+        byte[] bytes = FileUtils.readFileToByteArray(TRACE_LOG);
+        String text = new String(bytes, (int) offset,
+                bytes.length - (int) offset, "UTF-8");
+        List<String> messages = new ArrayList<String>();
+        for (String line : text.split("\r?\n")) {
+            if (line.length() > 0) {
+                messages.add(line);
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Finds a traced message.
+     *
+     * @param traced the traced messages
+     * @param prefix the start of the message
+     * @return the first message starting with the prefix, or null
+     */
+    private String traced(List<String> traced, String prefix) {
+        for (String message : traced) {
+            if (message.startsWith(prefix)) {
+                return message;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets every batch of deleted objects of a harvester.
+     *
+     * @param csvHarvester the harvester
+     * @return the deleted object identifiers of all batches
+     * @throws Exception if any error occurred
+     */
+    private Set<String> harvestDeleted(CSVHarvester csvHarvester)
+            throws Exception {
+        Set<String> idList = new HashSet<String>();
+        do {
+            idList.addAll(csvHarvester.getDeletedObjectIdList());
+        } while (csvHarvester.hasMoreDeletedObjects());
+        return idList;
+    }
+
+    /**
+     * Gets the stored JSON payload of a harvested record.
+     *
+     * @param filename name of the harvested file
+     * @param idPrefix the record ID prefix
+     * @param recordId the record ID
+     * @return the payload JSON
+     * @throws Exception if any error occurred
+     */
+    private JsonSimple getPayload(String filename, String idPrefix,
+            String recordId) throws Exception {
+        String oid = DigestUtils.md5Hex(filename + idPrefix + recordId);
+        Payload payload = ram.getObject(oid).getPayload("metadata.json");
+        try {
+            return new JsonSimple(payload.open());
+        } finally {
+            payload.close();
+        }
+    }
+
     /**
      * Gets a CSV harvester instance and initialises it with the specified
      * configuration file.
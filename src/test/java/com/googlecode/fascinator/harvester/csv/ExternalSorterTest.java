@@ -0,0 +1,79 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for sorting lines through temporary files.
+ */
+public class ExternalSorterTest {
+
+    /**
+     * Test that many runs are merged in several passes into one sorted file,
+     * without duplicates, and that no temporary file is left behind.
+     */
+    @Test
+    public void multiPass() throws IOException {
+        File dir = File.createTempFile("sorter", "");
+        dir.delete();
+        dir.mkdir();
+        File target = File.createTempFile("sorted", ".gz");
+        try {
+            ExternalSorter sorter = new ExternalSorter(dir, "sort", 7, true, 3);
+            TreeSet<String> expected = new TreeSet<String>();
+            Random random = new Random(42);
+            for (int i = 0; i < 500; i++) {
+                String line = String.valueOf(random.nextInt(300));
+                sorter.add(line);
+                expected.add(line);
+            }
+            sorter.sort(target);
+            Assert.assertEquals(new ArrayList<String>(expected), read(target));
+            Assert.assertEquals(0, dir.listFiles().length);
+        } finally {
+            target.delete();
+            dir.delete();
+        }
+    }
+
+    private List<String> read(File file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = ExternalSorter.openReader(file);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+}
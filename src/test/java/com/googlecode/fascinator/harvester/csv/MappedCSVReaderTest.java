@@ -0,0 +1,242 @@
+/* 
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+/**
+ * Unit tests for the memory-mapped CSV reader, comparing it with opencsv.
+ */
+public class MappedCSVReaderTest {
+
+    /** Characters random files are made of */
+    private static final String[] ALPHABET = { "a", "b", " ", "\u00e9",
+            "\u6d1b", "\ud83d\ude00", ",", "\t", "\"", "\"", "\\", "\n",
+            "\r\n", "\r" };
+
+    /**
+     * Test that the test fixtures give the same rows as opencsv.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void fixtures() throws Exception {
+        File dir = new File(getClass().getResource("/").toURI());
+        for (String name : new String[] { "simple.csv", "complex.csv",
+                "multi.csv", "geonames.csv", "blank-values.csv",
+                "duplicates.csv" }) {
+            File file = new File(dir, name);
+            assertSameRows(file, '\t', 7);
+            assertSameRows(file, ',', MappedCSVReader.DEFAULT_WINDOW);
+        }
+    }
+
+    /**
+     * Test that awkward quoting, escapes and line breaks give the same rows
+     * as opencsv.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void quoting() throws Exception {
+        File file = File.createTempFile("quoting", ".csv");
+        try {
+            FileUtils.writeStringToFile(file, "a,bc\"d\"ef,g\r\n"
+                    + "\"x\"\"y\",\"multi\r\nline\n\nvalue\",\\z\n"
+                    + "\n"
+                    + "\"esc \\\" \\\\ \\q\",\"\u00e9\"\u00e9\",\u6d1b\"\n"
+                    + "\"unterminated", "UTF-8");
+            assertSameRows(file, ',', 3);
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Test random files against opencsv.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void random() throws Exception {
+        Random random = new Random(42);
+        File file = File.createTempFile("random", ".csv");
+        try {
+            for (int i = 0; i < 500; i++) {
+                StringBuilder content = new StringBuilder();
+                int length = random.nextInt(60);
+                for (int j = 0; j < length; j++) {
+                    content.append(ALPHABET[random.nextInt(ALPHABET.length)]);
+                }
+                FileUtils.writeStringToFile(file, content.toString(), "UTF-8");
+                assertSameRows(file, ',', 1 + random.nextInt(16));
+                assertSplitRows(file, ',', 1 + random.nextInt(5));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Test that the ranges of a split file together give all of its rows.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void split() throws Exception {
+        File dir = new File(getClass().getResource("/").toURI());
+        for (int parts = 1; parts < 6; parts++) {
+            assertSplitRows(new File(dir, "complex.csv"), '\t', parts);
+            assertSplitRows(new File(dir, "geonames.csv"), '\t', parts);
+        }
+    }
+
+    /**
+     * Test that splitting after the header never starts a range at a line
+     * break inside a quoted value.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void splitAfterHeader() throws Exception {
+        File file = File.createTempFile("split", ".csv");
+        try {
+            // rows start at 2 and 10, the line break at 6 is quoted
+            FileUtils.writeStringToFile(file, "h\n1,\"a\nb\"\n2,c\n", "UTF-8");
+            long[][] expected = { { 2, 14 }, { 2, 10, 14 },
+                    { 2, 10, 10, 14 }, { 2, 10, 10, 14, 14 } };
+            for (int i = 0; i < expected.length; i++) {
+                long[] bounds = MappedCSVReader.split(file, ',', 2, i + 1);
+                Assert.assertEquals("parts " + (i + 1),
+                        Arrays.toString(expected[i]), Arrays.toString(bounds));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Test that a projection leaves the unused cells null and gives the same
+     * values in the others, including where values span lines or windows,
+     * with either reader.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void projection() throws Exception {
+        File dir = new File(getClass().getResource("/").toURI());
+        boolean[] projection = { false, true, false, true };
+        for (String name : new String[] { "complex.csv", "geonames.csv",
+                "multi.csv" }) {
+            assertProjectedRows(new File(dir, name), projection);
+        }
+        File file = File.createTempFile("projection", ".csv");
+        try {
+            FileUtils.writeStringToFile(file, "\"x\"\"y\",\"multi\r\nline\",\\z\n"
+                    + "a,bc\"d\"ef,g,h,i\n"
+                    + "\"esc \\\" \\\\\",\"\u00e9\"\u00e9\",\u6d1b\"", "UTF-8");
+            assertProjectedRows(file, projection);
+            assertProjectedRows(file, new boolean[] { true, false, true });
+            assertProjectedRows(file, new boolean[0]);
+        } finally {
+            file.delete();
+        }
+    }
+
+    private void assertProjectedRows(File file, boolean[] projection)
+            throws IOException {
+        List<String[]> expected = readAll(new MappedCSVReader(file, ','));
+        for (String[] row : expected) {
+            for (int i = 0; i < row.length; i++) {
+                if (i >= projection.length || !projection[i]) {
+                    row[i] = null;
+                }
+            }
+        }
+        MappedCSVReader reader = new MappedCSVReader(file, ',', 0,
+                Long.MAX_VALUE, 5);
+        reader.setProjection(projection);
+        assertEquals(file, expected, readAll(reader));
+        OpenCSVRowReader openCSVReader = new OpenCSVRowReader(
+                new InputStreamReader(new FileInputStream(file), "UTF-8"), ',');
+        openCSVReader.setProjection(projection);
+        assertEquals(file, expected, readAll(openCSVReader));
+    }
+
+    private void assertSameRows(File file, char separator, int window)
+            throws IOException {
+        List<String[]> expected = readAll(new OpenCSVRowReader(
+                new InputStreamReader(new FileInputStream(file), "UTF-8"),
+                separator));
+        List<String[]> actual = readAll(new MappedCSVReader(file, separator,
+                0, Long.MAX_VALUE, window));
+        assertEquals(file, expected, actual);
+    }
+
+    private void assertSplitRows(File file, char separator, int parts)
+            throws IOException {
+        List<String[]> expected = readAll(new MappedCSVReader(file, separator));
+        long[] bounds = MappedCSVReader.split(file, separator, parts);
+        Assert.assertEquals(parts + 1, bounds.length);
+        Assert.assertEquals(file.length(), bounds[parts]);
+        List<String[]> actual = new ArrayList<String[]>();
+        for (int i = 0; i < parts; i++) {
+            actual.addAll(readAll(new MappedCSVReader(file, separator,
+                    bounds[i], bounds[i + 1], 5)));
+        }
+        assertEquals(file, expected, actual);
+    }
+
+    private List<String[]> readAll(RowReader reader) throws IOException {
+        List<String[]> rows = new ArrayList<String[]>();
+        try {
+            String[] row;
+            while ((row = reader.readNext()) != null) {
+                rows.add(row);
+            }
+        } finally {
+            reader.close();
+        }
+        return rows;
+    }
+
+    private void assertEquals(File file, List<String[]> expected,
+            List<String[]> actual) throws IOException {
+        String content = FileUtils.readFileToString(file, "UTF-8");
+        Assert.assertEquals(content, expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertEquals(content, Arrays.asList(expected.get(i)),
+                    Arrays.asList(actual.get(i)));
+        }
+    }
+}
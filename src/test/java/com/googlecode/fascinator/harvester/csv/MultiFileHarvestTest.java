@@ -0,0 +1,80 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.util.regex.Pattern;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for finding the files of a glob.
+ */
+public class MultiFileHarvestTest {
+
+    /**
+     * Test that globs match whole file names, with each kind of wildcard.
+     */
+    @Test
+    public void glob() {
+        assertMatches("*.csv", "a.csv", "daily.2011.csv", ".csv");
+        assertNotMatches("*.csv", "a.csv.gz", "a.txt", "acsv");
+        assertMatches("day-??.csv", "day-01.csv");
+        assertNotMatches("day-??.csv", "day-1.csv", "day-001.csv");
+        assertMatches("[ab]*.csv", "a.csv", "b1.csv");
+        assertNotMatches("[ab]*.csv", "c.csv");
+        assertMatches("[!ab]*", "c.csv");
+        assertNotMatches("[!ab]*", "a.csv");
+        assertMatches("[0-9].csv", "7.csv");
+        assertMatches("*.{csv,tsv}", "a.csv", "a.tsv");
+        assertNotMatches("*.{csv,tsv}", "a.txt", "a.csv,tsv");
+        assertMatches("a+b(1)$.csv", "a+b(1)$.csv");
+        assertNotMatches("a+b(1)$.csv", "aab1.csv");
+    }
+
+    /**
+     * Test that unclosed brackets and braces are refused.
+     */
+    @Test
+    public void invalidGlob() {
+        for (String glob : new String[] { "[abc", "{a,b", "a}", "{a,{b}}" }) {
+            try {
+                MultiFileHarvest.globPattern(glob);
+                Assert.fail(glob);
+            } catch (IllegalArgumentException expected) {
+                // refused
+            }
+        }
+    }
+
+    private void assertMatches(String glob, String... names) {
+        Pattern pattern = MultiFileHarvest.globPattern(glob);
+        for (String name : names) {
+            Assert.assertTrue(glob + " " + name, pattern.matcher(name).matches());
+        }
+    }
+
+    private void assertNotMatches(String glob, String... names) {
+        Pattern pattern = MultiFileHarvest.globPattern(glob);
+        for (String name : names) {
+            Assert.assertFalse(glob + " " + name, pattern.matcher(name).matches());
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/* 
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+/**
+ * Unit tests for the multi-value splitter, comparing it with opencsv.
+ */
+public class MultiValueSplitterTest {
+
+    /** Characters random cells are made of */
+    private static final String[] ALPHABET = { "a", "b", " ", "\u00e9",
+            "\ud83d\ude00", ";", ";", ",", "\"", "\"", "\\", "\n", "\r\n",
+            "\r" };
+
+    /**
+     * Test cells with and without quoting.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void cells() throws Exception {
+        MultiValueSplitter splitter = new MultiValueSplitter(';');
+        for (String cell : new String[] { "", "a", "a;b;;c;", ";", "a\nb",
+                "\"a;b\";c", "a;bc\"d\"ef;g", "\"x\"\"y\";\\z",
+                "\"multi\r\nline\";value", "\"unterminated", "a;\"b" }) {
+            assertSameValues(splitter, cell);
+        }
+    }
+
+    /**
+     * Test random cells against opencsv.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void random() throws Exception {
+        Random random = new Random(42);
+        MultiValueSplitter splitter = new MultiValueSplitter(';');
+        for (int i = 0; i < 5000; i++) {
+            StringBuilder cell = new StringBuilder();
+            int length = random.nextInt(30);
+            for (int j = 0; j < length; j++) {
+                cell.append(ALPHABET[random.nextInt(ALPHABET.length)]);
+            }
+            assertSameValues(splitter, cell.toString());
+        }
+    }
+
+    private void assertSameValues(MultiValueSplitter splitter, String cell)
+            throws Exception {
+        CSVReader reader = new CSVReader(new StringReader(cell), ';');
+        String[] expected = reader.readNext();
+        reader.close();
+        int count = splitter.split(cell);
+        if (expected == null) {
+            Assert.assertEquals(cell, -1, count);
+        } else {
+            Assert.assertEquals(cell, Arrays.asList(expected),
+                    Arrays.asList(splitter.values()).subList(0, count));
+        }
+    }
+}
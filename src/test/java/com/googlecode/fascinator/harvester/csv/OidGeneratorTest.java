@@ -0,0 +1,87 @@
+/* 
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Test;
+
+/**
+ * Unit tests for the OID generators.
+ */
+public class OidGeneratorTest {
+
+    /** Pieces random IDs are made of */
+    private static final String[] PIECES = { "a", "7", " ", "/", "\u00e9",
+            "\u6d1b", "\ud83d\ude00", "\ud83d", "\ude00", "\u0000" };
+
+    /**
+     * Test that MD5 OIDs are the ones the harvester has always made.
+     */
+    @Test
+    public void md5() {
+        Random random = new Random(42);
+        for (String prefix : new String[] { "", "data.csv",
+                "data.csvhttp://www.mypetrules.com/", "data.csv\ud83d" }) {
+            OidGenerator generator = new Md5OidGenerator(prefix, "");
+            for (int i = 0; i < 1000; i++) {
+                String id = id(random);
+                Assert.assertEquals(DigestUtils.md5Hex(prefix + id),
+                        generator.createOid(id));
+            }
+            Assert.assertEquals(DigestUtils.md5Hex(prefix + null),
+                    generator.createOid(null));
+        }
+    }
+
+    /**
+     * Test that fast OIDs are stable, look like MD5 ones and do not collide.
+     */
+    @Test
+    public void fast() {
+        OidGenerator generator = new FastOidGenerator("data.csv",
+                "http://www.mypetrules.com/");
+        OidGenerator other = new FastOidGenerator("data.csv",
+                "http://www.mypetrules.com/");
+        Set<String> oids = new HashSet<String>();
+        for (int i = 0; i < 100000; i++) {
+            String oid = generator.createOid(Integer.toString(i));
+            Assert.assertTrue(oid.matches("[0-9a-f]{32}"));
+            Assert.assertEquals(oid, other.createOid(Integer.toString(i)));
+            oids.add(oid);
+        }
+        Assert.assertEquals(100000, oids.size());
+        Assert.assertFalse(generator.createOid("1").equals(
+                new FastOidGenerator("data.csv", "").createOid("1")));
+    }
+
+    private String id(Random random) {
+        StringBuilder id = new StringBuilder();
+        int length = random.nextInt(80);
+        for (int i = 0; i < length; i++) {
+            id.append(PIECES[random.nextInt(PIECES.length)]);
+        }
+        return id.toString();
+    }
+}
@@ -0,0 +1,207 @@
+/* 
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+import junit.framework.Assert;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+/**
+ * Unit tests for parallel gzip decompression, comparing it with
+ * GZIPInputStream.
+ */
+public class ParallelGzipInputStreamTest {
+
+    /**
+     * Test files of one member, many members and trailing bytes, with one
+     * and several threads.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void members() throws Exception {
+        Random random = new Random(42);
+        for (int test = 0; test < 20; test++) {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            int members = test % 4 == 0 ? 1 : 1 + random.nextInt(20);
+            for (int i = 0; i < members; i++) {
+                data.write(gzip(randomBytes(random, random.nextInt(200000))));
+            }
+            if (test % 5 == 1) {
+                data.write(new byte[] { 1, 2, 3 });
+            }
+            File file = File.createTempFile("gzip", ".gz");
+            try {
+                FileUtils.writeByteArrayToFile(file, data.toByteArray());
+                byte[] expected = readAll(new GZIPInputStream(
+                        new FileInputStream(file)));
+                for (int threads : new int[] { 1, 2, 8 }) {
+                    Assert.assertTrue("test " + test + ", " + threads + " threads",
+                            Arrays.equals(expected, readAll(
+                                    new ParallelGzipInputStream(file, threads))));
+                }
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Test that members started ahead and then cancelled, while they are
+     * busy inflating, leave the rest of the file readable. Each member is
+     * stored uncompressed and holds a whole gzip file, so the tasks started
+     * at those embedded headers inflate real data until they are cancelled.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void cancelled() throws Exception {
+        Random random = new Random(42);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (int i = 0; i < 6; i++) {
+            ByteArrayOutputStream member = new ByteArrayOutputStream();
+            for (int j = 0; j < 3; j++) {
+                member.write(gzip(randomBytes(random, 300000)));
+                member.write(randomBytes(random, random.nextInt(1000)));
+            }
+            data.write(store(member.toByteArray()));
+        }
+        File file = File.createTempFile("gzip", ".gz");
+        try {
+            FileUtils.writeByteArrayToFile(file, data.toByteArray());
+            byte[] expected = readAll(new GZIPInputStream(
+                    new FileInputStream(file)));
+            for (int test = 0; test < 10; test++) {
+                Assert.assertTrue("test " + test, Arrays.equals(expected,
+                        readAll(new ParallelGzipInputStream(file, 4))));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Test that a corrupt trailer is reported.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test(expected = IOException.class)
+    public void corrupt() throws Exception {
+        byte[] data = gzip(randomBytes(new Random(42), 1000));
+        data[data.length - 1] ^= 1;
+        File file = File.createTempFile("gzip", ".gz");
+        try {
+            FileUtils.writeByteArrayToFile(file, data);
+            readAll(new ParallelGzipInputStream(file, 2));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Test that an unchecked exception thrown by a task is thrown by the
+     * read that reaches its member, rather than leaving the read waiting.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test(expected = IllegalStateException.class)
+    public void failingTask() throws Exception {
+        Random random = new Random(42);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (int i = 0; i < 4; i++) {
+            data.write(gzip(randomBytes(random, 200000)));
+        }
+        File file = File.createTempFile("gzip", ".gz");
+        try {
+            FileUtils.writeByteArrayToFile(file, data.toByteArray());
+            final AtomicInteger calls = new AtomicInteger();
+            readAll(new ParallelGzipInputStream(file, 2) {
+                @Override
+                int inflateChunk(Inflater inflater, byte[] b, int off, int len)
+                        throws DataFormatException {
+                    if (calls.incrementAndGet() == 3) {
+                        throw new IllegalStateException("Failed inflating");
+                    }
+                    return super.inflateChunk(inflater, b, off, len);
+                }
+            });
+        } finally {
+            file.delete();
+        }
+    }
+
+    private byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(data);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * Makes a gzip member holding the data uncompressed.
+     */
+    private byte[] store(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out) {
+            {
+                def.setLevel(Deflater.NO_COMPRESSION);
+            }
+        };
+        gzip.write(data);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * Makes bytes that compress, with some random ones.
+     */
+    private byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (random.nextInt(4) == 0 ? random.nextInt(256)
+                    : 'a' + random.nextInt(3));
+        }
+        return bytes;
+    }
+
+    private byte[] readAll(InputStream in) throws IOException {
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/* 
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.io.StringWriter;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.json.simple.JSONValue;
+import org.junit.Test;
+
+import com.googlecode.fascinator.common.JsonObject;
+import com.googlecode.fascinator.common.JsonSimple;
+
+/**
+ * Unit tests for streamed records, comparing them with JSON built as a tree.
+ */
+public class RecordWriterTest {
+
+    /** Pieces random values are made of */
+    private static final String[] PIECES = { "a", "Z", " ", "/", "\"", "\\",
+            ";", "\b", "\f", "\n", "\r", "\t", "\u0000", "\u001f", "\u007f",
+            "\u0085", "\u00e9", "\u2028", "\u20ac", "\u6d1b",
+            "\ud83d\ude00" };
+
+    /**
+     * Test that streamed records are written as the tree would be.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void sameAsTree() throws Exception {
+        Random random = new Random(42);
+        RecordWriter writer = new RecordWriter(new int[] { 0, 2, 3 },
+                new String[] { "ID", "Tags/\"x\"", "Name\u2028" },
+                new boolean[] { false, true, false }, ';');
+        Assert.assertTrue(writer.canStream());
+        for (int i = 0; i < 1000; i++) {
+            String[] row = new String[random.nextInt(5)];
+            for (int c = 0; c < row.length; c++) {
+                row[c] = value(random);
+            }
+            String prefix = value(random);
+            String identifier = prefix + value(random);
+
+            HarvestRecord streamed = new HarvestRecord("oid", prefix,
+                    identifier, row, writer);
+            StringWriter out = new StringWriter();
+            streamed.writeJson(out);
+
+            Assert.assertEquals(tree(prefix, new HarvestRecord("oid", prefix,
+                    identifier, row, writer)), out.toString());
+        }
+    }
+
+    /**
+     * Test that repeated fields are left to the tree.
+     */
+    @Test
+    public void duplicates() {
+        RecordWriter writer = new RecordWriter(new int[] { 0, 1 },
+                new String[] { "ID", "ID" }, new boolean[2], ';');
+        Assert.assertFalse(writer.canStream());
+    }
+
+    /**
+     * Builds the payload of a record as the harvester does when it merges.
+     */
+    private String tree(String prefix, HarvestRecord record) throws Exception {
+        JsonSimple existing = new JsonSimple();
+        existing.getJsonObject().put("recordIDPrefix", prefix);
+        JsonObject data = existing.writeObject("data");
+        data.putAll(record.getData());
+        JsonObject meta = existing.writeObject("metadata");
+        meta.putAll(record.getMetadata());
+        StringWriter out = new StringWriter();
+        JSONValue.writeJSONString(existing.getJsonObject(), out);
+        return out.toString();
+    }
+
+    private String value(Random random) {
+        StringBuilder value = new StringBuilder();
+        int length = random.nextInt(6);
+        for (int i = 0; i < length; i++) {
+            value.append(PIECES[random.nextInt(PIECES.length)]);
+        }
+        return value.toString();
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.json.simple.JSONValue;
+import org.junit.Test;
+
+/**
+ * Unit tests for folding the rows of an object together.
+ */
+public class RowAggregatorTest {
+
+    /** Rows of ID, authors and title */
+    private static final String[][] ROWS = { { "1", "A", "T" },
+            { "1", "B;A", "T" }, { "2", "C", "U" }, { "3", "D", "V" },
+            { "1", "E", "T2" }, { "3", "F", "V" } };
+
+    /**
+     * Test that sorted lines give back the cells they were made from.
+     */
+    @Test
+    public void encode() {
+        String[] cells = { "a\tb", "x\\n", "", "line\nbreak\r" };
+        String line = RowAggregator.encode("oid", cells, 42, -5L);
+        Assert.assertEquals(-1, line.indexOf('\n'));
+        Assert.assertTrue(Arrays.equals(cells,
+                RowAggregator.decode(line, "oid".length() + 37)));
+        Assert.assertEquals(0, RowAggregator.decode(RowAggregator.encode(
+                "oid", new String[0], 1, 0), "oid".length() + 37).length);
+    }
+
+    /**
+     * Test that only adjacent rows are folded together.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void adjacent() throws Exception {
+        Assert.assertEquals(Arrays.asList(
+                "1={\"ID\":\"1\",\"Author\":[\"A\",\"B\"],\"Title\":\"T\"}",
+                "2={\"ID\":\"2\",\"Author\":[\"C\"],\"Title\":\"U\"}",
+                "3={\"ID\":\"3\",\"Author\":[\"D\"],\"Title\":\"V\"}",
+                "1={\"ID\":\"1\",\"Author\":[\"E\"],\"Title\":\"T2\"}",
+                "3={\"ID\":\"3\",\"Author\":[\"F\"],\"Title\":\"V\"}"),
+                aggregate(RowAggregator.Mode.ADJACENT));
+    }
+
+    /**
+     * Test that rows within the window are folded together.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void window() throws Exception {
+        Assert.assertEquals(Arrays.asList(
+                "1={\"ID\":\"1\",\"Author\":[\"A\",\"B\"],\"Title\":\"T\"}",
+                "2={\"ID\":\"2\",\"Author\":[\"C\"],\"Title\":\"U\"}",
+                "3={\"ID\":\"3\",\"Author\":[\"D\",\"F\"],\"Title\":\"V\"}",
+                "1={\"ID\":\"1\",\"Author\":[\"E\"],\"Title\":\"T2\"}"),
+                aggregate(RowAggregator.Mode.WINDOW));
+    }
+
+    /**
+     * Test that all the rows of an object are folded together, in file
+     * order, when they are sorted.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void sort() throws Exception {
+        Assert.assertEquals(Arrays.asList(
+                "1={\"ID\":\"1\",\"Author\":[\"A\",\"B\",\"E\"],\"Title\":[\"T\",\"T2\"]}",
+                "2={\"ID\":\"2\",\"Author\":[\"C\"],\"Title\":\"U\"}",
+                "3={\"ID\":\"3\",\"Author\":[\"D\",\"F\"],\"Title\":\"V\"}"),
+                aggregate(RowAggregator.Mode.SORT));
+    }
+
+    /**
+     * Test that sorted objects are written a few at a time, with their
+     * temporary files in the given directory.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void sortInBatches() throws Exception {
+        File dir = File.createTempFile("aggregate", "");
+        dir.delete();
+        dir.mkdir();
+        try {
+            List<String> written = new ArrayList<String>();
+            RowAggregator aggregator = aggregator(RowAggregator.Mode.SORT,
+                    dir, written);
+            Assert.assertTrue(dir.list().length > 0);
+            List<Integer> batches = new ArrayList<Integer>();
+            boolean more;
+            do {
+                int before = written.size();
+                more = aggregator.finish(1);
+                Assert.assertEquals(more, aggregator.hasMore());
+                batches.add(written.size() - before);
+            } while (more);
+            Assert.assertEquals(Arrays.asList(1, 1, 1), batches);
+            Assert.assertEquals(aggregate(RowAggregator.Mode.SORT), written);
+            Assert.assertEquals(0, dir.list().length);
+        } finally {
+            dir.delete();
+        }
+    }
+
+    /**
+     * Aggregates the rows, holding 2 objects or sorting 2 rows at a time.
+     *
+     * @param mode how far apart the rows of an object may be
+     * @return the objects written, in order
+     * @throws Exception if any error occurred
+     */
+    private List<String> aggregate(RowAggregator.Mode mode) throws Exception {
+        List<String> written = new ArrayList<String>();
+        RowAggregator aggregator = aggregator(mode, new File(
+                System.getProperty("java.io.tmpdir")), written);
+        Assert.assertFalse(aggregator.finish(Integer.MAX_VALUE));
+        return written;
+    }
+
+    /**
+     * Adds the rows to an aggregator that holds 2 objects or sorts 2 rows at
+     * a time.
+     *
+     * @param mode how far apart the rows of an object may be
+     * @param dir where to keep temporary files
+     * @param written where the objects written are listed
+     * @return the aggregator, before it has been finished
+     * @throws Exception if any error occurred
+     */
+    private RowAggregator aggregator(RowAggregator.Mode mode, File dir,
+            final List<String> written) throws Exception {
+        RecordWriter writer = new RecordWriter(new int[] { 0, 1, 2 },
+                new String[] { "ID", "Author", "Title" },
+                new boolean[] { false, true, false }, ';');
+        RowAggregator aggregator = new RowAggregator(mode, 2, dir, "p/", 0, writer,
+                new RowAggregator.Output() {
+                    @Override
+                    public void write(HarvestRecord record, long fingerprint) {
+                        written.add(record.getOid() + "="
+                                + JSONValue.toJSONString(record.getData()));
+                    }
+                });
+        for (int i = 0; i < ROWS.length; i++) {
+            String[] row = ROWS[i];
+            aggregator.add(new HarvestRecord(row[0], "p/", "p/" + row[0], row,
+                    writer), row, i + 1, i + 1);
+        }
+        return aggregator;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.googlecode.fascinator.api.harvester.HarvesterException;
+import com.googlecode.fascinator.common.JsonSimple;
+
+/**
+ * Unit tests for compiling filter expressions.
+ */
+public class RowFilterTest {
+
+    /** The columns of the rows */
+    private static final List<String> FIELDS = Arrays.asList("ID", "Name",
+            "Population");
+
+    /**
+     * Test a valid expression.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test
+    public void valid() throws Exception {
+        RowFilter filter = compile("{\"or\": [{\"field\": \"Name\", \"regex\": \"^T\"},"
+                + " {\"field\": \"Population\", \"gte\": 10, \"lt\": 20}]}");
+        MultiValueSplitter splitter = new MultiValueSplitter(';');
+        Assert.assertTrue(filter.accept(new String[] { "1", "Tom", "0" }, splitter));
+        Assert.assertTrue(filter.accept(new String[] { "2", "Ann", "10" }, splitter));
+        Assert.assertFalse(filter.accept(new String[] { "3", "Ann", "20" }, splitter));
+    }
+
+    /**
+     * Test that an object with both "and" and "or" is rejected, rather than
+     * one of them being dropped.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test(expected = HarvesterException.class)
+    public void andWithOr() throws Exception {
+        compile("{\"and\": [{\"field\": \"ID\", \"equals\": \"1\"}],"
+                + " \"or\": [{\"field\": \"ID\", \"equals\": \"2\"}]}");
+    }
+
+    /**
+     * Test that an operator with a field test in the same object is rejected.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test(expected = HarvesterException.class)
+    public void notWithField() throws Exception {
+        compile("{\"not\": {\"field\": \"ID\", \"equals\": \"1\"},"
+                + " \"field\": \"Name\", \"equals\": \"Tom\"}");
+    }
+
+    /**
+     * Test that a field with several tests is rejected, rather than all but
+     * one being dropped.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test(expected = HarvesterException.class)
+    public void severalTests() throws Exception {
+        compile("{\"field\": \"Name\", \"regex\": \"^T\", \"equals\": \"Ann\"}");
+    }
+
+    /**
+     * Test that a field with both a test and a range is rejected.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test(expected = HarvesterException.class)
+    public void testAndRange() throws Exception {
+        compile("{\"field\": \"Population\", \"in\": [\"1\"], \"gt\": 0}");
+    }
+
+    /**
+     * Test that a range with two lower bounds is rejected.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test(expected = HarvesterException.class)
+    public void twoLowerBounds() throws Exception {
+        compile("{\"field\": \"Population\", \"gt\": 0, \"gte\": 1}");
+    }
+
+    /**
+     * Test that an unknown key, such as a misspelt test, is rejected.
+     *
+     * @throws Exception if any error occurred
+     */
+    @Test(expected = HarvesterException.class)
+    public void unknownKey() throws Exception {
+        compile("{\"field\": \"Name\", \"regex\": \"^T\", \"mutli\": \"ALL\"}");
+    }
+
+    private RowFilter compile(String expression) throws Exception {
+        return RowFilter.compile(new JsonSimple(expression), FIELDS,
+                Collections.<String> emptyList());
+    }
+}
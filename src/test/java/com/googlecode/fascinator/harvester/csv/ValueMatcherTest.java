@@ -0,0 +1,88 @@
+/* 
+ * The Fascinator - Plugin - Harvester - CSV
+ * Copyright (C) 2011 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.harvester.csv;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for filter value matching, comparing it with regex matching.
+ */
+public class ValueMatcherTest {
+
+    /** Filters with a literal fast path */
+    private static final String[] LITERALS = { "^Tom$", "^Tom", "Tom$",
+            "Tom", "^(cat|dog)$", "^(?:cat|dog)", "(cat|dog)$", "cat|dog",
+            "(cat|)", "^$", "", "^", "$", "^a\\$", "a\\\\$", "a\\.b",
+            "^\\(a\\)$", "^\\|$", "^T m$" };
+
+    /** Filters matched as regexes */
+    private static final String[] REGEXES = { "^cat|dog$", "\\sof\\s",
+            "(?i)tom", "^(a)(b)$", "x{2}", "^T.m$", "\\QTom\\E", "^\\u0054om$" };
+
+    /** Pieces random values are made of */
+    private static final String[] PIECES = { "T", "o", "m", "Tom", "cat",
+            "dog", "a", "b", "x", " ", ".", "$", "(", ")", "|", "\\", "\n",
+            "\r", "\r\n", "\u0085", "\u2028", "\u2029" };
+
+    /**
+     * Test that literal filters avoid regexes.
+     */
+    @Test
+    public void fastPaths() {
+        for (String regex : LITERALS) {
+            Assert.assertTrue(regex, ValueMatcher.compile(regex).cost() < 20);
+        }
+        for (String regex : REGEXES) {
+            Assert.assertEquals(regex, 20, ValueMatcher.compile(regex).cost());
+        }
+    }
+
+    /**
+     * Test that values match as they would with a regex.
+     */
+    @Test
+    public void sameAsRegex() {
+        Random random = new Random(42);
+        String[] values = new String[2000];
+        for (int i = 0; i < values.length; i++) {
+            StringBuilder value = new StringBuilder();
+            int length = random.nextInt(5);
+            for (int j = 0; j < length; j++) {
+                value.append(PIECES[random.nextInt(PIECES.length)]);
+            }
+            values[i] = value.toString();
+        }
+        for (String[] regexes : new String[][] { LITERALS, REGEXES }) {
+            for (String regex : regexes) {
+                Pattern pattern = Pattern.compile(regex);
+                ValueMatcher matcher = ValueMatcher.compile(regex);
+                for (String value : values) {
+                    Assert.assertEquals(regex + " on '" + value + "'",
+                            pattern.matcher(value).find(),
+                            matcher.matches(value));
+                }
+            }
+        }
+    }
+}